@@ -0,0 +1,177 @@
+package com.sensortea.cuplogger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs simulated devices (see {@link SimulatedPortDriver}) through the same capture, write and query path as the
+ * server does, and reports how many lines it keeps up with, how late data is visible to queries and how much CPU
+ * it takes. Data is captured into the given base dir, so use an empty one. Capture is configured with the same env
+ * variables as the server, e.g. CAPTURE_SCHEDULER, and devices with SIMULATED_* env variables.
+ * <p>
+ * Queries ask for new records of each device every queryIntervalMs, like the web UI does when showing fresh data.
+ * <p>
+ * It is in the server's package, as it sets up the capture with package-private classes.
+ */
+public class CaptureBenchmark {
+    private static final String USAGE = "Usage: java -cp benchmarks/target/benchmarks.jar " +
+            CaptureBenchmark.class.getName() + " <baseDir> <devices> <linesPerSecond> <seconds> [<queryIntervalMs>]";
+    private static final long WARM_UP_MS = 2000;
+    private static final long PORTS_OPEN_TIMEOUT_MS = 30_000;
+
+    private final SimulatedPortDriver driver;
+    private final ServerCoreAPI api;
+    private final List<String> serialNumbers = new ArrayList<>();
+    // from when a device finished printing a line until it was read
+    private final LatencyHistogram readDelays = new LatencyHistogram();
+    // from when a record was read until it was returned by a query
+    private final LatencyHistogram queryDelays = new LatencyHistogram();
+
+    CaptureBenchmark(String baseDir, SimulatedPortDriver driver) throws IOException {
+        this.driver = driver;
+        driver.setReadDelaysConsumer(readDelays::record);
+        // so that all devices are captured
+        SerialConnectionsConfig config = new SerialConnectionsConfig(baseDir);
+        Map<String, SerialConnectionInfo> configured = config.list();
+        for (PortDiscovery.Port port : driver.scan()) {
+            SerialConnectionInfo info = configured.computeIfAbsent(port.serialNumber, sn -> new SerialConnectionInfo());
+            info.serialNumber = port.serialNumber;
+            port.describe(info);
+            info.name = port.serialNumber;
+            info.dataCaptureOn = true;
+            serialNumbers.add(port.serialNumber);
+        }
+        config.update(configured);
+        this.api = new ServerCore(baseDir, driver);
+    }
+
+    void run(long durationMs, long queryIntervalMs) throws InterruptedException {
+        long openDeadlineMs = System.currentTimeMillis() + PORTS_OPEN_TIMEOUT_MS;
+        while (driver.getOpenPorts() < serialNumbers.size()) {
+            if (System.currentTimeMillis() > openDeadlineMs) {
+                System.out.println("Only " + driver.getOpenPorts() + " of " + serialNumbers.size() +
+                        " devices are captured, will go on with them.");
+                break;
+            }
+            Thread.sleep(100);
+        }
+        Thread.sleep(WARM_UP_MS);
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        // records of each device up to the cursor were seen, incl. the given number at the cursor ms itself
+        long[] cursorEpochMs = new long[serialNumbers.size()];
+        int[] seenAtCursor = new int[serialNumbers.size()];
+        long startEpochMs = System.currentTimeMillis();
+        Arrays.fill(cursorEpochMs, startEpochMs);
+        readDelays.reset();
+        long startPrintedLines = driver.getPrintedLines();
+        long startNanos = System.nanoTime();
+        long startCpuNanos = getProcessCpuNanos(os);
+        long startQueryCpuNanos = threads.getCurrentThreadCpuTime();
+        long queriedRecords = 0;
+
+        long endNanos = startNanos + durationMs * 1_000_000;
+        while (System.nanoTime() < endNanos) {
+            long queryStartNanos = System.nanoTime();
+            long nowMs = System.currentTimeMillis();
+            for (int i = 0; i < serialNumbers.size(); i++) {
+                long[] cursor = {cursorEpochMs[i], 0};
+                int skip = seenAtCursor[i];
+                long[] count = {0};
+                api.scanEvents(serialNumbers.get(i), cursorEpochMs[i], nowMs + 1, r -> {
+                    if (r.epochMs == cursor[0]) {
+                        if (cursor[1]++ < skip) {
+                            return true;
+                        }
+                    } else {
+                        cursor[0] = r.epochMs;
+                        cursor[1] = 1;
+                    }
+                    count[0]++;
+                    queryDelays.record((nowMs - r.epochMs) * 1_000_000);
+                    return true;
+                });
+                if (cursor[0] != cursorEpochMs[i]) {
+                    cursorEpochMs[i] = cursor[0];
+                    seenAtCursor[i] = (int) cursor[1];
+                } else {
+                    seenAtCursor[i] = (int) Math.max(skip, cursor[1]);
+                }
+                queriedRecords += count[0];
+            }
+            long sleepMs = queryIntervalMs - (System.nanoTime() - queryStartNanos) / 1_000_000;
+            if (sleepMs > 0) {
+                Thread.sleep(sleepMs);
+            }
+        }
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long cpuNanos = getProcessCpuNanos(os) - startCpuNanos;
+        long queryCpuNanos = threads.getCurrentThreadCpuTime() - startQueryCpuNanos;
+        long printedLines = driver.getPrintedLines() - startPrintedLines;
+        int devices = serialNumbers.size();
+        System.out.println(String.format(Locale.ROOT, "Devices: %d, measured for %.1f s", devices, seconds));
+        System.out.println(String.format(Locale.ROOT, "Printed: %d lines, %.0f lines/s", printedLines,
+                printedLines / seconds));
+        System.out.println(String.format(Locale.ROOT, "Queried: %d records, %.0f records/s", queriedRecords,
+                queriedRecords / seconds));
+        printLatency("Read delay (printed by device to read), ms", readDelays);
+        printLatency("Query delay (read to returned by a query, incl. up to " + queryIntervalMs +
+                " ms of polling), ms", queryDelays);
+        if (cpuNanos >= 0) {
+            System.out.println(String.format(Locale.ROOT,
+                    "CPU per device, %% of a core: %.3f for capture and write, %.3f for queries",
+                    (cpuNanos - queryCpuNanos) / 1e7 / seconds / devices, queryCpuNanos / 1e7 / seconds / devices));
+        }
+    }
+
+    private static void printLatency(String title, LatencyHistogram histogram) {
+        System.out.println(String.format(Locale.ROOT, "%s: p50 %.1f, p99 %.1f, max %.1f", title,
+                histogram.percentileNanos(50) / 1e6, histogram.percentileNanos(99) / 1e6,
+                histogram.maxNanos() / 1e6));
+    }
+
+    // -1 if not known
+    private static long getProcessCpuNanos(OperatingSystemMXBean os) {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 4 || args.length > 5) {
+            System.out.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        String baseDir = args[0];
+        int devices;
+        double linesPerSecond;
+        long durationMs;
+        long queryIntervalMs;
+        try {
+            devices = Integer.parseInt(args[1]);
+            linesPerSecond = Double.parseDouble(args[2]);
+            durationMs = Long.parseLong(args[3]) * 1000;
+            queryIntervalMs = args.length == 5 ? Long.parseLong(args[4]) : 100;
+        } catch (NumberFormatException e) {
+            System.out.println("Couldn't parse arguments: " + e.getMessage() + ". " + USAGE);
+            System.exit(1);
+            return;
+        }
+        FileCheckUtil.ensureDirectoryExistsAndUsable(baseDir);
+        new CaptureBenchmark(baseDir, SimulatedPortDriver.configured(devices, linesPerSecond))
+                .run(durationMs, queryIntervalMs);
+        // capture keeps running otherwise
+        System.exit(0);
+    }
+}
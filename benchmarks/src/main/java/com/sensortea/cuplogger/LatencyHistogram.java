@@ -0,0 +1,56 @@
+package com.sensortea.cuplogger;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Counts latencies in buckets of 0.1ms up to 10s, for percentiles. Thread-safe.
+ */
+class LatencyHistogram {
+    private static final long BUCKET_NANOS = 100_000;
+    private static final int BUCKETS = 100_000;
+
+    // the last one is for everything longer
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        long bucket = Math.max(0, nanos) / BUCKET_NANOS;
+        counts.incrementAndGet((int) Math.min(bucket, BUCKETS));
+        max.accumulate(nanos);
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        max.reset();
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    long maxNanos() {
+        return max.get();
+    }
+
+    /**
+     * @return upper bound of the bucket with the given percentile (0..100), max if it is beyond buckets
+     */
+    long percentileNanos(double percentile) {
+        long rank = (long) Math.ceil(count() * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min((i + 1) * BUCKET_NANOS, maxNanos());
+            }
+        }
+        return maxNanos();
+    }
+}
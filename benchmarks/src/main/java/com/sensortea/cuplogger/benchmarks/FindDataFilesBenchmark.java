@@ -0,0 +1,54 @@
+package com.sensortea.cuplogger.benchmarks;
+
+import com.sensortea.cuplogger.DataFilesStore;
+import com.sensortea.cuplogger.TextFormatWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding data files of a query range, with a year of (empty) data files in the base dir.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FindDataFilesBenchmark {
+    private static final String SERIAL_NUMBER = "SN";
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final long START_EPOCH_MS = 1_700_000_000_000L / DAY_MS * DAY_MS;
+    private static final long END_EPOCH_MS = START_EPOCH_MS + 365 * DAY_MS;
+
+    @Param({"3600000", "2592000000"})
+    public long rangeMs;
+
+    private File baseDir;
+    private long queryStartEpochMs;
+
+    @Setup
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("cuplogger-find").toFile();
+        SyntheticData.createEmptyDataFiles(baseDir.getPath(), SERIAL_NUMBER, START_EPOCH_MS, END_EPOCH_MS);
+        // in the middle of the year
+        queryStartEpochMs = START_EPOCH_MS + 180 * DAY_MS + 12345;
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticData.deleteRecursively(baseDir);
+    }
+
+    @Benchmark
+    public void findDataFiles(Blackhole bh) {
+        for (File file : DataFilesStore.findDataFiles(baseDir.getPath(), SERIAL_NUMBER, TextFormatWriter.FORMAT,
+                queryStartEpochMs, queryStartEpochMs + rangeMs)) {
+            bh.consume(file);
+        }
+    }
+}
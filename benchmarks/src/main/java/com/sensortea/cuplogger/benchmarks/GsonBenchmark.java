@@ -0,0 +1,86 @@
+package com.sensortea.cuplogger.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.sensortea.cuplogger.DataRecord;
+import com.sensortea.cuplogger.RecordColumns;
+import com.sensortea.cuplogger.TextLineParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing query results as JSON: records, as /getData does by default, and columns, as with format=columnar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GsonBenchmark {
+    private static final int LINES = 10_000;
+
+    private final Gson gson = new Gson();
+    private final List<DataRecord> records = new ArrayList<>();
+    private final RecordColumns columns = new RecordColumns();
+
+    @Setup
+    public void setUp() {
+        SyntheticData data = new SyntheticData(1, 5, 0.1, 0.01);
+        TextLineParser parser = new TextLineParser();
+        long epochMs = 1_700_000_000_000L;
+        for (int i = 0; i < LINES; i++) {
+            String line = data.nextLine();
+            byte[] bytes = ((epochMs + i * 100) + "," + line.substring(0, line.length() - 2))
+                    .getBytes(StandardCharsets.UTF_8);
+            DataRecord r = new DataRecord();
+            // as scans do, skipping lines that are not records at all
+            if (parser.parse(bytes, 0, bytes.length, r)) {
+                records.add(r);
+                columns.add(r);
+            }
+        }
+    }
+
+    @Benchmark
+    public void records() throws IOException {
+        try (JsonWriter writer = newWriter()) {
+            writer.beginArray();
+            for (DataRecord r : records) {
+                gson.toJson(r, DataRecord.class, writer);
+            }
+            writer.endArray();
+        }
+    }
+
+    @Benchmark
+    public void columnar() throws IOException {
+        try (JsonWriter writer = newWriter()) {
+            columns.writeJson(writer, true);
+        }
+    }
+
+    private static JsonWriter newWriter() {
+        // as HTTP responses are written, but discarding the bytes
+        Writer out = new OutputStreamWriter(new NullOutputStream(), StandardCharsets.UTF_8);
+        return new JsonWriter(out);
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.sensortea.cuplogger.benchmarks;
+
+import com.sensortea.cuplogger.DataRecord;
+import com.sensortea.cuplogger.TextFormatReader;
+import com.sensortea.cuplogger.TextLineParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of stored lines, i.e. "&lt;epochMs&gt;,&lt;device line&gt;", with {@link TextLineParser} used by scans and
+ * with {@link TextFormatReader#parseEvent(String)} it falls back to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    private static final int LINES = 1024;
+
+    @Param({"logs", "readings", "manyReadings", "corrupt"})
+    public String lines;
+
+    private String[] stringLines;
+    private byte[][] byteLines;
+    private final TextLineParser parser = new TextLineParser();
+    private final DataRecord target = new DataRecord();
+
+    @Setup
+    public void setUp() {
+        SyntheticData data;
+        switch (lines) {
+            case "logs":
+                data = new SyntheticData(1, 0, 1, 0);
+                break;
+            case "readings":
+                data = new SyntheticData(1, 5, 0, 0);
+                break;
+            case "manyReadings":
+                data = new SyntheticData(1, 50, 0, 0);
+                break;
+            case "corrupt":
+                data = new SyntheticData(1, 5, 0, 1);
+                break;
+            default:
+                throw new IllegalArgumentException(lines);
+        }
+        stringLines = new String[LINES];
+        byteLines = new byte[LINES][];
+        long epochMs = 1_700_000_000_000L;
+        for (int i = 0; i < LINES; i++) {
+            String line = data.nextLine();
+            // as stored: with the time it was received and without line terminator
+            stringLines[i] = (epochMs + i * 100) + "," + line.substring(0, line.length() - 2);
+            byteLines[i] = stringLines[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void lineParser(Blackhole bh) {
+        for (byte[] line : byteLines) {
+            bh.consume(parser.parse(line, 0, line.length, target));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseEvent(Blackhole bh) {
+        for (String line : stringLines) {
+            bh.consume(TextFormatReader.parseEvent(line));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.sensortea.cuplogger.benchmarks;
+
+import com.sensortea.cuplogger.DataFilesStore;
+import com.sensortea.cuplogger.TextFormatReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and parsing of a 10-minute data file, as done for queries that miss the parsed files cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+    private static final String SERIAL_NUMBER = "SN";
+    private static final long START_EPOCH_MS = 1_700_000_000_000L / DataFilesStore.FILE_INTERVAL_MS *
+            DataFilesStore.FILE_INTERVAL_MS;
+
+    @Param({"10", "100", "1000"})
+    public int linesPerSecond;
+
+    private File baseDir;
+    private File dataFile;
+    private TextFormatReader reader;
+
+    @Setup
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("cuplogger-scan").toFile();
+        new SyntheticData(1, 5, 0.1, 0.01).writeDataFiles(baseDir.getPath(), SERIAL_NUMBER,
+                START_EPOCH_MS, START_EPOCH_MS + DataFilesStore.FILE_INTERVAL_MS, linesPerSecond);
+        reader = new TextFormatReader(baseDir.getPath());
+        List<File> files = new ArrayList<>();
+        reader.findDataFiles(SERIAL_NUMBER, START_EPOCH_MS, START_EPOCH_MS).forEach(files::add);
+        if (files.size() != 1) {
+            throw new IllegalStateException("Expected one data file, found: " + files);
+        }
+        dataFile = files.get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticData.deleteRecursively(baseDir);
+    }
+
+    @Benchmark
+    public void scanFile(Blackhole bh) {
+        reader.scanFile(dataFile, START_EPOCH_MS, START_EPOCH_MS + DataFilesStore.FILE_INTERVAL_MS, r -> {
+            bh.consume(r);
+            return true;
+        });
+    }
+}
@@ -0,0 +1,120 @@
+package com.sensortea.cuplogger.benchmarks;
+
+import com.sensortea.cuplogger.DataFilesStore;
+import com.sensortea.cuplogger.SimulatedDevice;
+import com.sensortea.cuplogger.TextFormatWriter;
+import com.sensortea.cuplogger.WriteFlushPolicy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Generates data of a simulated device, see {@link SimulatedDevice}, for benchmarks. Also writes such data into data
+ * files of a base dir, as the server would.
+ * <p>
+ * Run main to generate data for trying things out: {@code <baseDir> <serialNumber> <hours> <linesPerSecond>}.
+ */
+public final class SyntheticData {
+    private static final DateTimeFormatter DIR_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy_MM_dd").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter FILE_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy_MM_dd_HHmmss").withZone(ZoneOffset.UTC);
+
+    private final SimulatedDevice device;
+
+    /**
+     * @see SimulatedDevice#SimulatedDevice(long, int, double, double)
+     */
+    public SyntheticData(long seed, int readingsPerLine, double logLinesRatio, double corruptLinesRatio) {
+        this.device = new SimulatedDevice(seed, readingsPerLine, logLinesRatio, corruptLinesRatio);
+    }
+
+    /**
+     * @return next line as printed by the device, with the line terminator
+     */
+    public String nextLine() {
+        return device.nextLine();
+    }
+
+    public byte[] nextLineBytes() {
+        return device.nextLineBytes();
+    }
+
+    /**
+     * @return bytes of the given number of lines
+     */
+    public byte[] nextLines(int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            byte[] line = nextLineBytes();
+            out.write(line, 0, line.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes lines with the given rate into data files with {@link TextFormatWriter}, as if received at that time.
+     *
+     * @return number of lines written
+     */
+    public long writeDataFiles(String baseDir, String serialNumber, long startEpochMs, long endEpochMs,
+                               int linesPerSecond) throws IOException {
+        long count = 0;
+        try (TextFormatWriter writer = new TextFormatWriter(baseDir, serialNumber, null,
+                new WriteFlushPolicy(1000, 64 * 1024))) {
+            long intervalNanos = 1_000_000_000L / linesPerSecond;
+            for (long nanos = 0; startEpochMs + nanos / 1_000_000 < endEpochMs; nanos += intervalNanos) {
+                byte[] line = nextLineBytes();
+                writer.write(line, line.length, startEpochMs + nanos / 1_000_000);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Creates empty data files for every file interval in the range, e.g. to test finding files over long periods
+     * without using disk space.
+     */
+    public static void createEmptyDataFiles(String baseDir, String serialNumber, long startEpochMs, long endEpochMs)
+            throws IOException {
+        for (long epochMs = startEpochMs; epochMs < endEpochMs; epochMs += DataFilesStore.FILE_INTERVAL_MS) {
+            Instant time = Instant.ofEpochMilli(epochMs);
+            File dir = new File(baseDir + File.separator + DataFilesStore.DATA_DIR + File.separator +
+                    DIR_FORMATTER.format(time) + File.separator + serialNumber);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            File file = new File(dir, FILE_FORMATTER.format(time) + "." + TextFormatWriter.FORMAT);
+            if (!file.exists() && !file.createNewFile()) {
+                throw new IOException("Failed to create " + file);
+            }
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.out.println("Usage: SyntheticData <baseDir> <serialNumber> <hours> <linesPerSecond>");
+            System.exit(1);
+        }
+        long endEpochMs = System.currentTimeMillis();
+        long startEpochMs = endEpochMs - Long.parseLong(args[2]) * 60 * 60 * 1000;
+        long lines = new SyntheticData(System.nanoTime(), 5, 0.1, 0.01)
+                .writeDataFiles(args[0], args[1], startEpochMs, endEpochMs, Integer.parseInt(args[3]));
+        System.out.println("Wrote " + lines + " lines of " + args[1] + " into " + args[0]);
+    }
+}
@@ -0,0 +1,65 @@
+package com.sensortea.cuplogger.benchmarks;
+
+import com.sensortea.cuplogger.TextFormatWriter;
+import com.sensortea.cuplogger.WriteFlushPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing data as received from serial ports, in chunks of different sizes, with the default flush policy (flush
+ * after each write) and with batching.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+    @Param({"16", "256", "4096"})
+    public int chunkSize;
+
+    @Param({"0", "1000"})
+    public long flushIntervalMs;
+
+    private byte[] data;
+    private int offset;
+    private long epochMs;
+    private File baseDir;
+    private TextFormatWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUpData() {
+        data = new SyntheticData(1, 5, 0.1, 0.01).nextLines(10_000);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("cuplogger-write").toFile();
+        writer = new TextFormatWriter(baseDir.getPath(), "SN", null,
+                new WriteFlushPolicy(flushIntervalMs, 64 * 1024));
+        epochMs = 1_700_000_000_000L;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        writer.close();
+        SyntheticData.deleteRecursively(baseDir);
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        if (offset + chunkSize > data.length) {
+            offset = 0;
+        }
+        System.arraycopy(data, offset, chunk, 0, chunkSize);
+        offset += chunkSize;
+        // as if the chunk was read every ms
+        writer.write(chunk, chunkSize, epochMs++);
+    }
+}
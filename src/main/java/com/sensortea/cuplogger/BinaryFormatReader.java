@@ -0,0 +1,174 @@
+package com.sensortea.cuplogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads files written by {@link BinaryFormatWriter}. Blocks outside of requested range are skipped without decoding.
+ */
+public class BinaryFormatReader implements DataReader {
+    private static final Logger LOG = Logger.getLogger(BinaryFormatReader.class.getName());
+    private static final int BLOCK_HEADER_LENGTH = 4 + 8 + 8;
+    private final String baseDir;
+
+    public BinaryFormatReader(String baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    @Override
+    public Iterable<File> findDataFiles(String serialNumber, long startEpochMs, long endEpochMs) {
+        return DataFilesStore.findDataFiles(baseDir, serialNumber, BinaryFormatWriter.FORMAT, startEpochMs, endEpochMs);
+    }
+
+    @Override
+    public void scan(String serialNumber, long startEpochMs, long endEpochMs, RecordConsumer consumer) {
+        long startMs = System.currentTimeMillis();
+
+        int eventsScanned = 0;
+        for (File f : findDataFiles(serialNumber, startEpochMs, endEpochMs)) {
+            int scanned = scanFile(startEpochMs, endEpochMs, consumer, f);
+            if (scanned < 0) {
+                eventsScanned -= scanned;
+                break;
+            }
+            eventsScanned += scanned;
+        }
+        long elapsedMs = System.currentTimeMillis() - startMs;
+        LOG.fine("Scanned: " + eventsScanned + " in " + elapsedMs + "ms. Events per sec: " +
+                String.format("%,2d", ((long) eventsScanned * 1000 / (elapsedMs == 0 ? 1 : elapsedMs))));
+    }
+
+    @Override
+    public boolean scanFile(File file, long startEpochMs, long endEpochMs, RecordConsumer consumer) {
+        return scanFile(startEpochMs, endEpochMs, consumer, file) >= 0;
+    }
+
+    // returns negated number of scanned events if consumer asked to stop
+    private static int scanFile(long startEpochMs, long endEpochMs, RecordConsumer consumer, File file) {
+        int eventsScanned = 0;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.remaining() < 4 || buffer.getInt() != BinaryFormatWriter.MAGIC) {
+                LOG.info("Not a " + BinaryFormatWriter.FORMAT + " file: " + file.getAbsolutePath() + ", skipping.");
+                return 0;
+            }
+            while (buffer.remaining() >= BLOCK_HEADER_LENGTH) {
+                int payloadLength = buffer.getInt();
+                long minEpochMs = buffer.getLong();
+                long maxEpochMs = buffer.getLong();
+                if (payloadLength < 0 || buffer.remaining() < payloadLength) {
+                    // the last block was not fully written
+                    break;
+                }
+                int blockEnd = buffer.position() + payloadLength;
+                if (maxEpochMs >= startEpochMs && minEpochMs < endEpochMs) {
+                    DataRecord[] records = decodeBlock(buffer, minEpochMs);
+                    eventsScanned += records.length;
+                    for (DataRecord r : records) {
+                        if (r.epochMs >= startEpochMs && r.epochMs < endEpochMs) {
+                            if (!consumer.acceptAndContinue(r)) {
+                                return -eventsScanned;
+                            }
+                        }
+                    }
+                }
+                buffer.position(blockEnd);
+            }
+        } catch (IOException | RuntimeException e) {
+            // just skipping the rest of the file; todo: maybe propagate to user somehow?
+            LOG.log(Level.INFO, "Error reading file: " + file.getAbsolutePath() + ", skipping.", e);
+        }
+        return eventsScanned;
+    }
+
+    static DataRecord[] decodeBlock(ByteBuffer in, long minEpochMs) {
+        int count = (int) readVarLong(in);
+        String[] dictionary = new String[(int) readVarLong(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readString(in);
+        }
+
+        DataRecord[] records = new DataRecord[count];
+        long epochMs = minEpochMs;
+        for (int i = 0; i < count; i++) {
+            records[i] = new DataRecord();
+            epochMs += unzigzag(readVarLong(in));
+            records[i].epochMs = epochMs;
+        }
+        int parsedCount = 0;
+        for (DataRecord r : records) {
+            if (in.get() == BinaryFormatWriter.KIND_PARSED) {
+                r.parsedEvent = new DataRecord.Event();
+                parsedCount++;
+            }
+        }
+        DataRecord.Event[] events = new DataRecord.Event[parsedCount];
+        int eventIdx = 0;
+        for (DataRecord r : records) {
+            if (r.parsedEvent == null) {
+                r.rawText = readString(in);
+            } else {
+                events[eventIdx++] = r.parsedEvent;
+            }
+        }
+        for (DataRecord.Event e : events) {
+            e.programId = dictionary[(int) readVarLong(in)];
+        }
+        for (DataRecord.Event e : events) {
+            e.programVersion = dictionary[(int) readVarLong(in)];
+        }
+        for (DataRecord.Event e : events) {
+            e.deviceConfig = dictionary[(int) readVarLong(in)];
+        }
+        for (DataRecord.Event e : events) {
+            e.timeDelta = unzigzag(readVarLong(in));
+        }
+        for (DataRecord.Event e : events) {
+            e.logMessage = readString(in);
+        }
+        for (DataRecord.Event e : events) {
+            int readingsCount = (int) readVarLong(in);
+            e.readingIds = new String[readingsCount];
+            e.readingValues = new double[readingsCount];
+        }
+        for (DataRecord.Event e : events) {
+            for (int i = 0; i < e.readingIds.length; i++) {
+                e.readingIds[i] = dictionary[(int) readVarLong(in)];
+            }
+        }
+        for (DataRecord.Event e : events) {
+            for (int i = 0; i < e.readingValues.length; i++) {
+                e.readingValues[i] = in.getDouble();
+            }
+        }
+        return records;
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
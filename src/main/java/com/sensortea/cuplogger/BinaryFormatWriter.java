@@ -0,0 +1,307 @@
+package com.sensortea.cuplogger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact alternative to {@link TextFormatWriter}. Lines are parsed as they are received and stored in blocks,
+ * column by column, so that repeated values cost next to nothing.
+ *
+ * <pre>
+ * file:  magic(int) block*
+ * block: payloadLength(int) minEpochMs(long) maxEpochMs(long) payload
+ * payload:
+ *   recordsCount(varint)
+ *   dictionarySize(varint) string*                  - programIds, programVersions, deviceConfigs, readingIds
+ *   epochMs(zigzag varlong)*                        - delta to the previous record, first one to minEpochMs
+ *   kind(byte)*                                     - KIND_RAW or KIND_PARSED
+ *   rawText(string)*                                - raw records only
+ *   programId(varint)* programVersion(varint)* deviceConfig(varint)*  - dictionary codes, parsed records only
+ *   timeDelta(zigzag varlong)* logMessage(string)* readingsCount(varint)*
+ *   readingId(varint)*                              - dictionary codes of all readings, flattened
+ *   readingValue(double)*                           - all readings, flattened
+ * string: length(varint) utf8Bytes
+ * </pre>
+ *
+ * Records are written to the file when a block fills up or gets older than MAX_BLOCK_AGE_MS, i.e. the data
+ * becomes visible to readers a bit later than with the text format. Blocks are self-contained, so a file
+ * truncated by a crash is still readable up to the last complete block.
+ */
+public class BinaryFormatWriter implements DataWriter {
+    public static final String FORMAT = "clb";
+    static final int MAGIC = 0x434C4231; // "CLB1"
+    static final byte KIND_RAW = 0;
+    static final byte KIND_PARSED = 1;
+    private static final int MAX_BLOCK_RECORDS = 1024;
+    private static final long MAX_BLOCK_AGE_MS = 1000;
+    // line is kept after room for "<epochMs>,", to parse it as stored by text format without copying
+    private static final int LINE_START = 20;
+
+    private final String baseDir;
+    private final String serialNumber;
+    // null if not needed
+    private final LiveRecords liveRecords;
+    private final WriterMetrics metrics;
+    private long curFileIntervalStartEpochMs = 0;
+    private DataOutputStream outputStream;
+    private final TextLineParser parser = new TextLineParser();
+
+    private final List<DataRecord> block = new ArrayList<>(MAX_BLOCK_RECORDS);
+    private long blockStartEpochMs;
+
+    private boolean newLineStart = true;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    // true after '\r': the rest of the line is ignored
+    private boolean lineEnded;
+    private long lineEpochMs;
+
+    public BinaryFormatWriter(String baseDir, String serialNumber, LiveRecords liveRecords) {
+        this.baseDir = baseDir;
+        this.serialNumber = serialNumber;
+        this.liveRecords = liveRecords;
+        this.metrics = new WriterMetrics(serialNumber);
+    }
+
+    @Override
+    public void write(byte[] data, int length, long epochMs) throws IOException {
+        if (outputStream == null) {
+            createNewFile(epochMs);
+        } else if (shouldCreateNewFile(epochMs)) {
+            writeBlock();
+            createNewFile(epochMs);
+        }
+        // Same as in text format: all lines started in given data get the same timestamp
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                if (!newLineStart) {
+                    addLine();
+                }
+                newLineStart = true;
+            } else {
+                if (newLineStart) {
+                    lineEpochMs = epochMs;
+                    lineLength = 0;
+                    lineEnded = false;
+                    newLineStart = false;
+                }
+                if (data[i] == '\r') {
+                    // text format readers see line break here, and the rest of the line gets dropped
+                    lineEnded = true;
+                }
+                if (!lineEnded) {
+                    if (LINE_START + lineLength == line.length) {
+                        byte[] newLine = new byte[line.length * 2];
+                        System.arraycopy(line, 0, newLine, 0, line.length);
+                        line = newLine;
+                    }
+                    line[LINE_START + lineLength++] = data[i];
+                }
+            }
+        }
+        if (!block.isEmpty() && epochMs - blockStartEpochMs >= MAX_BLOCK_AGE_MS) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void flushIfDue() throws IOException {
+        if (!block.isEmpty() && System.currentTimeMillis() - blockStartEpochMs >= MAX_BLOCK_AGE_MS) {
+            writeBlock();
+        }
+    }
+
+    private void addLine() throws IOException {
+        // keeping exactly the same interpretation of the line as text format would give
+        int from = LINE_START - 1;
+        line[from] = ',';
+        long epochMs = lineEpochMs;
+        do {
+            line[--from] = (byte) ('0' + epochMs % 10);
+            epochMs /= 10;
+        } while (epochMs > 0);
+        DataRecord record = new DataRecord();
+        if (!parser.parse(line, from, LINE_START + lineLength, record)) {
+            return;
+        }
+        if (liveRecords != null) {
+            liveRecords.publish(serialNumber, record);
+        }
+        if (block.isEmpty()) {
+            blockStartEpochMs = record.epochMs;
+        }
+        block.add(record);
+        if (block.size() >= MAX_BLOCK_RECORDS) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (block.isEmpty()) {
+            return;
+        }
+        long minEpochMs = Long.MAX_VALUE;
+        long maxEpochMs = Long.MIN_VALUE;
+        for (DataRecord r : block) {
+            minEpochMs = Math.min(minEpochMs, r.epochMs);
+            maxEpochMs = Math.max(maxEpochMs, r.epochMs);
+        }
+        byte[] payload = encodeBlock(block, minEpochMs);
+        long startNanos = System.nanoTime();
+        outputStream.writeInt(payload.length);
+        outputStream.writeLong(minEpochMs);
+        outputStream.writeLong(maxEpochMs);
+        outputStream.write(payload);
+        outputStream.flush();
+        metrics.flushTime.record(System.nanoTime() - startNanos);
+        metrics.bytesWritten.add(4 + 8 + 8 + payload.length);
+        block.clear();
+    }
+
+    static byte[] encodeBlock(List<DataRecord> records, long minEpochMs) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        ByteArrayOutputStream columnsBytes = new ByteArrayOutputStream(records.size() * 32);
+        DataOutputStream columns = new DataOutputStream(columnsBytes);
+
+        long prevEpochMs = minEpochMs;
+        for (DataRecord r : records) {
+            writeVarLong(columns, zigzag(r.epochMs - prevEpochMs));
+            prevEpochMs = r.epochMs;
+        }
+        for (DataRecord r : records) {
+            columns.writeByte(r.parsedEvent == null ? KIND_RAW : KIND_PARSED);
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent == null) {
+                writeString(columns, r.rawText);
+            }
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                writeVarLong(columns, code(dictionary, r.parsedEvent.programId));
+            }
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                writeVarLong(columns, code(dictionary, r.parsedEvent.programVersion));
+            }
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                writeVarLong(columns, code(dictionary, r.parsedEvent.deviceConfig));
+            }
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                writeVarLong(columns, zigzag(r.parsedEvent.timeDelta));
+            }
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                writeString(columns, r.parsedEvent.logMessage);
+            }
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                writeVarLong(columns, r.parsedEvent.readingIds.length);
+            }
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                for (String readingId : r.parsedEvent.readingIds) {
+                    writeVarLong(columns, code(dictionary, readingId));
+                }
+            }
+        }
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                for (double value : r.parsedEvent.readingValues) {
+                    columns.writeDouble(value);
+                }
+            }
+        }
+        columns.flush();
+
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(columnsBytes.size() + 256);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        writeVarLong(payload, records.size());
+        writeVarLong(payload, dictionary.size());
+        for (String s : dictionary.keySet()) {
+            writeString(payload, s);
+        }
+        columnsBytes.writeTo(payload);
+        payload.flush();
+        return payloadBytes.toByteArray();
+    }
+
+    private static int code(Map<String, Integer> dictionary, String value) {
+        Integer code = dictionary.get(value);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.put(value, code);
+        }
+        return code;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryFormatWriter{" + "baseDir='" + baseDir + '\'' +
+                ", serialNumber='" + serialNumber + '\'' +
+                ", curFileIntervalStartEpochMs=" + curFileIntervalStartEpochMs +
+                '}';
+    }
+
+    private boolean shouldCreateNewFile(long epochMs) {
+        return epochMs - curFileIntervalStartEpochMs > DataFilesStore.FILE_INTERVAL_MS;
+    }
+
+    private void createNewFile(long epochMs) throws IOException {
+        if (outputStream != null) {
+            outputStream.close();
+        }
+
+        File file = DataFilesStore.newDataFile(epochMs, FORMAT, baseDir, serialNumber);
+        curFileIntervalStartEpochMs = (epochMs / DataFilesStore.FILE_INTERVAL_MS) * DataFilesStore.FILE_INTERVAL_MS;
+
+        boolean newFile = !file.exists() || file.length() == 0;
+        outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        metrics.fileRolls.inc();
+        if (newFile) {
+            outputStream.writeInt(MAGIC);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (outputStream != null) {
+            try {
+                writeBlock();
+            } finally {
+                outputStream.close();
+                outputStream = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.sensortea.cuplogger;
+
+public class CacheStats {
+    public long hits;
+    public long misses;
+    public long evictions;
+    public long entries;
+    // estimated
+    public long bytes;
+    public long maxBytes;
+}
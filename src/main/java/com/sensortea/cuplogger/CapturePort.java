@@ -0,0 +1,22 @@
+package com.sensortea.cuplogger;
+
+/**
+ * Port that data is captured from, e.g. a serial port or a simulated one. Used by a single thread at a time, see
+ * {@link SerialReaderTask}.
+ */
+interface CapturePort {
+    /**
+     * @param blockingReads if true, reads wait for the data up to readTimeoutMs, otherwise they return at once
+     * @return false if the port can't be opened
+     */
+    boolean open(int baudRate, boolean blockingReads, int readTimeoutMs);
+
+    boolean isOpen();
+
+    /**
+     * @return bytes read into buffer, 0 if there was no data, -1 if the port can't be read anymore
+     */
+    int read(byte[] buffer, int length);
+
+    void close();
+}
@@ -0,0 +1,146 @@
+package com.sensortea.cuplogger;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer single-consumer queue of timestamped chunks of data read from a port, so that reading
+ * the port is never blocked by writing to disk. The producer is the port reading task, the consumer is
+ * {@link CaptureWriterStage}. Chunks that don't fit are dropped and counted: the port is still read, so that its
+ * buffer doesn't overflow, and writing catches up when the disk does.
+ */
+final class CaptureQueue {
+    static final int MAX_CHUNKS = 4096;
+
+    final String serialNumber;
+    // used by the consumer only
+    final DataWriter writer;
+    private final Counters counters;
+    private final byte[] bytes;
+    private final long[] chunkEpochMs = new long[MAX_CHUNKS];
+    private final int[] chunkLengths = new int[MAX_CHUNKS];
+    // positions only grow, index in the arrays is position & (length - 1)
+    private final AtomicLong chunksHead = new AtomicLong();
+    private final AtomicLong chunksTail = new AtomicLong();
+    private final AtomicLong bytesHead = new AtomicLong();
+    // written by the producer only
+    private final AtomicLong bytesTail = new AtomicLong();
+    // set by the producer after its last offer, or by the stage when it shuts down
+    private volatile boolean closed;
+    // set by the consumer when data can't be written anymore
+    private volatile boolean failed;
+
+    /**
+     * Kept across restarts of the port capture.
+     */
+    static final class Counters {
+        final AtomicLong chunks = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong droppedChunks = new AtomicLong();
+        final AtomicLong droppedBytes = new AtomicLong();
+        final AtomicLong maxDepthBytes = new AtomicLong();
+        volatile CaptureQueue current;
+    }
+
+    /**
+     * @param capacityBytes must be a power of 2
+     */
+    CaptureQueue(String serialNumber, DataWriter writer, int capacityBytes, Counters counters) {
+        this.serialNumber = serialNumber;
+        this.writer = writer;
+        this.bytes = new byte[capacityBytes];
+        this.counters = counters;
+    }
+
+    /**
+     * Called by the producer.
+     *
+     * @return true if the queue was empty, i.e. the consumer may need waking up
+     */
+    boolean offer(byte[] data, int length, long epochMs) {
+        long chunksTailPos = chunksTail.get();
+        long head = chunksHead.get();
+        long bytesTailPos = bytesTail.get();
+        long depthBytes = bytesTailPos - bytesHead.get();
+        // when closed by the stage, so that it's drained
+        if (closed || chunksTailPos - head == MAX_CHUNKS || depthBytes + length > bytes.length) {
+            counters.droppedChunks.incrementAndGet();
+            counters.droppedBytes.addAndGet(length);
+            return false;
+        }
+        int from = (int) (bytesTailPos & (bytes.length - 1));
+        int firstPart = Math.min(length, bytes.length - from);
+        System.arraycopy(data, 0, bytes, from, firstPart);
+        System.arraycopy(data, firstPart, bytes, 0, length - firstPart);
+        bytesTail.lazySet(bytesTailPos + length);
+        int idx = (int) (chunksTailPos & (MAX_CHUNKS - 1));
+        chunkEpochMs[idx] = epochMs;
+        chunkLengths[idx] = length;
+        // publishes the chunk to the consumer
+        chunksTail.lazySet(chunksTailPos + 1);
+        counters.chunks.incrementAndGet();
+        counters.bytes.addAndGet(length);
+        if (depthBytes + length > counters.maxDepthBytes.get()) {
+            counters.maxDepthBytes.set(depthBytes + length);
+        }
+        return chunksTailPos == head;
+    }
+
+    /**
+     * Called by the consumer: writes up to maxChunks chunks.
+     *
+     * @param buffer at least as long as the longest chunk
+     * @return number of chunks written
+     */
+    int drainTo(byte[] buffer, int maxChunks) throws IOException {
+        long head = chunksHead.get();
+        int count = (int) Math.min(maxChunks, chunksTail.get() - head);
+        long bytesHeadPos = bytesHead.get();
+        for (int i = 0; i < count; i++, head++) {
+            int idx = (int) (head & (MAX_CHUNKS - 1));
+            int length = chunkLengths[idx];
+            // read before the slot is freed, the producer can re-use it right after that
+            long epochMs = chunkEpochMs[idx];
+            int from = (int) (bytesHeadPos & (bytes.length - 1));
+            int firstPart = Math.min(length, bytes.length - from);
+            System.arraycopy(bytes, from, buffer, 0, firstPart);
+            System.arraycopy(bytes, 0, buffer, firstPart, length - firstPart);
+            bytesHeadPos += length;
+            // frees the space for the producer
+            bytesHead.lazySet(bytesHeadPos);
+            chunksHead.lazySet(head + 1);
+            writer.write(buffer, length, epochMs);
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return chunksHead.get() == chunksTail.get();
+    }
+
+    long depthBytes() {
+        // reading head first, so that it is never ahead of the tail
+        long head = bytesHead.get();
+        return bytesTail.get() - head;
+    }
+
+    int capacityBytes() {
+        return bytes.length;
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void fail() {
+        failed = true;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,13 @@
+package com.sensortea.cuplogger;
+
+public class CaptureQueueStats {
+    // totals since the server start
+    public long chunks;
+    public long bytes;
+    public long droppedChunks;
+    public long droppedBytes;
+    public long maxDepthBytes;
+    // of the current capture, 0 if the port is not captured
+    public long depthBytes;
+    public long capacityBytes;
+}
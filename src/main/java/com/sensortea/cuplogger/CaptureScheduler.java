@@ -0,0 +1,76 @@
+package com.sensortea.cuplogger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link SerialReaderTask}s. Configured with CAPTURE_SCHEDULER env variable:
+ * <ul>
+ * <li>threads (default): a thread per port, reads wait for the data, so it is timestamped on arrival</li>
+ * <li>virtual: a virtual thread per port (Java 21+, falls back to threads), ports are polled every few ms, every
+ *     1 ms while they have data</li>
+ * <li>reactor: CAPTURE_THREADS threads poll all ports same way, for many ports on few threads</li>
+ * </ul>
+ * Returned futures are done when the task stops: cancel them to stop capturing.
+ */
+interface CaptureScheduler {
+    String CAPTURE_SCHEDULER_ENV_VARIABLE = "CAPTURE_SCHEDULER";
+    String CAPTURE_THREADS_ENV_VARIABLE = "CAPTURE_THREADS";
+
+    /**
+     * @param onStopped called once the task stopped, on its own or cancelled, e.g. to restart it
+     */
+    Future<?> start(SerialReaderTask task, Runnable onStopped);
+
+    /**
+     * @return true if tasks must not write data themselves, e.g. because they share threads
+     */
+    default boolean needsWriterStage() {
+        return false;
+    }
+
+    static CaptureScheduler configured() {
+        Logger log = Logger.getLogger(CaptureScheduler.class.getName());
+        String configured = System.getenv(CAPTURE_SCHEDULER_ENV_VARIABLE);
+        if ("virtual".equals(configured)) {
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            if (executor != null) {
+                return new ThreadPerPortScheduler(executor, false);
+            }
+            log.warning("Virtual threads are not available in Java " + System.getProperty("java.version") +
+                    ", will use a thread per port.");
+        } else if ("reactor".equals(configured)) {
+            int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+            String configuredThreads = System.getenv(CAPTURE_THREADS_ENV_VARIABLE);
+            if (configuredThreads != null && !configuredThreads.isEmpty()) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(configuredThreads));
+                } catch (NumberFormatException e) {
+                    log.warning("Bad " + CAPTURE_THREADS_ENV_VARIABLE + " '" + configuredThreads + "', will use " +
+                            threads);
+                }
+            }
+            return new ReactorCaptureScheduler(threads);
+        } else if (configured != null && !configured.isEmpty() && !"threads".equals(configured)) {
+            log.warning("Bad " + CAPTURE_SCHEDULER_ENV_VARIABLE + " '" + configured +
+                    "', will use a thread per port.");
+        }
+        return new ThreadPerPortScheduler(Executors.newCachedThreadPool(), true);
+    }
+
+    // the code is built for Java 8, so looking it up
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            Logger.getLogger(CaptureScheduler.class.getName()).log(Level.WARNING,
+                    "Failed to create virtual threads", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.sensortea.cuplogger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes data of all captured ports on a single thread, draining their {@link CaptureQueue}s in batches, so that
+ * slow disk doesn't block reading the ports. Each port gets a queue of CAPTURE_QUEUE_KB env variable (256 by
+ * default), 0 disables queues: data is then written by the port reading task.
+ * <p>
+ * On JVM shutdown, or when {@link #close()}d, the stage stops taking data, writes what's queued and closes the
+ * writers, e.g. so that blocks that binary writers keep in memory are not lost.
+ */
+class CaptureWriterStage implements Runnable {
+    private static final Logger LOG = Logger.getLogger(CaptureWriterStage.class.getName());
+    public static final String CAPTURE_QUEUE_KB_ENV_VARIABLE = "CAPTURE_QUEUE_KB";
+    private static final int DEFAULT_CAPTURE_QUEUE_KB = 256;
+    // so that a busy port doesn't hold up the others
+    private static final int MAX_BATCH_CHUNKS = 256;
+    private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final int queueCapacityBytes;
+    private final List<CaptureQueue> queues = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, CaptureQueue.Counters> counters = new ConcurrentHashMap<>();
+    private final Thread thread = new Thread(this, "capture-writer");
+    // fits the largest chunk
+    private final byte[] buffer = new byte[SerialReaderTask.READ_BUFFER_SIZE];
+    // guarded by this, so that no queue is registered after all were closed
+    private volatile boolean stopping;
+
+    CaptureWriterStage(int queueCapacityBytes) {
+        this.queueCapacityBytes = queueCapacityBytes;
+        // the JVM doesn't wait for it, the shutdown hook does
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "capture-writer-shutdown"));
+    }
+
+    /**
+     * @param required if true, the stage is created with the default queue size even if queues are disabled
+     * @return stage with configured queue size, or null if disabled
+     */
+    static CaptureWriterStage configured(boolean required) {
+        int kb = DEFAULT_CAPTURE_QUEUE_KB;
+        String configured = System.getenv(CAPTURE_QUEUE_KB_ENV_VARIABLE);
+        if (configured != null && !configured.isEmpty()) {
+            try {
+                kb = Integer.parseInt(configured);
+            } catch (NumberFormatException e) {
+                LOG.warning("Bad " + CAPTURE_QUEUE_KB_ENV_VARIABLE + " '" + configured + "', will use " + kb);
+            }
+        }
+        if (kb <= 0) {
+            if (!required) {
+                return null;
+            }
+            kb = DEFAULT_CAPTURE_QUEUE_KB;
+            LOG.warning("Capture queues can't be disabled with " +
+                    CaptureScheduler.CAPTURE_SCHEDULER_ENV_VARIABLE + " '" +
+                    System.getenv(CaptureScheduler.CAPTURE_SCHEDULER_ENV_VARIABLE) + "', will use " + kb + " KB");
+        }
+        // power of 2 that fits at least the largest chunk
+        int bytes = Integer.highestOneBit(kb * 1024 - 1) << 1;
+        return new CaptureWriterStage(Math.max(bytes, SerialReaderTask.READ_BUFFER_SIZE));
+    }
+
+    /**
+     * @param writer is used and closed by the stage from now on
+     * @return queue for the data, failed if the stage is closed
+     */
+    CaptureQueue register(String serialNumber, DataWriter writer) {
+        CaptureQueue.Counters portCounters = counters.computeIfAbsent(serialNumber, k -> new CaptureQueue.Counters());
+        CaptureQueue queue = new CaptureQueue(serialNumber, writer, queueCapacityBytes, portCounters);
+        synchronized (this) {
+            if (!stopping) {
+                portCounters.current = queue;
+                queues.add(queue);
+                return queue;
+            }
+        }
+        queue.close();
+        queue.fail();
+        closeWriter(queue);
+        return queue;
+    }
+
+    /**
+     * Marks all queues closed, writes the data they hold and closes their writers. Waits up to CLOSE_TIMEOUT_MS for
+     * that. New queues are failed from now on.
+     */
+    void close() {
+        synchronized (this) {
+            if (stopping) {
+                return;
+            }
+            stopping = true;
+            for (CaptureQueue queue : queues) {
+                queue.close();
+            }
+        }
+        wakeUp();
+        try {
+            thread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            LOG.warning("Data of " + queues.size() + " ports was not written in " + CLOSE_TIMEOUT_MS + "ms.");
+        }
+    }
+
+    void wakeUp() {
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        // once stopping, all queues are closed, and are removed when drained
+        while (!stopping || !queues.isEmpty()) {
+            boolean wrote = false;
+            for (CaptureQueue queue : queues) {
+                try {
+                    if (queue.drainTo(buffer, MAX_BATCH_CHUNKS) > 0) {
+                        wrote = true;
+                    } else if (queue.isClosed() && queue.isEmpty()) {
+                        // closed is checked first: nothing is added after that, except for a chunk that was
+                        // being offered when the stage closed the queue on shutdown
+                        remove(queue);
+                    } else {
+                        queue.writer.flushIfDue();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOG.log(Level.INFO, "Failed to write data of " + queue.serialNumber +
+                            ", will stop capturing it (it should resume automatically).", e);
+                    queue.fail();
+                    remove(queue);
+                }
+            }
+            if (!wrote) {
+                LockSupport.parkNanos(this, IDLE_PARK_NS);
+            }
+        }
+    }
+
+    private void remove(CaptureQueue queue) {
+        queues.remove(queue);
+        closeWriter(queue);
+    }
+
+    private static void closeWriter(CaptureQueue queue) {
+        try {
+            queue.writer.close();
+        } catch (IOException e) {
+            // nothing to do really here
+            LOG.log(Level.INFO, "Failed to close writer " + queue.writer, e);
+        }
+    }
+
+    Map<String, CaptureQueueStats> getStats() {
+        Map<String, CaptureQueueStats> result = new TreeMap<>();
+        for (Map.Entry<String, CaptureQueue.Counters> entry : counters.entrySet()) {
+            CaptureQueue.Counters c = entry.getValue();
+            CaptureQueueStats stats = new CaptureQueueStats();
+            stats.chunks = c.chunks.get();
+            stats.bytes = c.bytes.get();
+            stats.droppedChunks = c.droppedChunks.get();
+            stats.droppedBytes = c.droppedBytes.get();
+            stats.maxDepthBytes = c.maxDepthBytes.get();
+            CaptureQueue current = c.current;
+            if (current != null && queues.contains(current)) {
+                stats.depthBytes = current.depthBytes();
+                stats.capacityBytes = current.capacityBytes();
+            }
+            result.put(entry.getKey(), stats);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+package com.sensortea.cuplogger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Small summary of a data file: time ranges that have records and program/version/config transitions. Kept in a
+ * sidecar file next to the data file (same name + SUFFIX), so that the timeline of a long period can be drawn
+ * without reading the data. Text, one item per line:
+ * <pre>
+ * r,&lt;fromEpochMs&gt;,&lt;toEpochMs&gt;
+ * c,&lt;epochMs&gt;,&lt;programId&gt;,&lt;programVersion&gt;,&lt;deviceConfig&gt;
+ * </pre>
+ * Records closer than MAX_GAP_MS to each other are in the same range. The first "c" line is the config of the first
+ * parsed record, every next one is a change.
+ */
+public class DataFileSummary implements DataReader.RecordConsumer {
+    private static final Logger LOG = Logger.getLogger(DataFileSummary.class.getName());
+    public static final String SUFFIX = ".sum";
+    static final long MAX_GAP_MS = 5000;
+
+    // [from, to] pairs
+    private final List<long[]> ranges = new ArrayList<>();
+    private final List<Config> configs = new ArrayList<>();
+
+    static final class Config {
+        final long epochMs;
+        final String programId;
+        final String programVersion;
+        final String deviceConfig;
+
+        Config(long epochMs, String programId, String programVersion, String deviceConfig) {
+            this.epochMs = epochMs;
+            this.programId = programId;
+            this.programVersion = programVersion;
+            this.deviceConfig = deviceConfig;
+        }
+
+        boolean sameAs(Config other) {
+            return programId.equals(other.programId) &&
+                    programVersion.equals(other.programVersion) &&
+                    deviceConfig.equals(other.deviceConfig);
+        }
+    }
+
+    List<long[]> getRanges() {
+        return ranges;
+    }
+
+    List<Config> getConfigs() {
+        return configs;
+    }
+
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    @Override
+    public boolean acceptAndContinue(DataRecord r) {
+        add(r.epochMs, r.parsedEvent);
+        return true;
+    }
+
+    void add(long epochMs, DataRecord.Event event) {
+        long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && epochMs >= last[0] && epochMs <= last[1] + MAX_GAP_MS) {
+            last[1] = Math.max(last[1], epochMs);
+        } else {
+            ranges.add(new long[]{epochMs, epochMs});
+        }
+        if (event != null) {
+            Config lastConfig = configs.isEmpty() ? null : configs.get(configs.size() - 1);
+            if (lastConfig == null ||
+                    !Objects.equals(lastConfig.programId, event.programId) ||
+                    !Objects.equals(lastConfig.programVersion, event.programVersion) ||
+                    !Objects.equals(lastConfig.deviceConfig, event.deviceConfig)) {
+                configs.add(new Config(epochMs, event.programId, event.programVersion, event.deviceConfig));
+            }
+        }
+    }
+
+    static File summaryFile(File dataFile) {
+        return new File(dataFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return summary of a given data file, or null if there's none or it can't be read
+     */
+    static DataFileSummary load(File dataFile) {
+        File file = summaryFile(dataFile);
+        if (!file.exists()) {
+            return null;
+        }
+        DataFileSummary summary = new DataFileSummary();
+        try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",", -1);
+                if (parts[0].equals("r")) {
+                    summary.ranges.add(new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+                } else if (parts[0].equals("c")) {
+                    summary.configs.add(new Config(Long.parseLong(parts[1]), parts[2], parts[3], parts[4]));
+                }
+            }
+            return summary;
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.INFO, "Failed to read summary " + file.getAbsolutePath() + ", will scan data file.", e);
+            return null;
+        }
+    }
+
+    void write(File dataFile) throws IOException {
+        File file = summaryFile(dataFile);
+        // writing to temp file first, so that readers never see partially written file
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+            for (long[] range : ranges) {
+                writer.write("r," + range[0] + "," + range[1] + "\n");
+            }
+            for (Config c : configs) {
+                writer.write("c," + c.epochMs + "," + c.programId + "," + c.programVersion + "," + c.deviceConfig + "\n");
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static void delete(File dataFile) {
+        File file = summaryFile(dataFile);
+        if (file.exists() && !file.delete()) {
+            LOG.warning("Failed to delete stale summary " + file.getAbsolutePath());
+        }
+    }
+}
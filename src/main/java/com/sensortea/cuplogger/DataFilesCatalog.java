@@ -0,0 +1,122 @@
+package com.sensortea.cuplogger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * In-memory list of data files of a base dir: file start times, sorted, for each serial number and format.
+ * Built once by walking the data dir, then kept up to date by {@link DataFilesStore#newDataFile}, so that
+ * finding files for a time range is a binary search instead of listing directories.
+ * <p>
+ * NOTE: files added or removed by other processes are not noticed.
+ */
+class DataFilesCatalog {
+    private static final Logger LOG = Logger.getLogger(DataFilesCatalog.class.getName());
+    // serialNumber -> format -> files
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Series>> series = new ConcurrentHashMap<>();
+
+    static DataFilesCatalog build(File dataDir) {
+        long startMs = System.currentTimeMillis();
+        DataFilesCatalog catalog = new DataFilesCatalog();
+        int filesCount = 0;
+        File[] directories = dataDir.listFiles(File::isDirectory);
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] serialDirs = directory.listFiles(File::isDirectory);
+                if (serialDirs == null) {
+                    continue;
+                }
+                for (File serialDir : serialDirs) {
+                    File[] files = serialDir.listFiles(File::isFile);
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File file : files) {
+                        long fileEpochMs = DataFilesStore.parseFileEpochMs(file.getName());
+                        if (fileEpochMs == Long.MIN_VALUE) {
+                            continue;
+                        }
+                        catalog.add(serialDir.getName(), DataFilesStore.getFormat(file.getName()), fileEpochMs, file);
+                        filesCount++;
+                    }
+                }
+            }
+        }
+        LOG.info("Found " + filesCount + " data files in " + dataDir + " in " +
+                (System.currentTimeMillis() - startMs) + "ms");
+        return catalog;
+    }
+
+    void add(String serialNumber, String format, long fileEpochMs, File file) {
+        series.computeIfAbsent(serialNumber, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(format, k -> new Series())
+                .add(fileEpochMs, file);
+    }
+
+    Set<String> serialNumbers() {
+        return series.keySet();
+    }
+
+    /**
+     * @return files with start time in [fromEpochMs, toEpochMs], sorted by start time
+     */
+    List<File> find(String serialNumber, String format, long fromEpochMs, long toEpochMs) {
+        ConcurrentHashMap<String, Series> formats = series.get(serialNumber);
+        Series s = formats == null ? null : formats.get(format);
+        return s == null ? new ArrayList<>() : s.find(fromEpochMs, toEpochMs);
+    }
+
+    private static class Series {
+        private long[] epochs = new long[16];
+        private File[] files = new File[16];
+        private int size;
+
+        synchronized void add(long fileEpochMs, File file) {
+            int idx = firstAfter(fileEpochMs);
+            for (int i = idx - 1; i >= 0 && epochs[i] == fileEpochMs; i--) {
+                if (files[i].equals(file)) {
+                    // re-opened for append
+                    return;
+                }
+            }
+            if (size == epochs.length) {
+                epochs = Arrays.copyOf(epochs, size * 2);
+                files = Arrays.copyOf(files, size * 2);
+            }
+            // mostly it's appending to the end
+            System.arraycopy(epochs, idx, epochs, idx + 1, size - idx);
+            System.arraycopy(files, idx, files, idx + 1, size - idx);
+            epochs[idx] = fileEpochMs;
+            files[idx] = file;
+            size++;
+        }
+
+        synchronized List<File> find(long fromEpochMs, long toEpochMs) {
+            List<File> result = new ArrayList<>();
+            for (int i = firstAfter(fromEpochMs - 1); i < size && epochs[i] <= toEpochMs; i++) {
+                result.add(files[i]);
+            }
+            return result;
+        }
+
+        // index of the first entry with epoch greater than given one
+        private int firstAfter(long epochMs) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (epochs[mid] <= epochMs) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -2,9 +2,11 @@ package com.sensortea.cuplogger;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.*;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Data store structure:
 data
@@ -29,19 +31,28 @@ public class DataFilesStore {
     public static final String DATA_DIR = "data";
     // NOTE: doesn't mean there's one file per interval; also doesn't mean filename time starts at interval start
     public static final int FILE_INTERVAL_MS = 1000 * 60 * 10;
+    static final long CLOSED_FILE_MARGIN_MS = 10 * 1000;
     private static final String FILE_PREFIX_DATE_FORMAT = "yyyy_MM_dd_HHmmss";
     private static final String DIR_DATE_FORMAT = "yyyy_MM_dd";
+    private static final DateTimeFormatter FILE_PREFIX_FORMATTER =
+            DateTimeFormatter.ofPattern(FILE_PREFIX_DATE_FORMAT).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter DIR_FORMATTER =
+            DateTimeFormatter.ofPattern(DIR_DATE_FORMAT).withZone(ZoneOffset.UTC);
+
+    // baseDir -> catalog, built on first use
+    private static final ConcurrentHashMap<String, DataFilesCatalog> CATALOGS = new ConcurrentHashMap<>();
 
     public static File newDataFile(long createTimeEpochMs, String format,
                                    String baseDir, String serialNumber) throws IOException {
-        Date date = new Date(createTimeEpochMs);
-        SimpleDateFormat df = getDirDateFormat();
-        String dateFolder = df.format(date);
+        Instant time = Instant.ofEpochMilli(createTimeEpochMs);
+        String dateFolder = DIR_FORMATTER.format(time);
         String filePath = getDataDirPath(baseDir) + File.separator + dateFolder + File.separator + serialNumber;
         FileCheckUtil.ensureDirectoryExistsAndUsable(filePath);
         File directory = new File(filePath);
-        String timestamp = getFilePrefixDateFormat().format(date);
-        return new File(directory, timestamp + "." + format);
+        String timestamp = FILE_PREFIX_FORMATTER.format(time);
+        File file = new File(directory, timestamp + "." + format);
+        getCatalog(baseDir).add(serialNumber, format, (createTimeEpochMs / 1000) * 1000, file);
+        return file;
     }
 
     public static Iterable<File> findDataFiles(String baseDir, String serialNumber,
@@ -52,61 +63,67 @@ public class DataFilesStore {
                                 // file can contain additional DataStoreFormat.FILE_INTERVAL_MS - 1 range of points
                                 + DataFilesStore.FILE_INTERVAL_MS - 1;
 
-        SimpleDateFormat dirFmt = getDirDateFormat();
-        String startDir = dirFmt.format(new Date(fileStartEpochMs));
-        String endDir = dirFmt.format(new Date(fileEndEpochMs));
-        SimpleDateFormat fileFmt = getFilePrefixDateFormat();
-        String startFile = fileFmt.format(new Date(fileStartEpochMs));
-        String endFile = fileFmt.format(new Date(fileEndEpochMs));
-
-        List<File> result = new ArrayList<>();
-        File dataDir = DataFilesStore.getDataDir(baseDir);
-        File[] directories = dataDir.listFiles(File::isDirectory);
-        if (directories != null) {
-            Arrays.sort(directories, Comparator.comparing(File::getName));
-            for (File directory : directories) {
-                String dirName = directory.getName();
-                // Filter directories based on the date range
-                if (dirName.compareTo(startDir) >= 0 && dirName.compareTo(endDir) <= 0) {
-                    File serialDir = new File(directory, serialNumber);
-                    if (serialDir.exists()) {
-                        File[] files = serialDir.listFiles((dir, name) -> name.endsWith(fileFormat));
-                        if (files != null) {
-                            Arrays.sort(files, Comparator.comparing(File::getName));
-                            for (File file : files) {
-                                String fileName = file.getName().split("\\.")[0];
-                                // Use string comparison to check if the file's date and time are within the range
-                                if (fileName.compareTo(startFile) >= 0 && fileName.compareTo(endFile) <= 0) {
-                                    result.add(file);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
+        return getCatalog(baseDir).find(serialNumber, fileFormat, fileStartEpochMs, fileEndEpochMs);
+    }
+
+    /**
+     * @return serial numbers of all connections that have data files
+     */
+    public static Iterable<String> listSerialNumbers(String baseDir) {
+        return getCatalog(baseDir).serialNumbers();
+    }
 
-        return result;
+    /**
+     * @return true if writers will not append to the data file anymore
+     */
+    public static boolean isClosed(File dataFile, long nowEpochMs) {
+        long fileEpochMs = parseFileEpochMs(dataFile.getName());
+        long intervalEndEpochMs = (fileEpochMs / FILE_INTERVAL_MS) * FILE_INTERVAL_MS + FILE_INTERVAL_MS;
+        // writers switch to a new file on first write after the interval end; leaving some slack for a write
+        // that got its timestamp before that
+        return fileEpochMs != Long.MIN_VALUE && nowEpochMs > intervalEndEpochMs + CLOSED_FILE_MARGIN_MS;
     }
 
-    private static SimpleDateFormat getDirDateFormat() {
-        SimpleDateFormat df = new SimpleDateFormat(DIR_DATE_FORMAT);
-        df.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return df;
+    /**
+     * @return file that has same name as given data file, but different format, e.g. derived from it
+     */
+    public static File siblingFile(File dataFile, String format) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.indexOf('.') + 1) + format);
     }
 
-    private static long parseDirEpochMs(String dirName, SimpleDateFormat fmt) throws ParseException {
-        return fmt.parse(dirName).getTime();
+    /**
+     * Builds in-memory list of data files in advance, so that the first query doesn't have to wait for it.
+     */
+    public static void loadCatalog(String baseDir) {
+        getCatalog(baseDir);
     }
 
-    private static SimpleDateFormat getFilePrefixDateFormat() {
-        SimpleDateFormat df = new SimpleDateFormat(FILE_PREFIX_DATE_FORMAT);
-        df.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return df;
+    private static DataFilesCatalog getCatalog(String baseDir) {
+        return CATALOGS.computeIfAbsent(baseDir, dir -> DataFilesCatalog.build(getDataDir(dir)));
+    }
+
+    /**
+     * @return start time of the file (with seconds precision) or Long.MIN_VALUE if it is not a data file
+     */
+    static long parseFileEpochMs(String fileName) {
+        if (fileName.length() < FILE_PREFIX_DATE_FORMAT.length() + 2 ||
+                fileName.charAt(FILE_PREFIX_DATE_FORMAT.length()) != '.') {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return Instant.from(FILE_PREFIX_FORMATTER.parse(
+                    fileName.substring(0, FILE_PREFIX_DATE_FORMAT.length()))).toEpochMilli();
+        } catch (DateTimeException e) {
+            return Long.MIN_VALUE;
+        }
     }
 
-    private static long parseFileEpochMs(String fileName, SimpleDateFormat fmt) throws ParseException {
-        return fmt.parse(fileName.substring(0, FILE_PREFIX_DATE_FORMAT.length())).getTime();
+    /**
+     * @return format of the data file, i.e. everything after the first '.' in the file name
+     */
+    static String getFormat(String fileName) {
+        return fileName.substring(fileName.indexOf('.') + 1);
     }
 
     private static String getDataDirPath(String baseDir) {
@@ -0,0 +1,68 @@
+package com.sensortea.cuplogger;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Picks the data files format used for capture and retrieval. Configured with DATA_FORMAT env variable:
+ * {@link TextFormatWriter#FORMAT} (default) or {@link BinaryFormatWriter#FORMAT}.
+ */
+public final class DataFormats {
+    private static final Logger LOG = Logger.getLogger(DataFormats.class.getName());
+    public static final String DATA_FORMAT_ENV_VARIABLE = "DATA_FORMAT";
+    public static final String SCAN_THREADS_ENV_VARIABLE = "SCAN_THREADS";
+
+    private DataFormats() {
+    }
+
+    public static String configuredFormat() {
+        String format = System.getenv(DATA_FORMAT_ENV_VARIABLE);
+        if (format == null || format.isEmpty()) {
+            return TextFormatWriter.FORMAT;
+        }
+        if (!TextFormatWriter.FORMAT.equals(format) && !BinaryFormatWriter.FORMAT.equals(format)) {
+            LOG.warning("Unknown " + DATA_FORMAT_ENV_VARIABLE + " '" + format + "', will use " + TextFormatWriter.FORMAT);
+            return TextFormatWriter.FORMAT;
+        }
+        return format;
+    }
+
+    /**
+     * @param liveRecords to publish written records to, null if not needed
+     */
+    public static DataWriter newWriter(String format, String baseDir, String serialNumber, LiveRecords liveRecords) {
+        if (BinaryFormatWriter.FORMAT.equals(format)) {
+            return new BinaryFormatWriter(baseDir, serialNumber, liveRecords);
+        }
+        return new TextFormatWriter(baseDir, serialNumber, liveRecords);
+    }
+
+    /**
+     * @param scanPool pool to parse files in parallel with, null to scan files one by one
+     * @param parsedFilesCache cache of parsed closed files, null to not use one
+     */
+    public static DataReader newReader(String format, String baseDir, ForkJoinPool scanPool,
+                                       ParsedFilesCache parsedFilesCache) {
+        if (BinaryFormatWriter.FORMAT.equals(format)) {
+            return new BinaryFormatReader(baseDir);
+        }
+        return new TextFormatReader(baseDir, scanPool, parsedFilesCache);
+    }
+
+    /**
+     * Configured with SCAN_THREADS env variable, defaults to number of available processors.
+     * @return pool for parallel scans, or null if scans should not be parallel
+     */
+    public static ForkJoinPool newScanPool() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String configured = System.getenv(SCAN_THREADS_ENV_VARIABLE);
+        if (configured != null && !configured.isEmpty()) {
+            try {
+                threads = Integer.parseInt(configured);
+            } catch (NumberFormatException e) {
+                LOG.warning("Bad " + SCAN_THREADS_ENV_VARIABLE + " '" + configured + "', will use " + threads);
+            }
+        }
+        return threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+}
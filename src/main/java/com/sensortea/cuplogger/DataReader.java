@@ -0,0 +1,56 @@
+package com.sensortea.cuplogger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads data records captured by the corresponding {@link DataWriter} of the same format.
+ */
+public interface DataReader {
+    interface RecordConsumer {
+        // stops scan when returns false
+        boolean acceptAndContinue(DataRecord r);
+
+        /**
+         * Same as {@link #acceptAndContinue} for each record of columns in [startEpochMs, endEpochMs), e.g. records
+         * of a cached file. Consumers that can take columns as they are should override it.
+         * @return false to stop scan
+         */
+        default boolean acceptAll(RecordColumns columns, long startEpochMs, long endEpochMs) {
+            return columns.scan(startEpochMs, endEpochMs, this);
+        }
+    }
+
+    Iterable<File> findDataFiles(String serialNumber, long startEpochMs, long endEpochMs);
+
+    /**
+     * Feeds records in [startEpochMs, endEpochMs) to the consumer in the order they were captured.
+     */
+    void scan(String serialNumber, long startEpochMs, long endEpochMs, RecordConsumer consumer);
+
+    /**
+     * Same as {@link #scan}, but for a single data file, e.g. one found with {@link #findDataFiles}.
+     * @return false if consumer asked to stop
+     */
+    boolean scanFile(File file, long startEpochMs, long endEpochMs, RecordConsumer consumer);
+
+    /**
+     * Same as {@link #scan}, but collects records in a compact columnar form. Prefer it to {@link #readEvents}
+     * for large ranges.
+     */
+    default RecordColumns readColumns(String serialNumber, long startEpochMs, long endEpochMs) {
+        RecordColumns columns = new RecordColumns();
+        scan(serialNumber, startEpochMs, endEpochMs, columns);
+        return columns;
+    }
+
+    default List<DataRecord> readEvents(String serialNumber, long startEpochMs, long endEpochMs) {
+        List<DataRecord> events = new ArrayList<>(4 * 1024);
+        scan(serialNumber, startEpochMs, endEpochMs, r -> {
+            events.add(r);
+            return true;
+        });
+        return events;
+    }
+}
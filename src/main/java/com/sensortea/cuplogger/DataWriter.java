@@ -0,0 +1,24 @@
+package com.sensortea.cuplogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes data received from a serial connection into data files of a specific format.
+ */
+public interface DataWriter extends Closeable {
+    default void write(byte[] data, int length) throws IOException {
+        write(data, length, System.currentTimeMillis());
+    }
+
+    /**
+     * @param epochMs when the data was received
+     */
+    void write(byte[] data, int length, long epochMs) throws IOException;
+
+    /**
+     * Called when no data was received for a while, so that writers that buffer data can write it out in time.
+     */
+    default void flushIfDue() throws IOException {
+    }
+}
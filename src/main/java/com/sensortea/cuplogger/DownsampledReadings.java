@@ -0,0 +1,10 @@
+package com.sensortea.cuplogger;
+
+import java.util.List;
+
+public class DownsampledReadings {
+    public long bucketMs;
+    public String[] readingIds;
+    // [bucketStartEpochMs, [min, avg, max] or null for each of readingIds], only for buckets with values
+    public List<Object[]> points;
+}
@@ -0,0 +1,232 @@
+package com.sensortea.cuplogger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the most recently captured records of each connection in memory, as most queries are about the last few
+ * minutes. Filled by the capture path (see {@link LiveRecords}), bounded by a memory budget shared by all
+ * connections: the oldest records of connections over their share of it are evicted first. Configured with
+ * HOT_CACHE_MB env variable, 0 disables it.
+ * <p>
+ * For each connection the cache holds all records captured at or after its {@link #coveredFromEpochMs}, so the
+ * part of a range after it can be read from the cache instead of data files.
+ */
+public class HotRecordsCache implements LiveRecords.Listener {
+    private static final Logger LOG = Logger.getLogger(HotRecordsCache.class.getName());
+    public static final String HOT_CACHE_MB_ENV_VARIABLE = "HOT_CACHE_MB";
+    private static final long DEFAULT_HOT_CACHE_MB = 64;
+
+    private final long maxBytes;
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    // sum of bytes of all series; updated after each series change, so it can be briefly off, which is fine for
+    // a budget
+    private final AtomicLong bytes = new AtomicLong();
+
+    public HotRecordsCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return cache with configured budget, or null if disabled
+     */
+    public static HotRecordsCache configured() {
+        long mb = DEFAULT_HOT_CACHE_MB;
+        String configured = System.getenv(HOT_CACHE_MB_ENV_VARIABLE);
+        if (configured != null && !configured.isEmpty()) {
+            try {
+                mb = Long.parseLong(configured);
+            } catch (NumberFormatException e) {
+                LOG.warning("Bad " + HOT_CACHE_MB_ENV_VARIABLE + " '" + configured + "', will use " + mb);
+            }
+        }
+        return mb > 0 ? new HotRecordsCache(mb * 1024 * 1024) : null;
+    }
+
+    /**
+     * Records of one connection. Guarded by its own monitor, so that connections don't contend with each other.
+     */
+    private static final class Series {
+        // ring buffer of records ordered by epochMs
+        DataRecord[] records = new DataRecord[1024];
+        long[] sizes = new long[1024];
+        int head;
+        int size;
+        volatile long bytes;
+        volatile long coveredFromEpochMs = Long.MAX_VALUE;
+
+        DataRecord get(int idx) {
+            return records[(head + idx) % records.length];
+        }
+
+        DataRecord last() {
+            return size == 0 ? null : get(size - 1);
+        }
+
+        void add(DataRecord r, long recordBytes) {
+            if (size == records.length) {
+                DataRecord[] newRecords = new DataRecord[records.length * 2];
+                long[] newSizes = new long[records.length * 2];
+                for (int i = 0; i < size; i++) {
+                    newRecords[i] = records[(head + i) % records.length];
+                    newSizes[i] = sizes[(head + i) % records.length];
+                }
+                records = newRecords;
+                sizes = newSizes;
+                head = 0;
+            }
+            int idx = (head + size) % records.length;
+            records[idx] = r;
+            sizes[idx] = recordBytes;
+            size++;
+            bytes += recordBytes;
+        }
+
+        // returns bytes freed
+        long removeFirst() {
+            long freed = sizes[head];
+            // records with the same epochMs may remain, so they are not covered anymore
+            coveredFromEpochMs = records[head].epochMs + 1;
+            records[head] = null;
+            head = (head + 1) % records.length;
+            size--;
+            bytes -= freed;
+            return freed;
+        }
+
+        // returns bytes freed
+        long clear() {
+            long freed = 0;
+            while (size > 0) {
+                freed += removeFirst();
+            }
+            return freed;
+        }
+
+        // returns bytes freed
+        long evictDownTo(long targetBytes) {
+            long freed = 0;
+            while (size > 0 && bytes > targetBytes) {
+                freed += removeFirst();
+            }
+            return freed;
+        }
+
+        // index of the first record with epochMs >= given
+        int firstAtOrAfter(long epochMs) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (get(mid).epochMs < epochMs) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    @Override
+    public void recordCaptured(String serialNumber, DataRecord record) {
+        Series s = series.computeIfAbsent(serialNumber, k -> new Series());
+        long recordBytes = estimateBytes(record);
+        long added;
+        synchronized (s) {
+            added = recordBytes;
+            DataRecord last = s.last();
+            if (last != null && record.epochMs < last.epochMs) {
+                // clock went backwards: records would not be ordered, starting over
+                added -= s.clear();
+            }
+            if (s.size == 0) {
+                // records captured at the same millisecond may be already written, e.g. before restart
+                s.coveredFromEpochMs = record.epochMs + 1;
+            }
+            s.add(record, recordBytes);
+        }
+        if (bytes.addAndGet(added) > maxBytes) {
+            evict(s);
+        }
+    }
+
+    // Lazy eviction: each connection gets an equal share of the budget. Connections capturing faster than others
+    // go over their share and evict their own oldest records as they add new ones, so that usually no other
+    // connection's records need to be looked at.
+    private void evict(Series current) {
+        long share = maxBytes / Math.max(1, series.size());
+        Series victim = current;
+        if (current.bytes <= share) {
+            // someone else is over the share, e.g. went quiet after capturing a lot
+            for (Series s : series.values()) {
+                if (s.bytes - share > victim.bytes - share) {
+                    victim = s;
+                }
+            }
+        }
+        long freed;
+        synchronized (victim) {
+            freed = victim.evictDownTo(share);
+        }
+        bytes.addAndGet(-freed);
+    }
+
+    /**
+     * @return epochMs such that all records at or after it are in the cache, Long.MAX_VALUE if none
+     */
+    public long coveredFromEpochMs(String serialNumber) {
+        Series s = series.get(serialNumber);
+        return s == null ? Long.MAX_VALUE : s.coveredFromEpochMs;
+    }
+
+    /**
+     * @return records in [startEpochMs, endEpochMs), in the order they were captured, or null if some records at or
+     * after startEpochMs are not in the cache anymore (or yet), see {@link #coveredFromEpochMs}
+     */
+    public DataRecord[] read(String serialNumber, long startEpochMs, long endEpochMs) {
+        Series s = series.get(serialNumber);
+        if (s == null) {
+            return null;
+        }
+        // copying under the lock, so that consumers don't hold it
+        synchronized (s) {
+            if (startEpochMs < s.coveredFromEpochMs) {
+                return null;
+            }
+            int from = s.firstAtOrAfter(startEpochMs);
+            int to = s.firstAtOrAfter(endEpochMs);
+            DataRecord[] result = new DataRecord[Math.max(0, to - from)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = s.get(from + i);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return approximate heap used by cached records
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    // rough estimate of heap used by the record
+    private static long estimateBytes(DataRecord r) {
+        long size = 32;
+        if (r.rawText != null) {
+            size += 48 + 2L * r.rawText.length();
+        }
+        DataRecord.Event e = r.parsedEvent;
+        if (e != null) {
+            size += 64 + 48 * 4 + 2L * (e.programId.length() + e.programVersion.length() +
+                    e.deviceConfig.length() + e.logMessage.length());
+            size += 32 + 16L * e.readingIds.length;
+            for (String id : e.readingIds) {
+                size += 48 + 2L * id.length();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,74 @@
+package com.sensortea.cuplogger;
+
+import java.io.File;
+
+/**
+ * Serves the recent part of requested ranges from {@link HotRecordsCache}, and reads only the older part from
+ * data files with the given reader.
+ */
+public class HotTailDataReader implements DataReader {
+    private final DataReader filesReader;
+    private final HotRecordsCache cache;
+
+    public HotTailDataReader(DataReader filesReader, HotRecordsCache cache) {
+        this.filesReader = filesReader;
+        this.cache = cache;
+    }
+
+    @Override
+    public Iterable<File> findDataFiles(String serialNumber, long startEpochMs, long endEpochMs) {
+        return filesReader.findDataFiles(serialNumber, startEpochMs, endEpochMs);
+    }
+
+    @Override
+    public boolean scanFile(File file, long startEpochMs, long endEpochMs, RecordConsumer consumer) {
+        return filesReader.scanFile(file, startEpochMs, endEpochMs, consumer);
+    }
+
+    @Override
+    public void scan(String serialNumber, long startEpochMs, long endEpochMs, RecordConsumer consumer) {
+        long fromEpochMs = startEpochMs;
+        while (true) {
+            long coveredFromEpochMs = cache.coveredFromEpochMs(serialNumber);
+            if (endEpochMs <= coveredFromEpochMs) {
+                filesReader.scan(serialNumber, fromEpochMs, endEpochMs, consumer);
+                return;
+            }
+            if (fromEpochMs < coveredFromEpochMs) {
+                if (!scanFiles(serialNumber, fromEpochMs, coveredFromEpochMs, consumer)) {
+                    return;
+                }
+                fromEpochMs = coveredFromEpochMs;
+            }
+            DataRecord[] records = cache.read(serialNumber, fromEpochMs, endEpochMs);
+            if (records != null) {
+                for (DataRecord r : records) {
+                    if (!consumer.acceptAndContinue(r)) {
+                        return;
+                    }
+                }
+                return;
+            }
+            // evicted since checked; evicted records are old enough to be in files already
+        }
+    }
+
+    // returns false if consumer asked to stop
+    private boolean scanFiles(String serialNumber, long startEpochMs, long endEpochMs, RecordConsumer consumer) {
+        boolean[] stopped = {false};
+        filesReader.scan(serialNumber, startEpochMs, endEpochMs, new RecordConsumer() {
+            @Override
+            public boolean acceptAndContinue(DataRecord r) {
+                stopped[0] = !consumer.acceptAndContinue(r);
+                return !stopped[0];
+            }
+
+            @Override
+            public boolean acceptAll(RecordColumns columns, long startEpochMs, long endEpochMs) {
+                stopped[0] = !consumer.acceptAll(columns, startEpochMs, endEpochMs);
+                return !stopped[0];
+            }
+        });
+        return !stopped[0];
+    }
+}
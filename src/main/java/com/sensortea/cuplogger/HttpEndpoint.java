@@ -5,6 +5,9 @@ import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
 
 public class HttpEndpoint {
     private final ServerCoreAPI api;
@@ -29,18 +32,51 @@ public class HttpEndpoint {
         server.createContext("/setSerialConnectionName", new SetSerialConnectionName());
         server.createContext("/setSerialConnectionBaudRate", new SetSerialConnectionBaudRate());
         server.createContext("/setSerialConnectionDataCapture", new SetSerialConnectionDataCapture());
-        // todo: JSON format for response here is not efficient at all...
         server.createContext("/getData", new GetData());
+        server.createContext("/getDownsampledReadings", new GetDownsampledReadings());
+        server.createContext("/getTimeline", new GetTimeline());
+        server.createContext("/getParsedFilesCacheStats", new GetParsedFilesCacheStats());
+        server.createContext("/getCaptureStats", new GetCaptureStats());
+        server.createContext("/subscribeRecords", new LiveRecordsHttpHandler(api));
+        server.createContext("/metrics", new MetricsHttpHandler(api));
         server.createContext("/ui", new ResourceFilesHttpHandler());
-        server.setExecutor(null);
+        // live records subscriptions hold on to their threads
+        server.setExecutor(Executors.newCachedThreadPool());
         server.start();
         System.out.println("SUCCESS: HttpEndpoint started at localhost:" + port);
     }
 
     class ListSerialConnections extends JsonPostHttpHandler {
+        // less than usual proxy and browser timeouts
+        private static final long MAX_WAIT_MS = 30_000;
+
         @Override
-        void handle(CallContext ctx) {
-            ctx.setResult(api.listSerialConnections());
+        void handle(CallContext ctx) throws BadInputException {
+            // version known to the client is sent as ETag: "<version>"
+            String knownETag = ctx.getRequestHeader("If-None-Match");
+            SerialConnectionsListing listing;
+            if (knownETag == null) {
+                listing = api.listSerialConnections(Long.MIN_VALUE, 0);
+            } else {
+                long waitMs = Math.max(0, Math.min(MAX_WAIT_MS, ctx.getOptionalLongParam("waitMs", 0)));
+                listing = api.listSerialConnections(parseVersion(knownETag), waitMs);
+            }
+            String eTag = "\"" + listing.version + "\"";
+            ctx.setResponseHeader("ETag", eTag);
+            if (eTag.equals(knownETag)) {
+                ctx.setNotModified();
+            } else {
+                ctx.setResult(listing.connections);
+            }
+        }
+
+        private long parseVersion(String eTag) {
+            try {
+                return Long.parseLong(eTag.replace("\"", ""));
+            } catch (NumberFormatException e) {
+                // unknown version, any is different
+                return Long.MIN_VALUE;
+            }
         }
     }
 
@@ -72,13 +108,104 @@ public class HttpEndpoint {
     }
 
     class GetData extends JsonPostHttpHandler {
+        private final Metrics.Counter records = Metrics.get().counter("cuplogger_get_data_records_total",
+                "Records returned by /getData");
+
+        @Override
+        void handle(JsonPostHttpHandler.CallContext ctx) throws BadInputException {
+            String serialNumber = ctx.getRequiredNonEmptyStringParam("serialNumber");
+            long startEpochMs = ctx.getRequiredLongParam("startEpochMs");
+            long endEpochMs = ctx.getRequiredLongParam("endEpochMs");
+            String format = ctx.getOptionalStringParam("format", "records");
+            switch (format) {
+                case "records":
+                    // streaming records as they are read, to keep memory use flat regardless of the range
+                    ctx.setStreamingResult((writer, gson) -> {
+                        writer.beginArray();
+                        api.scanEvents(serialNumber, startEpochMs, endEpochMs, r -> {
+                            records.inc();
+                            gson.toJson(r, DataRecord.class, writer);
+                            return true;
+                        });
+                        writer.endArray();
+                    });
+                    break;
+                case "columnar": {
+                    RecordColumns columns = api.readColumns(serialNumber, startEpochMs, endEpochMs);
+                    records.add(columns.size());
+                    ctx.setStreamingResult((writer, gson) -> columns.writeJson(writer, true));
+                    break;
+                }
+                case "columnar-binary": {
+                    RecordColumns columns = api.readColumns(serialNumber, startEpochMs, endEpochMs);
+                    records.add(columns.size());
+                    ctx.setBinaryResult("application/octet-stream", columns::writeBinary);
+                    break;
+                }
+                default:
+                    throw new BadInputException("Unknown format '" + format +
+                            "', expected one of: records, columnar, columnar-binary");
+            }
+        }
+    }
+
+    class GetDownsampledReadings extends JsonPostHttpHandler {
+        private static final int MAX_POINTS_LIMIT = 100_000;
+        // aggregates are kept for each point of each reading while scanning, ~32 bytes each
+        private static final int MAX_VALUES_LIMIT = 400_000;
+
         @Override
         void handle(JsonPostHttpHandler.CallContext ctx) throws BadInputException {
+            int maxPoints = ctx.getRequiredIntParam("maxPoints");
+            if (maxPoints <= 0 || maxPoints > MAX_POINTS_LIMIT) {
+                throw new BadInputException("'maxPoints' must be between 1 and " + MAX_POINTS_LIMIT);
+            }
+            String[] readingIds = ctx.getRequiredNonEmptyStringParam("readingIds").split(",");
+            if (new HashSet<>(Arrays.asList(readingIds)).size() != readingIds.length) {
+                throw new BadInputException("'readingIds' must not repeat");
+            }
+            if ((long) maxPoints * readingIds.length > MAX_VALUES_LIMIT) {
+                throw new BadInputException("'maxPoints' times number of 'readingIds' must be at most " +
+                        MAX_VALUES_LIMIT);
+            }
             ctx.setResult(
-                    api.readEvents(
+                    api.readDownsampledReadings(
                             ctx.getRequiredNonEmptyStringParam("serialNumber"),
                             ctx.getRequiredLongParam("startEpochMs"),
-                            ctx.getRequiredLongParam("endEpochMs")));
+                            ctx.getRequiredLongParam("endEpochMs"),
+                            readingIds,
+                            maxPoints));
+        }
+    }
+
+    class GetTimeline extends JsonPostHttpHandler {
+        @Override
+        void handle(JsonPostHttpHandler.CallContext ctx) throws BadInputException {
+            long startEpochMs = ctx.getRequiredLongParam("startEpochMs");
+            long endEpochMs = ctx.getRequiredLongParam("endEpochMs");
+            if (endEpochMs <= startEpochMs) {
+                throw new BadInputException("'endEpochMs' must be greater than 'startEpochMs'");
+            }
+            ctx.setResult(
+                    api.getTimeline(
+                            ctx.getRequiredNonEmptyStringParam("serialNumber"),
+                            startEpochMs,
+                            endEpochMs,
+                            ctx.getRequiredLongParam("intervalMs")));
+        }
+    }
+
+    class GetParsedFilesCacheStats extends JsonPostHttpHandler {
+        @Override
+        void handle(CallContext ctx) {
+            ctx.setResult(api.getParsedFilesCacheStats());
+        }
+    }
+
+    class GetCaptureStats extends JsonPostHttpHandler {
+        @Override
+        void handle(CallContext ctx) {
+            ctx.setResult(api.getCaptureStats());
         }
     }
 }
@@ -3,13 +3,13 @@ package com.sensortea.cuplogger;
 import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,7 +18,7 @@ import java.util.logging.Logger;
  * An implementation of {@link HttpHandler} that: <br/>
  * 1. expects only POST requests <br/>
  * 2. expects input data (parameters) to be passed in body in JSON format <br/>
- * 3. responds with result in JSON format <br/>
+ * 3. responds with result in JSON format, either built at once or streamed <br/>
  * Uses {@link Gson} for JSON serde, which is the only dependency apart from standard JDK.
  */
 abstract public class JsonPostHttpHandler implements HttpHandler {
@@ -29,6 +29,22 @@ abstract public class JsonPostHttpHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+        long startNanos = System.nanoTime();
+        String path = exchange.getHttpContext().getPath();
+        CountingOutputStream responseBody = new CountingOutputStream(exchange.getResponseBody());
+        exchange.setStreams(null, responseBody);
+        try {
+            handleRequest(exchange);
+        } finally {
+            Metrics metrics = Metrics.get();
+            metrics.timer("cuplogger_http_request", "Time spent handling requests", "path", path)
+                    .record(System.nanoTime() - startNanos);
+            metrics.counter("cuplogger_http_response_bytes_total", "Bytes of response bodies", "path", path)
+                    .add(responseBody.count);
+        }
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
         if (sendErrorResponseIfNotPost(exchange)) {
             return;
         }
@@ -44,23 +60,56 @@ abstract public class JsonPostHttpHandler implements HttpHandler {
             }
 
             try {
-                CallContext ctx = new CallContext(input);
+                CallContext ctx = new CallContext(input, exchange);
                 handle(ctx);
-                sendResponse(exchange, ctx.result);
+                if (ctx.notModified) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                } else if (ctx.binaryResult != null) {
+                    sendBinaryResponse(exchange, ctx.binaryContentType, ctx.binaryResult);
+                } else if (ctx.streamingResult != null) {
+                    sendStreamingResponse(exchange, ctx.streamingResult);
+                } else {
+                    sendResponse(exchange, ctx.result);
+                }
             } catch (BadInputException e) {
                 sendErrorResponse(exchange, e.getMessage(), 400);
             }
         } catch (Exception e) {
+            if (exchange.getResponseCode() != -1) {
+                // response is already (partially) sent, can only drop the connection
+                LOG.log(Level.WARNING, "Error processing request after response started", e);
+                exchange.close();
+                return;
+            }
             sendErrorResponse(exchange, "Error processing request: " + e.getMessage(), 500);
             LOG.log(Level.WARNING, "Error processing request", e);
         }
     }
 
     private void sendResponse(HttpExchange exchange, Object result) throws IOException {
-        String response = gson.toJson(result);
-        exchange.sendResponseHeaders(200, response.getBytes().length);
+        byte[] response = gson.toJson(result).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, response.length);
         try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes());
+            os.write(response);
+        }
+    }
+
+    private void sendStreamingResponse(HttpExchange exchange, StreamingResult result) throws IOException {
+        // length is not known in advance, chunked encoding is used
+        exchange.sendResponseHeaders(200, 0);
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024), StandardCharsets.UTF_8))) {
+            result.writeTo(writer, gson);
+        }
+    }
+
+    private void sendBinaryResponse(HttpExchange exchange, String contentType, BinaryResult result)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024)) {
+            result.writeTo(os);
         }
     }
 
@@ -83,18 +132,88 @@ abstract public class JsonPostHttpHandler implements HttpHandler {
         return false;
     }
 
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Result that is written to response as it is produced, without building it in memory first.
+     */
+    protected interface StreamingResult {
+        void writeTo(JsonWriter writer, Gson gson) throws IOException;
+    }
+
+    /**
+     * Result in non-JSON format, written to response as it is produced.
+     */
+    protected interface BinaryResult {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     protected static final class CallContext {
         private final Map<String, String> input;
+        private final HttpExchange exchange;
+        private boolean notModified;
         private Object result = new Object();
+        private StreamingResult streamingResult;
+        private String binaryContentType;
+        private BinaryResult binaryResult;
 
-        private CallContext(Map<String, String> input) {
-            this.input = input;
+        private CallContext(Map<String, String> input, HttpExchange exchange) {
+            // no body
+            this.input = input == null ? Collections.emptyMap() : input;
+            this.exchange = exchange;
+        }
+
+        public String getRequestHeader(String name) {
+            return exchange.getRequestHeaders().getFirst(name);
+        }
+
+        public void setResponseHeader(String name, String value) {
+            exchange.getResponseHeaders().set(name, value);
+        }
+
+        /**
+         * Responds with 304 and no body: the client has the current result already.
+         */
+        public void setNotModified() {
+            this.notModified = true;
         }
 
         public void setResult(Object result) {
             this.result = result;
         }
 
+        public void setStreamingResult(StreamingResult streamingResult) {
+            this.streamingResult = streamingResult;
+        }
+
+        public void setBinaryResult(String contentType, BinaryResult binaryResult) {
+            this.binaryContentType = contentType;
+            this.binaryResult = binaryResult;
+        }
+
+        public String getOptionalStringParam(String key, String defaultValue) {
+            String value = input.get(key);
+            return null == value || value.isEmpty() ? defaultValue : value;
+        }
+
         public String getRequiredNonEmptyStringParam(String key) throws BadInputException {
             String value = input.get(key);
             if (null == value || value.isEmpty()) {
@@ -125,6 +244,18 @@ abstract public class JsonPostHttpHandler implements HttpHandler {
             }
         }
 
+        public long getOptionalLongParam(String key, long defaultValue) throws BadInputException {
+            String value = input.get(key);
+            if (null == value || value.isEmpty()) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new BadInputException("'" + value + "' is not valid long value for '" + key + "'");
+            }
+        }
+
         public long getRequiredLongParam(String key) throws BadInputException {
             String value = input.get(key);
             if (null == value || value.isEmpty()) {
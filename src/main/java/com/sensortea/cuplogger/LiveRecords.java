@@ -0,0 +1,137 @@
+package com.sensortea.cuplogger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Fans out records to subscribers and listeners as they are captured, so that following a live connection doesn't
+ * need re-reading data files. Publishing never blocks capture: a subscriber that doesn't keep up gets dropped
+ * and has to re-subscribe (and read what it missed from data files).
+ */
+public class LiveRecords {
+    private static final Logger LOG = Logger.getLogger(LiveRecords.class.getName());
+    static final int MAX_QUEUED_RECORDS = 64 * 1024;
+    private static final int MAX_BATCH_RECORDS = 4 * 1024;
+
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Subscription>> subscriptions =
+            new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Gets records of all connections, called on capture threads, so must be fast.
+     */
+    public interface Listener {
+        void recordCaptured(String serialNumber, DataRecord record);
+    }
+
+    public class Subscription implements Closeable {
+        private final Set<String> serialNumbers;
+        private final ArrayBlockingQueue<CapturedRecord> queue = new ArrayBlockingQueue<>(MAX_QUEUED_RECORDS);
+        private final List<CapturedRecord> batch = new ArrayList<>();
+        private volatile boolean overflowed;
+
+        private Subscription(Set<String> serialNumbers) {
+            this.serialNumbers = serialNumbers;
+        }
+
+        /**
+         * Waits up to timeoutMs for new records and passes them to the consumer in the order they were captured,
+         * up to a batch at a time.
+         * @return false if records were dropped because subscriber didn't keep up, i.e. subscription is broken
+         */
+        public boolean poll(long timeoutMs, Listener consumer) throws InterruptedException {
+            CapturedRecord first = queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (overflowed) {
+                return false;
+            }
+            if (first == null) {
+                return true;
+            }
+            consumer.recordCaptured(first.serialNumber, first.record);
+            queue.drainTo(batch, MAX_BATCH_RECORDS - 1);
+            for (CapturedRecord r : batch) {
+                consumer.recordCaptured(r.serialNumber, r.record);
+            }
+            batch.clear();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            for (String serialNumber : serialNumbers) {
+                subscriptions.computeIfPresent(serialNumber, (k, list) -> {
+                    list.remove(this);
+                    return list.isEmpty() ? null : list;
+                });
+            }
+        }
+    }
+
+    private static final class CapturedRecord {
+        final String serialNumber;
+        final DataRecord record;
+
+        CapturedRecord(String serialNumber, DataRecord record) {
+            this.serialNumber = serialNumber;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Single subscription for multiple connections, so that e.g. a browser needs one connection for all of them.
+     */
+    public Subscription subscribe(Collection<String> serialNumbers) {
+        Subscription subscription = new Subscription(new HashSet<>(serialNumbers));
+        for (String serialNumber : subscription.serialNumbers) {
+            // adding under the map's lock, as closing removes lists that become empty
+            subscriptions.compute(serialNumber, (k, list) -> {
+                if (list == null) {
+                    list = new CopyOnWriteArrayList<>();
+                }
+                list.add(subscription);
+                return list;
+            });
+        }
+        return subscription;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Allows to skip preparing records when nobody listens.
+     */
+    public boolean wantsRecords(String serialNumber) {
+        return !listeners.isEmpty() || subscriptions.containsKey(serialNumber);
+    }
+
+    /**
+     * @param record must not be changed after publishing
+     */
+    public void publish(String serialNumber, DataRecord record) {
+        for (Listener listener : listeners) {
+            listener.recordCaptured(serialNumber, record);
+        }
+        List<Subscription> list = subscriptions.get(serialNumber);
+        if (list == null) {
+            return;
+        }
+        for (Subscription s : list) {
+            if (!s.overflowed && !s.queue.offer(new CapturedRecord(serialNumber, record))) {
+                LOG.info("Live records subscriber of " + s.serialNumbers + " doesn't keep up, dropping it.");
+                s.overflowed = true;
+                s.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.sensortea.cuplogger;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes records of connections as they are captured, using Server-Sent Events, so that it works with browser's
+ * EventSource: GET with serialNumber query parameter per connection. Each event is a batch of records of
+ * a connection: {"serialNumber": ..., "records": ...}, with records in the same format as /getData with "columnar"
+ * format. Stream ends when client doesn't keep up, clients should then reconnect (EventSource does it
+ * automatically) and read missed records with /getData.
+ */
+public class LiveRecordsHttpHandler implements HttpHandler {
+    private static final Logger LOG = Logger.getLogger(LiveRecordsHttpHandler.class.getName());
+    // to detect closed connections, and to keep proxies from closing idle ones
+    private static final long KEEP_ALIVE_MS = 15 * 1000;
+
+    private final ServerCoreAPI api;
+
+    public LiveRecordsHttpHandler(ServerCoreAPI api) {
+        this.api = api;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            List<String> serialNumbers = getQueryParams(exchange, "serialNumber");
+            if (!"GET".equals(exchange.getRequestMethod()) || serialNumbers.isEmpty() || serialNumbers.contains("")) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+            try (LiveRecords.Subscription subscription = api.subscribeRecords(serialNumbers);
+                 OutputStreamWriter out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+                out.write(": subscribed\n\n");
+                out.flush();
+                while (true) {
+                    // serialNumber -> records
+                    Map<String, RecordColumns> batches = new LinkedHashMap<>();
+                    if (!subscription.poll(KEEP_ALIVE_MS, (serialNumber, record) -> batches
+                            .computeIfAbsent(serialNumber, k -> new RecordColumns()).acceptAndContinue(record))) {
+                        break;
+                    }
+                    if (batches.isEmpty()) {
+                        out.write(": keep-alive\n\n");
+                    }
+                    for (Map.Entry<String, RecordColumns> batch : batches.entrySet()) {
+                        // compact json has no new lines, so fits into a single data line
+                        StringWriter json = new StringWriter();
+                        JsonWriter writer = new JsonWriter(json);
+                        writer.beginObject();
+                        writer.name("serialNumber").value(batch.getKey());
+                        writer.name("records");
+                        batch.getValue().writeJson(writer, true);
+                        writer.endObject();
+                        out.write("data: ");
+                        out.write(json.toString());
+                        out.write("\n\n");
+                    }
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+            LOG.log(Level.FINE, "Live records stream closed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static List<String> getQueryParams(HttpExchange exchange, String name) throws UnsupportedEncodingException {
+        List<String> values = new ArrayList<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return values;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0 && URLDecoder.decode(param.substring(0, eq), "UTF-8").equals(name)) {
+                values.add(URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return values;
+    }
+}
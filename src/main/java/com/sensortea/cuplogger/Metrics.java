@@ -0,0 +1,164 @@
+package com.sensortea.cuplogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of what the server does, exposed by /metrics in Prometheus text format. Counters are created once, e.g.
+ * per port when its capture starts, and kept by the code that updates them: updating is a {@link LongAdder}
+ * increment, cheap enough for the capture path. Values kept elsewhere, e.g. cache stats, are added with
+ * {@link Collector}s when metrics are requested.
+ */
+public final class Metrics {
+    private static final Metrics INSTANCE = new Metrics();
+
+    // by name, then by labels
+    private final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+    }
+
+    /**
+     * Count and total duration of something, e.g. requests, exposed in seconds.
+     */
+    public static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        public void record(long nanos) {
+            count.increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    /**
+     * Adds values that are not kept by metrics when they are requested.
+     */
+    public interface Collector {
+        void collect(Output out);
+    }
+
+    /**
+     * Samples of the same name must be added together, with the same help.
+     */
+    public static final class Output {
+        private final StringBuilder sb;
+        private String lastName;
+
+        private Output(StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        public void counter(String name, String help, long value, String... labels) {
+            sample(name, help, "counter", value, labels);
+        }
+
+        public void gauge(String name, String help, long value, String... labels) {
+            sample(name, help, "gauge", value, labels);
+        }
+
+        private void sample(String name, String help, String type, Object value, String... labels) {
+            if (!name.equals(lastName)) {
+                describe(name, help, type);
+            }
+            sb.append(name).append(labelsText(labels)).append(' ').append(value).append('\n');
+        }
+
+        private void describe(String name, String help, String type) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            lastName = name;
+        }
+    }
+
+    /**
+     * @param labels label names and values: name1, value1, name2, value2...
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) families.computeIfAbsent(name, k -> new Family(name, help, "counter"))
+                .metrics.computeIfAbsent(labelsText(labels), k -> new Counter());
+    }
+
+    /**
+     * @param name without unit, "_seconds" is added
+     * @param labels label names and values: name1, value1, name2, value2...
+     */
+    public Timer timer(String name, String help, String... labels) {
+        String fullName = name + "_seconds";
+        return (Timer) families.computeIfAbsent(fullName, k -> new Family(fullName, help, "summary"))
+                .metrics.computeIfAbsent(labelsText(labels), k -> new Timer());
+    }
+
+    public void addCollector(Collector collector) {
+        collectors.add(collector);
+    }
+
+    public String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        Output out = new Output(sb);
+        for (Family family : new TreeMap<>(families).values()) {
+            out.describe(family.name, family.help, family.type);
+            for (Map.Entry<String, Object> entry : new TreeMap<>(family.metrics).entrySet()) {
+                Object metric = entry.getValue();
+                if (metric instanceof Counter) {
+                    sb.append(family.name).append(entry.getKey()).append(' ')
+                            .append(((Counter) metric).value.sum()).append('\n');
+                } else {
+                    Timer timer = (Timer) metric;
+                    sb.append(family.name).append("_count").append(entry.getKey()).append(' ')
+                            .append(timer.count.sum()).append('\n');
+                    sb.append(family.name).append("_sum").append(entry.getKey()).append(' ')
+                            .append(timer.sumNanos.sum() / 1e9).append('\n');
+                }
+            }
+        }
+        for (Collector collector : collectors) {
+            collector.collect(out);
+        }
+        return sb.toString();
+    }
+
+    private static String labelsText(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            pairs.add(labels[i] + "=\"" + labels[i + 1]
+                    .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"");
+        }
+        return "{" + String.join(",", pairs) + "}";
+    }
+}
@@ -0,0 +1,35 @@
+package com.sensortea.cuplogger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Responds to GET with all metrics in Prometheus text format, for scraping.
+ */
+public class MetricsHttpHandler implements HttpHandler {
+    private final ServerCoreAPI api;
+
+    public MetricsHttpHandler(ServerCoreAPI api) {
+        this.api = api;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+            exchange.close();
+            return;
+        }
+        byte[] response = api.getMetrics().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.sensortea.cuplogger;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Keeps parsed content of closed data files, so that repeated queries over the same historical range don't parse
+ * the same files again. Closed files never change, so an entry is only invalidated if the file was modified
+ * outside of the server: entries are keyed by file path, last modified time and length. Least recently used
+ * entries are evicted to keep within the memory budget. Configured with PARSED_FILES_CACHE_MB env variable,
+ * 0 disables it.
+ */
+public class ParsedFilesCache {
+    private static final Logger LOG = Logger.getLogger(ParsedFilesCache.class.getName());
+    public static final String PARSED_FILES_CACHE_MB_ENV_VARIABLE = "PARSED_FILES_CACHE_MB";
+    private static final long DEFAULT_PARSED_FILES_CACHE_MB = 256;
+
+    private final long maxBytes;
+    // access-ordered, i.e. least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // key -> load of the file in progress
+    private final ConcurrentHashMap<String, FutureTask<RecordColumns>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry {
+        final RecordColumns columns;
+        final long bytes;
+
+        Entry(RecordColumns columns, long bytes) {
+            this.columns = columns;
+            this.bytes = bytes;
+        }
+    }
+
+    public ParsedFilesCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return cache with configured budget, or null if disabled
+     */
+    public static ParsedFilesCache configured() {
+        long mb = DEFAULT_PARSED_FILES_CACHE_MB;
+        String configured = System.getenv(PARSED_FILES_CACHE_MB_ENV_VARIABLE);
+        if (configured != null && !configured.isEmpty()) {
+            try {
+                mb = Long.parseLong(configured);
+            } catch (NumberFormatException e) {
+                LOG.warning("Bad " + PARSED_FILES_CACHE_MB_ENV_VARIABLE + " '" + configured + "', will use " + mb);
+            }
+        }
+        return mb > 0 ? new ParsedFilesCache(mb * 1024 * 1024) : null;
+    }
+
+    private static String key(File file) {
+        return file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * @return parsed content of the file, or null if it is not in the cache
+     */
+    public RecordColumns get(File file) {
+        RecordColumns columns = peek(key(file));
+        if (columns == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return columns;
+    }
+
+    private synchronized RecordColumns peek(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.columns;
+    }
+
+    /**
+     * Loads the file into the cache, unless it is already there. Concurrent loads of the same file wait for
+     * the first one instead of parsing it again.
+     * @param loader returns all records of the file
+     * @return parsed content of the file
+     */
+    public RecordColumns load(File file, Function<File, RecordColumns> loader) {
+        String key = key(file);
+        FutureTask<RecordColumns> task = new FutureTask<>(() -> {
+            // could be loaded right before this load started
+            RecordColumns columns = peek(key);
+            if (columns == null) {
+                columns = loader.apply(file);
+                put(key, columns);
+            }
+            return columns;
+        });
+        FutureTask<RecordColumns> inFlight = loading.putIfAbsent(key, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the caller can still read the file itself
+            return loader.apply(file);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                    : new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @param columns all records of the file, must not be changed after that
+     */
+    public void put(File file, RecordColumns columns) {
+        put(key(file), columns);
+    }
+
+    private void put(String key, RecordColumns columns) {
+        columns.trim();
+        Entry entry = new Entry(columns, columns.estimateBytes());
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            Entry prev = entries.put(key, entry);
+            if (prev != null) {
+                bytes -= prev.bytes;
+            }
+            bytes += entry.bytes;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().bytes;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        stats.hits = hits.get();
+        stats.misses = misses.get();
+        stats.evictions = evictions.get();
+        synchronized (this) {
+            stats.entries = entries.size();
+            stats.bytes = bytes;
+        }
+        stats.maxBytes = maxBytes;
+        return stats;
+    }
+}
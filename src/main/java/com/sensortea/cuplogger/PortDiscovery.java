@@ -0,0 +1,104 @@
+package com.sensortea.cuplogger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists available serial ports for both the UI and the capture. Enumerating ports takes tens of ms with many of them,
+ * so the list is cached and re-scanned at most every SCAN_INTERVAL_MS by whoever needs it first. On Linux, where
+ * changes of ports are visible as changes of /dev, it is re-scanned only when /dev changes, or every MAX_AGE_MS
+ * just in case. Ports are found by {@link PortDriver}. Change callbacks are called when a scan finds ports that
+ * differ from the previous scan.
+ */
+class PortDiscovery {
+    private static final long SCAN_INTERVAL_MS = 1000;
+    private static final long MAX_AGE_MS = 10_000;
+
+    private final PortDriver driver;
+    // null if not on Linux
+    private final File devDir;
+    private List<Port> ports = Collections.emptyList();
+    private long checkedEpochMs = Long.MIN_VALUE;
+    private long scannedEpochMs = Long.MIN_VALUE;
+    private long scannedDevLastModified;
+    // serial numbers and locations of the ports, to detect changes
+    private List<String> scannedPortKeys = Collections.emptyList();
+    private final Collection<Runnable> changeCallbacks = new ArrayList<>();
+
+    /**
+     * Port as it was found. Each task gets its own {@link CapturePort} with {@link #newCapturePort()}, so that tasks
+     * don't share port objects.
+     */
+    abstract static class Port {
+        final String serialNumber;
+
+        Port(String serialNumber) {
+            this.serialNumber = serialNumber;
+        }
+
+        abstract CapturePort newCapturePort();
+
+        /**
+         * Sets details of where the port is connected and its default settings on the given info.
+         */
+        abstract void describe(SerialConnectionInfo info);
+
+        abstract String getLocation();
+    }
+
+    PortDiscovery(PortDriver driver) {
+        this.driver = driver;
+        File dev = new File("/dev");
+        this.devDir = System.getProperty("os.name", "").toLowerCase().contains("linux") && dev.isDirectory() ? dev : null;
+    }
+
+    /**
+     * @return ports with known serial numbers, can't be changed
+     */
+    synchronized List<Port> listUsbPorts() {
+        long nowMs = System.currentTimeMillis();
+        // negative if the clock went backwards
+        long sinceCheckMs = nowMs - checkedEpochMs;
+        if (sinceCheckMs >= SCAN_INTERVAL_MS || sinceCheckMs < 0) {
+            checkedEpochMs = nowMs;
+            long devLastModified = devDir == null ? 0 : devDir.lastModified();
+            long ageMs = nowMs - scannedEpochMs;
+            if (devDir == null || devLastModified != scannedDevLastModified || ageMs >= MAX_AGE_MS || ageMs < 0) {
+                ports = Collections.unmodifiableList(driver.scan());
+                scannedEpochMs = nowMs;
+                scannedDevLastModified = devLastModified;
+                List<String> portKeys = new ArrayList<>();
+                for (Port port : ports) {
+                    portKeys.add(port.serialNumber + "@" + port.getLocation());
+                }
+                if (!portKeys.equals(scannedPortKeys)) {
+                    scannedPortKeys = portKeys;
+                    changeCallbacks.forEach(Runnable::run);
+                }
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * @param callback called on the thread that scanned ports, so must be fast
+     */
+    synchronized void addChangeCallback(Runnable callback) {
+        changeCallbacks.add(callback);
+    }
+
+    /**
+     * @return port with the given serial number, or null if it is not available
+     */
+    Port find(String serialNumber) {
+        for (Port p : listUsbPorts()) {
+            if (serialNumber.equals(p.serialNumber)) {
+                return p;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,34 @@
+package com.sensortea.cuplogger;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Finds ports to capture data from. Configured with PORT_DRIVER env variable:
+ * <ul>
+ * <li>serial (default): serial ports of connected devices</li>
+ * <li>simulated: simulated devices printing lines, see {@link SimulatedPortDriver}, e.g. to try out the server
+ *     under load without devices</li>
+ * </ul>
+ */
+interface PortDriver {
+    String PORT_DRIVER_ENV_VARIABLE = "PORT_DRIVER";
+
+    /**
+     * Enumerates ports, can take a while: {@link PortDiscovery} caches the result.
+     *
+     * @return ports with known serial numbers
+     */
+    List<PortDiscovery.Port> scan();
+
+    static PortDriver configured() {
+        String configured = System.getenv(PORT_DRIVER_ENV_VARIABLE);
+        if ("simulated".equals(configured)) {
+            return SimulatedPortDriver.configured();
+        } else if (configured != null && !configured.isEmpty() && !"serial".equals(configured)) {
+            Logger.getLogger(PortDriver.class.getName()).warning(
+                    "Bad " + PORT_DRIVER_ENV_VARIABLE + " '" + configured + "', will use serial ports.");
+        }
+        return new SerialPortDriver();
+    }
+}
@@ -0,0 +1,150 @@
+package com.sensortea.cuplogger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls many ports on a few threads: each thread goes through its ports that are due, reading whatever data they
+ * have, and sleeps until the next port is due. Each port is polled on its own schedule, see
+ * {@link SerialReaderTask#nextPollIntervalMs}, so a busy port doesn't make the thread poll idle ones more often.
+ * <p>
+ * Ports are opened on a separate thread pool, as opening can take long. Data is always written by
+ * {@link CaptureWriterStage}, so that a slow disk doesn't block reading.
+ */
+class ReactorCaptureScheduler implements CaptureScheduler {
+    private static final Logger LOG = Logger.getLogger(ReactorCaptureScheduler.class.getName());
+
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    private static final class Capture {
+        final SerialReaderTask task;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        // null until opening of the port is started
+        Future<Boolean> opened;
+        long nextReadNanos;
+        long pollIntervalMs = SerialReaderTask.MIN_POLL_INTERVAL_MS;
+
+        Capture(SerialReaderTask task) {
+            this.task = task;
+        }
+    }
+
+    private static final class Reactor implements Runnable {
+        private final ConcurrentLinkedQueue<Capture> added = new ConcurrentLinkedQueue<>();
+        // accessed only by the reactor thread
+        private final List<Capture> captures = new ArrayList<>();
+        private final ExecutorService opener;
+        private Thread thread;
+
+        Reactor(ExecutorService opener) {
+            this.opener = opener;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Capture capture;
+                while ((capture = added.poll()) != null) {
+                    capture.nextReadNanos = System.nanoTime();
+                    captures.add(capture);
+                }
+                long nowNanos = System.nanoTime();
+                long nextReadNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(SerialReaderTask.POLL_INTERVAL_MS);
+                for (Iterator<Capture> it = captures.iterator(); it.hasNext(); ) {
+                    capture = it.next();
+                    if (capture.nextReadNanos - nowNanos <= 0) {
+                        int numRead = step(capture);
+                        if (numRead < 0) {
+                            it.remove();
+                            capture.task.close();
+                            // may be cancelled already, then it's a no-op
+                            capture.future.complete(null);
+                            continue;
+                        }
+                        capture.pollIntervalMs = SerialReaderTask.nextPollIntervalMs(capture.pollIntervalMs, numRead);
+                        capture.nextReadNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(capture.pollIntervalMs);
+                    }
+                    if (capture.nextReadNanos - nextReadNanos < 0) {
+                        nextReadNanos = capture.nextReadNanos;
+                    }
+                }
+                // woken up early when a port is added
+                LockSupport.parkNanos(this, nextReadNanos - System.nanoTime());
+            }
+        }
+
+        // -1 if the task has to stop
+        private int step(Capture capture) {
+            if (capture.opened != null && !capture.opened.isDone()) {
+                // the task is closed only after the opening thread is done with it
+                return 0;
+            }
+            if (capture.future.isDone()) {
+                // cancelled
+                return -1;
+            }
+            try {
+                if (capture.opened == null) {
+                    capture.opened = opener.submit(() -> capture.task.open(false));
+                    return 0;
+                }
+                if (!capture.opened.get()) {
+                    return -1;
+                }
+                return capture.task.readOnce();
+            } catch (ExecutionException e) {
+                LOG.log(Level.INFO, "Error in serial communication with " + capture.task.getSerialNumber(),
+                        e.getCause());
+                return -1;
+            } catch (Exception e) {
+                LOG.log(Level.INFO, "Error in serial communication with " + capture.task.getSerialNumber(), e);
+                return -1;
+            }
+        }
+    }
+
+    ReactorCaptureScheduler(int threads) {
+        ExecutorService opener = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "capture-open");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reactors = new Reactor[threads];
+        for (int i = 0; i < threads; i++) {
+            reactors[i] = new Reactor(opener);
+            Thread thread = new Thread(reactors[i], "capture-reactor-" + i);
+            thread.setDaemon(true);
+            reactors[i].thread = thread;
+            thread.start();
+        }
+        LOG.info("Capturing data on " + threads + " threads.");
+    }
+
+    @Override
+    public Future<?> start(SerialReaderTask task, Runnable onStopped) {
+        Capture capture = new Capture(task);
+        capture.future.whenComplete((result, e) -> onStopped.run());
+        Reactor reactor = reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+        reactor.added.add(capture);
+        LockSupport.unpark(reactor.thread);
+        return capture.future;
+    }
+
+    @Override
+    public boolean needsWriterStage() {
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package com.sensortea.cuplogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates values of given readings into min/avg/max per time bucket as records are scanned, so that the amount
+ * of data to plot depends on the number of buckets only, and not on how many records are in the range.
+ * NaN and infinite values are ignored.
+ */
+public class ReadingsDownsampler implements DataReader.RecordConsumer {
+    private final long startEpochMs;
+    private final long endEpochMs;
+    private final long bucketMs;
+    private final int bucketsCount;
+    private final String[] readingIds;
+    private final Map<String, Integer> readingIdxs = new HashMap<>();
+    // [bucket * readingIds.length + readingIdx]
+    private final long[] counts;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] sums;
+
+    public ReadingsDownsampler(long startEpochMs, long endEpochMs, String[] readingIds, int maxPoints) {
+        this.startEpochMs = startEpochMs;
+        this.endEpochMs = endEpochMs;
+        long rangeMs = Math.max(1, endEpochMs - startEpochMs);
+        this.bucketMs = Math.max(1, (rangeMs + maxPoints - 1) / maxPoints);
+        this.bucketsCount = (int) ((rangeMs + bucketMs - 1) / bucketMs);
+        this.readingIds = readingIds;
+        for (int i = 0; i < readingIds.length; i++) {
+            readingIdxs.put(readingIds[i], i);
+        }
+        int size = bucketsCount * readingIds.length;
+        counts = new long[size];
+        mins = new double[size];
+        maxs = new double[size];
+        sums = new double[size];
+    }
+
+    public long getBucketMs() {
+        return bucketMs;
+    }
+
+    @Override
+    public boolean acceptAndContinue(DataRecord r) {
+        if (r.parsedEvent == null) {
+            return true;
+        }
+        long bucket = bucket(r.epochMs);
+        if (bucket < 0) {
+            return true;
+        }
+        String[] ids = r.parsedEvent.readingIds;
+        for (int i = 0; i < ids.length; i++) {
+            Integer readingIdx = readingIdxs.get(ids[i]);
+            if (readingIdx != null) {
+                double value = r.parsedEvent.readingValues[i];
+                add((int) bucket * readingIds.length + readingIdx, 1, value, value, value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds already aggregated values to the bucket of a given time.
+     */
+    public void addAggregate(long epochMs, String readingId, long count, double min, double max, double sum) {
+        long bucket = bucket(epochMs);
+        Integer readingIdx = readingIdxs.get(readingId);
+        if (bucket < 0 || readingIdx == null) {
+            return;
+        }
+        add((int) bucket * readingIds.length + readingIdx, count, min, max, sum);
+    }
+
+    // -1 if out of [startEpochMs, endEpochMs); division alone would put times just before the start into the first
+    // bucket, and the last bucket can end after the end
+    private long bucket(long epochMs) {
+        if (epochMs < startEpochMs || epochMs >= endEpochMs) {
+            return -1;
+        }
+        return (epochMs - startEpochMs) / bucketMs;
+    }
+
+    private void add(int idx, long count, double min, double max, double sum) {
+        if (count == 0 || Double.isNaN(sum) || Double.isInfinite(sum)) {
+            return;
+        }
+        if (counts[idx] == 0) {
+            mins[idx] = min;
+            maxs[idx] = max;
+        } else {
+            mins[idx] = Math.min(mins[idx], min);
+            maxs[idx] = Math.max(maxs[idx], max);
+        }
+        sums[idx] += sum;
+        counts[idx] += count;
+    }
+
+    /**
+     * @return points for buckets that have values: [bucketStartEpochMs, [min, avg, max] or null per reading]
+     */
+    public List<Object[]> getPoints() {
+        List<Object[]> points = new ArrayList<>();
+        for (int bucket = 0; bucket < bucketsCount; bucket++) {
+            Object[] point = null;
+            for (int readingIdx = 0; readingIdx < readingIds.length; readingIdx++) {
+                int idx = bucket * readingIds.length + readingIdx;
+                if (counts[idx] == 0) {
+                    continue;
+                }
+                if (point == null) {
+                    point = new Object[readingIds.length + 1];
+                    point[0] = startEpochMs + bucket * bucketMs;
+                }
+                point[readingIdx + 1] = new double[]{mins[idx], sums[idx] / counts[idx], maxs[idx]};
+            }
+            if (point != null) {
+                points.add(point);
+            }
+        }
+        return points;
+    }
+}
@@ -0,0 +1,243 @@
+package com.sensortea.cuplogger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pre-aggregated readings of text data files, to answer queries over long time ranges without scanning raw data.
+ * <p>
+ * For each closed data file a background job writes a file per tier next to it, with the same name and tier's
+ * format, e.g. 2023_12_10_171145.r1m. Each line holds aggregate of a reading in a tier's time bucket:
+ * <pre>
+ * bucketEpochMs,readingId,count,min,max,sum,last
+ * </pre>
+ * NaN and infinite values are ignored. Buckets of coarser tiers can span multiple data files, each file then has
+ * a partial aggregate for it.
+ */
+public class ReadingsRollups {
+    private static final Logger LOG = Logger.getLogger(ReadingsRollups.class.getName());
+    private static final long JOB_INTERVAL_MS = 60 * 1000;
+    // from the finest to the coarsest
+    static final Tier[] TIERS = {
+            new Tier("r1s", 1000),
+            new Tier("r1m", 60 * 1000),
+            new Tier("r1h", 60 * 60 * 1000)};
+
+    static final class Tier {
+        final String format;
+        final long bucketMs;
+
+        Tier(String format, long bucketMs) {
+            this.format = format;
+            this.bucketMs = bucketMs;
+        }
+    }
+
+    private final String baseDir;
+    private final TextFormatReader reader;
+    // serialNumber -> start of the first file interval that wasn't looked at yet, so that each run only goes
+    // through newly closed files
+    private final Map<String, Long> nextIntervalEpochMs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "readings-rollups");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ReadingsRollups(String baseDir, TextFormatReader reader) {
+        this.baseDir = baseDir;
+        this.reader = reader;
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::rollupClosedFiles, 0, JOB_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if there's no tier with buckets small enough for the downsampler, then rollups can't help
+     */
+    public boolean appliesTo(ReadingsDownsampler downsampler) {
+        return tierFor(downsampler) != null;
+    }
+
+    // the coarsest tier that has buckets not larger than the downsampler's buckets, null if none
+    private static Tier tierFor(ReadingsDownsampler downsampler) {
+        Tier tier = null;
+        for (Tier t : TIERS) {
+            if (t.bucketMs <= downsampler.getBucketMs()) {
+                tier = t;
+            }
+        }
+        return tier;
+    }
+
+    /**
+     * Same as {@link ReadingsDownsampler} over raw data, but uses the coarsest tier that has buckets not larger
+     * than the downsampler's buckets, where available. Query range edges are then accurate up to tier's bucket.
+     */
+    public void downsample(String serialNumber, long startEpochMs, long endEpochMs, ReadingsDownsampler downsampler) {
+        Tier tier = tierFor(downsampler);
+        for (File dataFile : reader.findDataFiles(serialNumber, startEpochMs, endEpochMs)) {
+            File rollupFile = tier == null ? null : DataFilesStore.siblingFile(dataFile, tier.format);
+            if (rollupFile == null || !rollupFile.exists() ||
+                    !readRollup(rollupFile, startEpochMs, endEpochMs, downsampler)) {
+                reader.scanFile(dataFile, startEpochMs, endEpochMs, downsampler);
+            }
+        }
+    }
+
+    // adds nothing to the downsampler if the file can't be read, so that the caller can fall back to raw data
+    static boolean readRollup(File rollupFile, long startEpochMs, long endEpochMs,
+                              ReadingsDownsampler downsampler) {
+        List<RolledUpLine> lines = new ArrayList<>();
+        try (BufferedReader br = Files.newBufferedReader(rollupFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",");
+                long bucketEpochMs = Long.parseLong(parts[0]);
+                if (bucketEpochMs >= startEpochMs && bucketEpochMs < endEpochMs) {
+                    lines.add(new RolledUpLine(bucketEpochMs, parts[1], Long.parseLong(parts[2]),
+                            Double.parseDouble(parts[3]), Double.parseDouble(parts[4]), Double.parseDouble(parts[5])));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // ok to fall back to raw data; todo: if the file is broken, re-create it?
+            LOG.log(Level.INFO, "Failed to read rollup " + rollupFile + ", will use raw data.", e);
+            return false;
+        }
+        for (RolledUpLine l : lines) {
+            downsampler.addAggregate(l.bucketEpochMs, l.readingId, l.count, l.min, l.max, l.sum);
+        }
+        return true;
+    }
+
+    private static final class RolledUpLine {
+        final long bucketEpochMs;
+        final String readingId;
+        final long count;
+        final double min;
+        final double max;
+        final double sum;
+
+        RolledUpLine(long bucketEpochMs, String readingId, long count, double min, double max, double sum) {
+            this.bucketEpochMs = bucketEpochMs;
+            this.readingId = readingId;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+        }
+    }
+
+    private void rollupClosedFiles() {
+        try {
+            long nowMs = System.currentTimeMillis();
+            for (String serialNumber : DataFilesStore.listSerialNumbers(baseDir)) {
+                rollupClosedFiles(serialNumber, nowMs);
+            }
+        } catch (Exception e) {
+            // will retry next time
+            LOG.log(Level.WARNING, "Failed to create readings rollups", e);
+        }
+    }
+
+    private void rollupClosedFiles(String serialNumber, long nowMs) {
+        long fromEpochMs = nextIntervalEpochMs.getOrDefault(serialNumber, 0L);
+        for (File dataFile : reader.findDataFiles(serialNumber, fromEpochMs, nowMs)) {
+            // files are ordered by time, and all files of an interval get closed at the same time
+            if (!DataFilesStore.isClosed(dataFile, nowMs)) {
+                break;
+            }
+            long fileEpochMs = DataFilesStore.parseFileEpochMs(dataFile.getName());
+            nextIntervalEpochMs.put(serialNumber,
+                    (fileEpochMs / DataFilesStore.FILE_INTERVAL_MS + 1) * DataFilesStore.FILE_INTERVAL_MS);
+            // the coarsest tier is written last; the file may be deleted since the catalog was built
+            if (!dataFile.exists() ||
+                    DataFilesStore.siblingFile(dataFile, TIERS[TIERS.length - 1].format).exists()) {
+                continue;
+            }
+            try {
+                rollup(dataFile);
+            } catch (Exception e) {
+                if (dataFile.exists()) {
+                    // todo: retry? queries just fall back to raw data of this file
+                    LOG.log(Level.WARNING, "Failed to create readings rollups for " + dataFile + ", skipping.", e);
+                }
+            }
+        }
+    }
+
+    void rollup(File dataFile) throws IOException {
+        long startMs = System.currentTimeMillis();
+        // tier -> bucketEpochMs -> readingId -> aggregate
+        List<TreeMap<Long, Map<String, Aggregate>>> tiers = new ArrayList<>(TIERS.length);
+        for (int i = 0; i < TIERS.length; i++) {
+            tiers.add(new TreeMap<>());
+        }
+        reader.scanFile(dataFile, Long.MIN_VALUE, Long.MAX_VALUE, r -> {
+            if (r.parsedEvent == null) {
+                return true;
+            }
+            for (int i = 0; i < r.parsedEvent.readingIds.length; i++) {
+                double value = r.parsedEvent.readingValues[i];
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    continue;
+                }
+                for (int t = 0; t < TIERS.length; t++) {
+                    long bucketEpochMs = Math.floorDiv(r.epochMs, TIERS[t].bucketMs) * TIERS[t].bucketMs;
+                    tiers.get(t).computeIfAbsent(bucketEpochMs, k -> new HashMap<>())
+                            .computeIfAbsent(r.parsedEvent.readingIds[i], k -> new Aggregate())
+                            .add(value);
+                }
+            }
+            return true;
+        });
+        for (int t = 0; t < TIERS.length; t++) {
+            File rollupFile = DataFilesStore.siblingFile(dataFile, TIERS[t].format);
+            // writing to temp file first, so that readers never see partially written file
+            File tmpFile = new File(rollupFile.getPath() + ".tmp");
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+                for (Map.Entry<Long, Map<String, Aggregate>> bucket : tiers.get(t).entrySet()) {
+                    for (Map.Entry<String, Aggregate> reading : bucket.getValue().entrySet()) {
+                        Aggregate a = reading.getValue();
+                        writer.write(bucket.getKey() + "," + reading.getKey() + "," + a.count + "," +
+                                a.min + "," + a.max + "," + a.sum + "," + a.last + "\n");
+                    }
+                }
+            }
+            Files.move(tmpFile.toPath(), rollupFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        LOG.fine("Created rollups for " + dataFile + " in " + (System.currentTimeMillis() - startMs) + "ms");
+    }
+
+    private static final class Aggregate {
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum;
+        double last;
+
+        void add(double value) {
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            last = value;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package com.sensortea.cuplogger;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records stored column by column in primitive arrays, with programIds, programVersions, deviceConfigs and
+ * readingIds replaced by codes in a dictionary of strings. Much more compact than a list of {@link DataRecord}s:
+ * a record costs a few dozen bytes plus its text, and large results are a handful of big arrays for GC to deal with
+ * instead of millions of small objects. Use {@link #cursor()} to go through records without creating objects.
+ * <p>
+ * Raw records have NO_CODE as their programId, programVersion and deviceConfig. Text column holds rawText for raw
+ * records and logMessage for parsed ones.
+ */
+public class RecordColumns implements DataReader.RecordConsumer {
+    public static final int NO_CODE = -1;
+
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    private int size;
+    private long[] epochMs = new long[1024];
+    private int[] programIds = new int[1024];
+    private int[] programVersions = new int[1024];
+    private int[] deviceConfigs = new int[1024];
+    private long[] timeDeltas = new long[1024];
+    private String[] texts = new String[1024];
+    private int[] readingsCounts = new int[1024];
+    // index of the first reading of the record in readingIds and readingValues
+    private int[] readingsStarts = new int[1024];
+
+    private int readingsSize;
+    private int[] readingIds = new int[1024];
+    private double[] readingValues = new double[1024];
+
+    @Override
+    public boolean acceptAndContinue(DataRecord r) {
+        add(r);
+        return true;
+    }
+
+    @Override
+    public boolean acceptAll(RecordColumns columns, long startEpochMs, long endEpochMs) {
+        addAll(columns, startEpochMs, endEpochMs);
+        return true;
+    }
+
+    /**
+     * Copies records in [startEpochMs, endEpochMs) from other columns, without creating record objects.
+     */
+    public void addAll(RecordColumns other, long startEpochMs, long endEpochMs) {
+        // other's dictionary code -> code in this dictionary, NO_CODE if not mapped yet
+        int[] codeMap = new int[other.dictionary.size()];
+        Arrays.fill(codeMap, NO_CODE);
+        for (int i = 0; i < other.size; i++) {
+            long epoch = other.epochMs[i];
+            if (epoch < startEpochMs || epoch >= endEpochMs) {
+                continue;
+            }
+            ensureCapacity();
+            epochMs[size] = epoch;
+            readingsStarts[size] = readingsSize;
+            texts[size] = other.texts[i];
+            if (other.programIds[i] == NO_CODE) {
+                programIds[size] = NO_CODE;
+                programVersions[size] = NO_CODE;
+                deviceConfigs[size] = NO_CODE;
+            } else {
+                programIds[size] = mapCode(other, codeMap, other.programIds[i]);
+                programVersions[size] = mapCode(other, codeMap, other.programVersions[i]);
+                deviceConfigs[size] = mapCode(other, codeMap, other.deviceConfigs[i]);
+                timeDeltas[size] = other.timeDeltas[i];
+                int count = other.readingsCounts[i];
+                int start = other.readingsStarts[i];
+                readingsCounts[size] = count;
+                ensureReadingsCapacity(count);
+                for (int j = 0; j < count; j++) {
+                    readingIds[readingsSize] = mapCode(other, codeMap, other.readingIds[start + j]);
+                    readingValues[readingsSize] = other.readingValues[start + j];
+                    readingsSize++;
+                }
+            }
+            size++;
+        }
+    }
+
+    private int mapCode(RecordColumns other, int[] codeMap, int otherCode) {
+        int code = codeMap[otherCode];
+        if (code == NO_CODE) {
+            code = code(other.dictionary.get(otherCode));
+            codeMap[otherCode] = code;
+        }
+        return code;
+    }
+
+    private void ensureCapacity() {
+        if (size == epochMs.length) {
+            int capacity = Math.max(1024, size * 2);
+            epochMs = Arrays.copyOf(epochMs, capacity);
+            programIds = Arrays.copyOf(programIds, capacity);
+            programVersions = Arrays.copyOf(programVersions, capacity);
+            deviceConfigs = Arrays.copyOf(deviceConfigs, capacity);
+            timeDeltas = Arrays.copyOf(timeDeltas, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+            readingsCounts = Arrays.copyOf(readingsCounts, capacity);
+            readingsStarts = Arrays.copyOf(readingsStarts, capacity);
+        }
+    }
+
+    private void ensureReadingsCapacity(int count) {
+        if (readingsSize + count > readingIds.length) {
+            int capacity = Math.max(readingsSize + count, readingIds.length * 2);
+            readingIds = Arrays.copyOf(readingIds, capacity);
+            readingValues = Arrays.copyOf(readingValues, capacity);
+        }
+    }
+
+    public void add(DataRecord r) {
+        ensureCapacity();
+        epochMs[size] = r.epochMs;
+        readingsStarts[size] = readingsSize;
+        DataRecord.Event e = r.parsedEvent;
+        if (e == null) {
+            programIds[size] = NO_CODE;
+            programVersions[size] = NO_CODE;
+            deviceConfigs[size] = NO_CODE;
+            texts[size] = r.rawText;
+        } else {
+            programIds[size] = code(e.programId);
+            programVersions[size] = code(e.programVersion);
+            deviceConfigs[size] = code(e.deviceConfig);
+            timeDeltas[size] = e.timeDelta;
+            texts[size] = e.logMessage;
+            readingsCounts[size] = e.readingIds.length;
+            ensureReadingsCapacity(e.readingIds.length);
+            for (int i = 0; i < e.readingIds.length; i++) {
+                readingIds[readingsSize] = code(e.readingIds[i]);
+                readingValues[readingsSize] = e.readingValues[i];
+                readingsSize++;
+            }
+        }
+        size++;
+    }
+
+    private int code(String value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.add(value);
+            codes.put(value, code);
+        }
+        return code;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int readingsSize() {
+        return readingsSize;
+    }
+
+    public double readingValue(int idx) {
+        return readingValues[idx];
+    }
+
+    /**
+     * @return new record with the data of the record at given index
+     */
+    public DataRecord get(int idx) {
+        DataRecord r = new DataRecord();
+        r.epochMs = epochMs[idx];
+        if (programIds[idx] == NO_CODE) {
+            r.rawText = texts[idx];
+            return r;
+        }
+        DataRecord.Event e = new DataRecord.Event();
+        e.programId = dictionary.get(programIds[idx]);
+        e.programVersion = dictionary.get(programVersions[idx]);
+        e.deviceConfig = dictionary.get(deviceConfigs[idx]);
+        e.timeDelta = timeDeltas[idx];
+        e.logMessage = texts[idx];
+        int count = readingsCounts[idx];
+        int start = readingsStarts[idx];
+        e.readingIds = new String[count];
+        e.readingValues = Arrays.copyOfRange(readingValues, start, start + count);
+        for (int i = 0; i < count; i++) {
+            e.readingIds[i] = dictionary.get(readingIds[start + i]);
+        }
+        r.parsedEvent = e;
+        return r;
+    }
+
+    /**
+     * @return cursor positioned before the first record
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Flyweight view of a record at the current position, valid until the cursor moves.
+     */
+    public class Cursor {
+        private int idx = -1;
+
+        /**
+         * @return false if there are no more records
+         */
+        public boolean next() {
+            if (idx < size) {
+                idx++;
+            }
+            return idx < size;
+        }
+
+        public long epochMs() {
+            return epochMs[idx];
+        }
+
+        /**
+         * @return false for raw records, i.e. those that have only {@link #rawText()}
+         */
+        public boolean isParsed() {
+            return programIds[idx] != NO_CODE;
+        }
+
+        public String rawText() {
+            return isParsed() ? null : texts[idx];
+        }
+
+        public String programId() {
+            return isParsed() ? dictionary.get(programIds[idx]) : null;
+        }
+
+        public String programVersion() {
+            return isParsed() ? dictionary.get(programVersions[idx]) : null;
+        }
+
+        public String deviceConfig() {
+            return isParsed() ? dictionary.get(deviceConfigs[idx]) : null;
+        }
+
+        public long timeDelta() {
+            return timeDeltas[idx];
+        }
+
+        public String logMessage() {
+            return isParsed() ? texts[idx] : null;
+        }
+
+        public int readingsCount() {
+            return isParsed() ? readingsCounts[idx] : 0;
+        }
+
+        public String readingId(int i) {
+            return dictionary.get(readingIds[readingsStarts[idx] + i]);
+        }
+
+        public double readingValue(int i) {
+            return readingValues[readingsStarts[idx] + i];
+        }
+
+        /**
+         * @return new record with the data of the current one, e.g. to keep it
+         */
+        public DataRecord toRecord() {
+            return get(idx);
+        }
+    }
+
+    /**
+     * Feeds records in [startEpochMs, endEpochMs) to the consumer, in the order they were added.
+     * @return false if consumer asked to stop
+     */
+    public boolean scan(long startEpochMs, long endEpochMs, DataReader.RecordConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            if (epochMs[i] >= startEpochMs && epochMs[i] < endEpochMs && !consumer.acceptAndContinue(get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases unused capacity, e.g. before keeping the columns for long.
+     */
+    public void trim() {
+        epochMs = Arrays.copyOf(epochMs, size);
+        programIds = Arrays.copyOf(programIds, size);
+        programVersions = Arrays.copyOf(programVersions, size);
+        deviceConfigs = Arrays.copyOf(deviceConfigs, size);
+        timeDeltas = Arrays.copyOf(timeDeltas, size);
+        texts = Arrays.copyOf(texts, size);
+        readingsCounts = Arrays.copyOf(readingsCounts, size);
+        readingsStarts = Arrays.copyOf(readingsStarts, size);
+        readingIds = Arrays.copyOf(readingIds, readingsSize);
+        readingValues = Arrays.copyOf(readingValues, readingsSize);
+    }
+
+    /**
+     * @return rough estimate of heap used
+     */
+    public long estimateBytes() {
+        long bytes = 256 + (long) epochMs.length * (8 + 4 + 4 + 4 + 8 + 8 + 4 + 4) +
+                (long) readingIds.length * (4 + 8);
+        for (int i = 0; i < size; i++) {
+            if (texts[i] != null) {
+                bytes += 48 + 2L * texts[i].length();
+            }
+        }
+        for (String s : dictionary) {
+            bytes += 96 + 2L * s.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes columns as a JSON object. Epochs are written as deltas to the previous record (first one to 0).
+     * @param withReadingValues false to skip readingValues, e.g. to send them separately in binary form
+     */
+    public void writeJson(JsonWriter writer, boolean withReadingValues) throws IOException {
+        writer.beginObject();
+        writer.name("count").value(size);
+        writer.name("dictionary").beginArray();
+        for (String s : dictionary) {
+            writer.value(s);
+        }
+        writer.endArray();
+        writer.name("epochMsDeltas").beginArray();
+        long prevEpochMs = 0;
+        for (int i = 0; i < size; i++) {
+            writer.value(epochMs[i] - prevEpochMs);
+            prevEpochMs = epochMs[i];
+        }
+        writer.endArray();
+        writeInts(writer, "programIds", programIds, size);
+        writeInts(writer, "programVersions", programVersions, size);
+        writeInts(writer, "deviceConfigs", deviceConfigs, size);
+        writer.name("timeDeltas").beginArray();
+        for (int i = 0; i < size; i++) {
+            writer.value(timeDeltas[i]);
+        }
+        writer.endArray();
+        writer.name("texts").beginArray();
+        for (int i = 0; i < size; i++) {
+            writer.value(texts[i]);
+        }
+        writer.endArray();
+        writeInts(writer, "readingsCounts", readingsCounts, size);
+        writeInts(writer, "readingIds", readingIds, readingsSize);
+        if (withReadingValues) {
+            writer.name("readingValues").beginArray();
+            for (int i = 0; i < readingsSize; i++) {
+                double value = readingValues[i];
+                // JSON has no NaN and Infinity
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    writer.nullValue();
+                } else {
+                    writer.value(value);
+                }
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes columns in binary form: headerLength(uint32) header(utf8 json) padding readingValues(float64)*
+     * where header is written by {@link #writeJson} without readingValues and is padded with spaces to 8 bytes
+     * alignment. Numbers are little-endian, so that browsers can use readingValues as Float64Array directly.
+     */
+    public void writeBinary(OutputStream out) throws IOException {
+        StringWriter header = new StringWriter();
+        writeJson(new JsonWriter(header), false);
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+        int padding = (8 - (4 + headerBytes.length) % 8) % 8;
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(headerBytes.length + padding);
+        out.write(buffer.array(), 0, buffer.position());
+        out.write(headerBytes);
+        for (int i = 0; i < padding; i++) {
+            out.write(' ');
+        }
+        buffer.clear();
+        for (int i = 0; i < readingsSize; i++) {
+            if (!buffer.hasRemaining()) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putDouble(readingValues[i]);
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static void writeInts(JsonWriter writer, String name, int[] values, int count) throws IOException {
+        writer.name(name).beginArray();
+        for (int i = 0; i < count; i++) {
+            writer.value(values[i]);
+        }
+        writer.endArray();
+    }
+}
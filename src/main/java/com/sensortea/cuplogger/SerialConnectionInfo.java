@@ -19,4 +19,21 @@ public final class SerialConnectionInfo {
     int baudRate;
     boolean dataCaptureOn;
     String name;
+
+    SerialConnectionInfo copy() {
+        SerialConnectionInfo copy = new SerialConnectionInfo();
+        copy.serialNumber = serialNumber;
+        copy.vendorID = vendorID;
+        copy.productID = productID;
+        copy.descriptivePortName = descriptivePortName;
+        copy.systemPortName = systemPortName;
+        copy.systemPortPath = systemPortPath;
+        copy.portDescription = portDescription;
+        copy.portLocation = portLocation;
+        copy.connected = connected;
+        copy.baudRate = baudRate;
+        copy.dataCaptureOn = dataCaptureOn;
+        copy.name = name;
+        return copy;
+    }
 }
@@ -6,13 +6,25 @@ import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.function.Consumer;
 
+/**
+ * Keeps configuration of serial connections in serialConnections.json of the base dir. The file is parsed only when
+ * it changes, e.g. when edited by hand, everything else is served from memory. Change callbacks are called both on
+ * updates and when the file is found to be changed by hand.
+ */
 // todo: lock file when modifying?
 public class SerialConnectionsConfig {
     private final String filePath;
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    // as last read from or written to the file, never given out: callers get copies they can change
+    private Map<String, SerialConnectionInfo> cached;
+    // of the file the cached state is from
+    private long cachedLastModified;
+    private long cachedLength;
 
     private final Collection<Consumer<Map<String, SerialConnectionInfo>>> changeCallbacks = new ArrayList<>();
 
@@ -30,9 +42,11 @@ public class SerialConnectionsConfig {
         saveToFile(list);
     }
 
+    /**
+     * @return copy of the configuration, can be changed by the caller
+     */
     public synchronized Map<String, SerialConnectionInfo> list() throws IOException {
-        // todo: make a copy if we decide to cache
-        return loadFromFile();
+        return copy(loadFromFile());
     }
 
     public synchronized void setBaudRate(String serialNumber, int baudRate) throws IOException {
@@ -47,33 +61,65 @@ public class SerialConnectionsConfig {
         update(serialNumber, portInfo -> portInfo.name = name);
     }
 
+    private static Map<String, SerialConnectionInfo> copy(Map<String, SerialConnectionInfo> serialPortInfos) {
+        Map<String, SerialConnectionInfo> copy = new HashMap<>();
+        serialPortInfos.forEach((serialNumber, info) -> copy.put(serialNumber, info.copy()));
+        return copy;
+    }
+
+    // returns cached state, must not be changed
     private synchronized Map<String, SerialConnectionInfo> loadFromFile() throws IOException {
-        // todo: cache based on the file modified timestamp
-        try (Reader reader = new FileReader(filePath)) {
+        File file = new File(filePath);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (cached != null && lastModified == cachedLastModified && length == cachedLength) {
+            return cached;
+        }
+        try (Reader reader = new FileReader(file)) {
             // todo: here and everywhere: handle bad config file (e.g. manually corrupted) - bad json
             Map<String, SerialConnectionInfo> serialPortInfos =
                     gson.fromJson(reader, new TypeToken<HashMap<String, SerialConnectionInfo>>() {}.getType());
             if (serialPortInfos == null) {
                 serialPortInfos = new HashMap<>();
             }
-            // clear up live connection state
-            serialPortInfos.values().forEach(serialConnectionInfo -> {
-                serialConnectionInfo.portLocation = null;
-                serialConnectionInfo.connected = false;
-            });
+            clearLiveState(serialPortInfos);
+            boolean changedExternally = cached != null;
+            cached = serialPortInfos;
+            cachedLastModified = lastModified;
+            cachedLength = length;
+            if (changedExternally) {
+                // e.g. edited by hand
+                Map<String, SerialConnectionInfo> changed = serialPortInfos;
+                changeCallbacks.forEach(consumer -> consumer.accept(copy(changed)));
+            }
             return serialPortInfos;
         }
     }
 
+    private static void clearLiveState(Map<String, SerialConnectionInfo> serialPortInfos) {
+        serialPortInfos.values().forEach(serialConnectionInfo -> {
+            serialConnectionInfo.portLocation = null;
+            serialConnectionInfo.connected = false;
+        });
+    }
+
     private synchronized void saveToFile(Map<String, SerialConnectionInfo> serialPortInfos) throws IOException {
-        try (Writer writer = new FileWriter(filePath)) {
+        File file = new File(filePath);
+        // writing to temp file first, so that a crash or a reader never sees partially written config
+        File tmpFile = new File(filePath + ".tmp");
+        try (Writer writer = new FileWriter(tmpFile)) {
             gson.toJson(serialPortInfos, writer);
         }
-        changeCallbacks.forEach(consumer -> consumer.accept(serialPortInfos));
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        cached = copy(serialPortInfos);
+        clearLiveState(cached);
+        cachedLastModified = file.lastModified();
+        cachedLength = file.length();
+        changeCallbacks.forEach(consumer -> consumer.accept(copy(serialPortInfos)));
     }
 
     private synchronized void update(String serialNumber, Consumer<SerialConnectionInfo> updateFunction) throws IOException {
-        Map<String, SerialConnectionInfo> map = loadFromFile();
+        Map<String, SerialConnectionInfo> map = copy(loadFromFile());
         if (!map.containsKey(serialNumber)) {
             // todo: think and throw smth
             return;
@@ -0,0 +1,14 @@
+package com.sensortea.cuplogger;
+
+/**
+ * Known serial connections with the version of their state: it changes whenever anything in the list does.
+ */
+public class SerialConnectionsListing {
+    public final long version;
+    public final Iterable<SerialConnectionInfo> connections;
+
+    public SerialConnectionsListing(long version, Iterable<SerialConnectionInfo> connections) {
+        this.version = version;
+        this.connections = connections;
+    }
+}
@@ -0,0 +1,117 @@
+package com.sensortea.cuplogger;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Serial ports of connected devices, with jSerialComm. Only ports with serial numbers are listed, as connections are
+ * identified by them.
+ */
+class SerialPortDriver implements PortDriver {
+    private static final Logger LOG = Logger.getLogger(SerialPortDriver.class.getName());
+    private static final Pattern NOT_ALLOWED_IN_SERIAL_NUMBER = Pattern.compile("[^A-Za-z0-9]");
+
+    static String getSerialNumber(SerialPort port) {
+        return NOT_ALLOWED_IN_SERIAL_NUMBER.matcher(port.getSerialNumber()).replaceAll("_");
+    }
+
+    @Override
+    public List<PortDiscovery.Port> scan() {
+        List<PortDiscovery.Port> result = new ArrayList<>();
+        for (SerialPort p : SerialPort.getCommPorts()) {
+            String serialNumber = getSerialNumber(p);
+            if (!"Unknown".equals(serialNumber)) {
+                result.add(new Port(serialNumber, p));
+            }
+        }
+        return result;
+    }
+
+    // as found, never opened
+    private static final class Port extends PortDiscovery.Port {
+        private final SerialPort port;
+
+        Port(String serialNumber, SerialPort port) {
+            super(serialNumber);
+            this.port = port;
+        }
+
+        @Override
+        CapturePort newCapturePort() {
+            return new SerialCapturePort(serialNumber, SerialPort.getCommPort(port.getSystemPortPath()));
+        }
+
+        @Override
+        void describe(SerialConnectionInfo info) {
+            info.vendorID = port.getVendorID();
+            info.productID = port.getProductID();
+            info.descriptivePortName = port.getDescriptivePortName();
+            info.systemPortName = port.getSystemPortName();
+            info.systemPortPath = port.getSystemPortPath();
+            info.portDescription = port.getPortDescription();
+            info.portLocation = port.getPortLocation();
+            info.baudRate = port.getBaudRate();
+        }
+
+        @Override
+        String getLocation() {
+            return port.getPortLocation();
+        }
+    }
+
+    private static final class SerialCapturePort implements CapturePort {
+        private final String serialNumber;
+        private final SerialPort serialPort;
+
+        SerialCapturePort(String serialNumber, SerialPort serialPort) {
+            this.serialNumber = serialNumber;
+            this.serialPort = serialPort;
+        }
+
+        @Override
+        public boolean open(int baudRate, boolean blockingReads, int readTimeoutMs) {
+            serialPort.setBaudRate(baudRate);
+            if (!serialPort.openPort()) {
+                LOG.info("Failed to open port: " + serialNumber +
+                        // somehow saw in tests with bad baud rate it fails here
+                        ". Maybe baud rate " + baudRate + " is not good?");
+                close();
+                return false;
+            }
+            serialPort.setComPortTimeouts(
+                    blockingReads ? SerialPort.TIMEOUT_READ_SEMI_BLOCKING : SerialPort.TIMEOUT_NONBLOCKING,
+                    readTimeoutMs, 0);
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return serialPort.isOpen();
+        }
+
+        @Override
+        public int read(byte[] buffer, int length) {
+            return serialPort.readBytes(buffer, length);
+        }
+
+        @Override
+        public void close() {
+            try {
+                serialPort.closePort();
+            } catch (Exception e) {
+                // nothing to do: parent will restart the task if needed and will retry to open
+                LOG.log(Level.INFO, "Error while closing port of " + serialNumber + ": " + serialPort, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return serialPort.toString();
+        }
+    }
+}
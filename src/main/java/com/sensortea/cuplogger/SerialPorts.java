@@ -1,41 +1,85 @@
 package com.sensortea.cuplogger;
 
 import com.fazecast.jSerialComm.SerialPort;
+import com.google.gson.Gson;
 
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class SerialPorts {
     private static final Logger LOG = Logger.getLogger(SerialPorts.class.getName());
+    private static final long SYNC_INTERVAL_MS = 2000;
+    // tasks that stopped sooner than that are restarted with growing delays, e.g. when the port keeps failing
+    private static final long STABLE_RUN_MS = 60_000;
+    private static final long MIN_RESTART_DELAY_MS = 1000;
+    private static final long MAX_RESTART_DELAY_MS = 60_000;
 
     private final SerialConnectionsConfig connectionsConfig;
     private final String baseDir;
+    private final String dataFormat;
+    private final LiveRecords liveRecords;
     private final ConcurrentHashMap<String, RunningTask> runningTasks = new ConcurrentHashMap<>();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final PortDiscovery portDiscovery;
+    private final CaptureScheduler captureScheduler = CaptureScheduler.configured();
+    // null if disabled
+    private final CaptureWriterStage writerStage = CaptureWriterStage.configured(captureScheduler.needsWriterStage());
+    private final ScheduledExecutorService syncExecutor =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "serial-ports-sync"));
+    // ports whose tasks stopped on their own, by serial number; guarded by this
+    private final Map<String, Restart> restarts = new HashMap<>();
+
+    private final Object listingLock = new Object();
+    private final Gson gson = new Gson();
+    private SerialConnectionsListing listing;
+    private String listingJson;
+    // waiting for listing changes is done on a separate lock, so that notifying never waits for listing re-build
+    private final Object listingChangeLock = new Object();
+    // set when config or available ports change, then listing is re-built when asked for
+    private volatile boolean listingStale;
 
     private static class RunningTask {
-        final Future<?> future;
+        // set right after the task is started
+        Future<?> future;
         final int baudRate;
+        final long startedEpochMs = System.currentTimeMillis();
 
-        public RunningTask(Future<?> future, int baudRate) {
-            this.future = future;
+        public RunningTask(int baudRate) {
             this.baudRate = baudRate;
         }
     }
 
-    public SerialPorts(SerialConnectionsConfig connectionsConfig, String baseDir) throws IOException {
+    private static class Restart {
+        long delayMs;
+        long notBeforeEpochMs;
+    }
+
+    public SerialPorts(SerialConnectionsConfig connectionsConfig, String baseDir, String dataFormat,
+                       LiveRecords liveRecords) throws IOException {
+        this(connectionsConfig, baseDir, dataFormat, liveRecords, PortDriver.configured());
+    }
+
+    SerialPorts(SerialConnectionsConfig connectionsConfig, String baseDir, String dataFormat,
+                LiveRecords liveRecords, PortDriver portDriver) throws IOException {
+        this.portDiscovery = new PortDiscovery(portDriver);
         this.connectionsConfig = connectionsConfig;
         this.baseDir = baseDir;
+        this.dataFormat = dataFormat;
+        this.liveRecords = liveRecords;
         connectionsConfig.addChangeCallback(this::syncAll);
-        // Make sure reader tasks are running as per configuration, and as per available ports, incl. if tasks exited.
+        connectionsConfig.addChangeCallback(configured -> notifyListingChanged());
+        // ports are re-scanned at least as often as they are synced
+        portDiscovery.addChangeCallback(this::notifyListingChanged);
+        // Make sure reader tasks are running as per configuration, and as per available ports. Tasks that exit are
+        // restarted on their own, see taskStopped.
         syncAll(connectionsConfig.list());
-        syncAllPeriodically();
+        startAvailablePeriodically();
     }
 
     /**
@@ -54,21 +98,14 @@ public class SerialPorts {
         }
 
         boolean updateConfig = false;
-        for (SerialPort livePort : listUsbPorts()) {
-            String serialNumber = getSerialNumber(livePort);
+        for (PortDiscovery.Port port : portDiscovery.listUsbPorts()) {
+            String serialNumber = port.serialNumber;
             // todo: add newly discovered periodically in sync method instead of here?
             if (!configured.containsKey(serialNumber)) {
                 SerialConnectionInfo item = new SerialConnectionInfo();
                 item.name = "New Device";
                 item.serialNumber = serialNumber;
-                item.vendorID = livePort.getVendorID();
-                item.productID = livePort.getProductID();
-                item.descriptivePortName = livePort.getDescriptivePortName();
-                item.systemPortName = livePort.getSystemPortName();
-                item.systemPortPath = livePort.getSystemPortPath();
-                item.portDescription = livePort.getPortDescription();
-                item.portLocation = livePort.getPortLocation();
-                item.baudRate = livePort.getBaudRate();
+                port.describe(item);
                 item.connected = true;
                 item.dataCaptureOn = false;
                 configured.put(item.serialNumber, item);
@@ -76,7 +113,7 @@ public class SerialPorts {
                 updateConfig = true;
             } else {
                 SerialConnectionInfo serialConnectionInfo = configured.get(serialNumber);
-                serialConnectionInfo.portLocation = livePort.getPortLocation();
+                serialConnectionInfo.portLocation = port.getLocation();
                 // we need another attribute: reading task active or not
                 serialConnectionInfo.connected = true;
             }
@@ -95,51 +132,88 @@ public class SerialPorts {
         return result;
     }
 
-    public static String getSerialNumber(SerialPort port) {
-        return port.getSerialNumber().replaceAll("[^A-Za-z0-9]", "_");
-    }
-
-    static Iterable<SerialPort> listUsbPorts() {
-        List<SerialPort> result = new ArrayList<>();
-        for (SerialPort p : SerialPort.getCommPorts()) {
-            if (!"Unknown".equals(getSerialNumber(p))) {
-                result.add(p);
+    /**
+     * @return current connections, as {@link #listAndUpdateConnections()}, with their version
+     */
+    public SerialConnectionsListing getListing() {
+        synchronized (listingLock) {
+            if (listing == null || listingStale) {
+                // changes that happen while re-building will make it stale again
+                listingStale = false;
+                Iterable<SerialConnectionInfo> connections = listAndUpdateConnections();
+                String json = gson.toJson(connections);
+                if (listing == null) {
+                    // so that versions known by clients from before restart don't match
+                    listing = new SerialConnectionsListing(System.currentTimeMillis(), connections);
+                } else if (!json.equals(listingJson)) {
+                    listing = new SerialConnectionsListing(listing.version + 1, connections);
+                }
+                listingJson = json;
             }
+            return listing;
         }
-        return result;
     }
 
-    private void syncAllPeriodically() {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                Map<String, SerialConnectionInfo> configured;
-                try {
-                    configured = connectionsConfig.list();
-                } catch (IOException e) {
-                    // we'll retry
-                    LOG.warning("Was not able to read from connections config, " +
-                            "will not be able to read from re-connected connections.");
-                    return;
+    /**
+     * Waits until the listing has a version different from the known one.
+     *
+     * @return changed listing, or the current one if it didn't change in waitMs
+     */
+    public SerialConnectionsListing awaitListingChange(long knownVersion, long waitMs) {
+        long deadlineMs = System.currentTimeMillis() + waitMs;
+        while (true) {
+            SerialConnectionsListing current = getListing();
+            long remainingMs = deadlineMs - System.currentTimeMillis();
+            if (current.version != knownVersion || remainingMs <= 0) {
+                return current;
+            }
+            synchronized (listingChangeLock) {
+                if (!listingStale) {
+                    try {
+                        listingChangeLock.wait(remainingMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return current;
+                    }
                 }
-                syncAll(configured);
             }
-        }, 0, 2000);
+        }
     }
 
-    private void syncAll(Map<String, SerialConnectionInfo> configured) {
-        // 0. remove completed tasks
-        Set<String> completedTaskKeys = new HashSet<>();
-        for (Map.Entry<String, RunningTask> entry : runningTasks.entrySet()) {
-            if (entry.getValue().future.isDone()) {
-                completedTaskKeys.add(entry.getKey());
-            }
-        }
-        for (String key : completedTaskKeys) {
-            runningTasks.remove(key);
+    private void notifyListingChanged() {
+        synchronized (listingChangeLock) {
+            listingStale = true;
+            listingChangeLock.notifyAll();
         }
+    }
 
+    public static String getSerialNumber(SerialPort port) {
+        return SerialPortDriver.getSerialNumber(port);
+    }
+
+    // Discovers newly plugged in ports (and notices config edited by hand, see SerialConnectionsConfig.list)
+    private void startAvailablePeriodically() {
+        syncExecutor.scheduleWithFixedDelay(() -> {
+            Map<String, SerialConnectionInfo> configured;
+            try {
+                configured = connectionsConfig.list();
+            } catch (IOException e) {
+                // we'll retry
+                LOG.warning("Was not able to read from connections config, " +
+                        "will not be able to read from re-connected connections.");
+                return;
+            }
+            try {
+                startAvailable(configured);
+            } catch (RuntimeException e) {
+                // must not throw, or it won't be scheduled anymore
+                LOG.log(Level.WARNING, "Failed to sync serial ports", e);
+            }
+        }, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // called on config changes
+    private synchronized void syncAll(Map<String, SerialConnectionInfo> configured) {
         // 1. stop those that were removed from configured or were configured to data capture off
         // 1b. restart those that have new baud rate
         for (Map.Entry<String, RunningTask> taskEntry : runningTasks.entrySet()) {
@@ -166,23 +240,86 @@ public class SerialPorts {
         }
 
         // 2. start based on configuration (those that are available)
-        for (SerialPort availablePort : listUsbPorts()) {
-            String serialNumber = getSerialNumber(availablePort);
-            if (configured.containsKey(serialNumber)) {
-                SerialConnectionInfo config = configured.get(serialNumber);
-                if (!runningTasks.containsKey(serialNumber)) {
-                    if (config.dataCaptureOn) {
-                        startListening(config.serialNumber, config.baudRate);
-                    }
+        startAvailable(configured);
+    }
+
+    private synchronized void startAvailable(Map<String, SerialConnectionInfo> configured) {
+        long nowMs = System.currentTimeMillis();
+        for (PortDiscovery.Port availablePort : portDiscovery.listUsbPorts()) {
+            String serialNumber = availablePort.serialNumber;
+            SerialConnectionInfo config = configured.get(serialNumber);
+            if (config != null && config.dataCaptureOn && !runningTasks.containsKey(serialNumber)) {
+                Restart restart = restarts.get(serialNumber);
+                // otherwise it's restarted when due
+                if (restart == null || nowMs >= restart.notBeforeEpochMs) {
+                    startListening(config.serialNumber, config.baudRate);
                 }
             }
         }
     }
 
     private void startListening(String serialNumber, int baudRate) {
-        SerialReaderTask task = new SerialReaderTask(serialNumber, baudRate, baseDir);
-        Future<?> future = executorService.submit(task);
-        runningTasks.put(serialNumber, new RunningTask(future, baudRate));
+        SerialReaderTask task = new SerialReaderTask(serialNumber, baudRate, baseDir, dataFormat, liveRecords,
+                writerStage, portDiscovery);
+        RunningTask running = new RunningTask(baudRate);
+        // called on the capture thread, so passing it on; taskStopped waits until the task is registered below
+        running.future = captureScheduler.start(task,
+                () -> syncExecutor.execute(() -> taskStopped(serialNumber, running)));
+        runningTasks.put(serialNumber, running);
+    }
+
+    // Restarts tasks that stopped on their own, e.g. when the port failed or was unplugged, with growing delays if
+    // they keep failing. Runs on syncExecutor.
+    private synchronized void taskStopped(String serialNumber, RunningTask task) {
+        if (!runningTasks.remove(serialNumber, task)) {
+            // stopped on purpose
+            return;
+        }
+        long nowMs = System.currentTimeMillis();
+        long delayMs = 0;
+        if (nowMs - task.startedEpochMs < STABLE_RUN_MS) {
+            Restart restart = restarts.computeIfAbsent(serialNumber, k -> new Restart());
+            restart.delayMs = Math.min(MAX_RESTART_DELAY_MS, Math.max(MIN_RESTART_DELAY_MS, restart.delayMs * 2));
+            restart.notBeforeEpochMs = nowMs + restart.delayMs;
+            delayMs = restart.delayMs;
+            LOG.info("Will restart listening to " + serialNumber + " in " + delayMs + "ms.");
+        } else {
+            restarts.remove(serialNumber);
+        }
+        syncExecutor.schedule(() -> restart(serialNumber), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void restart(String serialNumber) {
+        if (runningTasks.containsKey(serialNumber)) {
+            // e.g. config changed meanwhile
+            return;
+        }
+        Map<String, SerialConnectionInfo> configured;
+        try {
+            configured = connectionsConfig.list();
+        } catch (IOException e) {
+            // will be started by the periodic sync once the config can be read
+            LOG.log(Level.WARNING, "Failed to read config, not restarting " + serialNumber + " for now", e);
+            return;
+        }
+        SerialConnectionInfo config = configured.get(serialNumber);
+        if (config == null || !config.dataCaptureOn) {
+            return;
+        }
+        for (PortDiscovery.Port availablePort : portDiscovery.listUsbPorts()) {
+            if (serialNumber.equals(availablePort.serialNumber)) {
+                startListening(serialNumber, config.baudRate);
+                return;
+            }
+        }
+        // not plugged in: will be started by the periodic sync when it is
+    }
+
+    /**
+     * @return stats of ports captured since the server start, by serial number, empty if queues are disabled
+     */
+    public Map<String, CaptureQueueStats> getCaptureStats() {
+        return writerStage == null ? new TreeMap<>() : writerStage.getStats();
     }
 
     private void stopListening(String serialNumber) {
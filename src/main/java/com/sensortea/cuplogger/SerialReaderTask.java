@@ -1,52 +1,94 @@
 package com.sensortea.cuplogger;
 
-import com.fazecast.jSerialComm.SerialPort;
-
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Captures data of a single port, serial or simulated, see {@link PortDriver}. Runs on its own thread with
+ * {@link #run()}, or is driven by {@link CaptureScheduler} step by step.
+ */
 class SerialReaderTask implements Runnable {
     private static final Logger LOG = Logger.getLogger(SerialReaderTask.class.getName());
+    // how long a read waits for data: reads return as soon as any data arrives, so this only affects how often
+    // the idle loop checks for interruption and flushes the writer
+    private static final int READ_TIMEOUT_MS = 100;
+    // how long to wait before reading again when polling a port: the shortest while it has data, so that the data is
+    // timestamped closer to its arrival, and growing up to the longest while it is idle
+    static final long MIN_POLL_INTERVAL_MS = 1;
+    static final long POLL_INTERVAL_MS = 5;
     private final String serialNumber;
     private final int baudRate;
-    private SerialPort serialPort;
+    private CapturePort serialPort;
     private final String baseDir;
-    byte[] readBuffer = new byte[32 * 1024];
+    private final String dataFormat;
+    private final LiveRecords liveRecords;
+    private DataWriter writer;
+    // null if data is written on the reading thread
+    private final CaptureWriterStage writerStage;
+    private final PortDiscovery portDiscovery;
+    private CaptureQueue queue;
+    static final int READ_BUFFER_SIZE = 32 * 1024;
+    byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private final Metrics.Counter reads;
+    private final Metrics.Counter emptyReads;
+    private final Metrics.Timer readTime;
+    private final Metrics.Counter readBytes;
+    private final Metrics.Counter readLines;
+    private final Metrics.Counter connects;
+    private final Metrics.Counter connectFailures;
+    private final Metrics.Counter readFailures;
 
-    public SerialReaderTask(String serialNumber, int baudRate, String baseDir) {
+    public SerialReaderTask(String serialNumber, int baudRate, String baseDir, String dataFormat,
+                            LiveRecords liveRecords, CaptureWriterStage writerStage,
+                            PortDiscovery portDiscovery) {
         this.serialNumber = serialNumber;
         this.baudRate = baudRate;
         this.baseDir = baseDir;
+        this.dataFormat = dataFormat;
+        this.liveRecords = liveRecords;
+        this.writerStage = writerStage;
+        this.portDiscovery = portDiscovery;
+        Metrics metrics = Metrics.get();
+        reads = metrics.counter("cuplogger_serial_reads_total", "Reads from the port", "port", serialNumber);
+        emptyReads = metrics.counter("cuplogger_serial_empty_reads_total",
+                "Reads from the port that returned no data", "port", serialNumber);
+        readTime = metrics.timer("cuplogger_serial_read",
+                "Time spent in reads from the port, incl. waiting for the data", "port", serialNumber);
+        readBytes = metrics.counter("cuplogger_serial_read_bytes_total", "Bytes read from the port", "port", serialNumber);
+        readLines = metrics.counter("cuplogger_serial_read_lines_total", "Lines read from the port", "port", serialNumber);
+        connects = metrics.counter("cuplogger_serial_connects_total", "Times the port was opened", "port", serialNumber);
+        connectFailures = metrics.counter("cuplogger_serial_connect_failures_total",
+                "Times the port could not be found or opened", "port", serialNumber);
+        readFailures = metrics.counter("cuplogger_serial_read_failures_total",
+                "Times reading from the port failed and capture stopped", "port", serialNumber);
     }
 
     @Override
     public void run() {
-        TextFormatWriter writer = null;
+        capture(true);
+    }
+
+    /**
+     * Captures data until interrupted or the port fails.
+     *
+     * @param blockingReads false to poll the port, e.g. on virtual threads that must not block in native code
+     */
+    void capture(boolean blockingReads) {
         try {
+            if (!open(blockingReads)) {
+                // the task manager will have to re-run the task
+                return;
+            }
+            long pollIntervalMs = MIN_POLL_INTERVAL_MS;
             while (!Thread.currentThread().isInterrupted()) {
-                if (serialPort == null) {
-                    if (!connectToSerialPort()) {
-                        // the task manager will have to re-run the task
-                        break;
-                    }
-                    writer = new TextFormatWriter(baseDir, serialNumber);
-                }
-                if (!serialPort.isOpen()) {
-                    LOG.warning("Won't read from not opened port " + serialNumber + ". Will stop now.");
+                int numRead = readOnce();
+                if (numRead < 0) {
                     break;
                 }
-                int numRead = serialPort.readBytes(readBuffer, readBuffer.length);
-                if (numRead > 0) {
-                    writer.write(readBuffer, numRead);
-                } else if (numRead == 0) {
-                    Thread.sleep(20);
-                } else { // numRead is -1
-                    // todo: this is poor man's detection.. but somehow it's tough to do anything else
-                    LOG.warning("Had issues reading from the port " + serialNumber +
-                            ". Will stop reading from it now (reading should resume automatically if the port is good).");
-                    break;
-                    // todo: track the quality of connection with reconnect stats?
+                if (!blockingReads) {
+                    pollIntervalMs = nextPollIntervalMs(pollIntervalMs, numRead);
+                    Thread.sleep(pollIntervalMs);
                 }
             }
         } catch (InterruptedException e) {
@@ -55,48 +97,124 @@ class SerialReaderTask implements Runnable {
         } catch (Exception e) {
             LOG.log(Level.INFO, "Error in serial communication with " + serialNumber + " on " + serialPort, e);
         } finally {
-            if (serialPort != null) {
-                try {
-                    serialPort.closePort();
-                } catch (Exception e) {
-                    // nothing to do: parent will restart the task if needed and will retry to open
-                    LOG.log(Level.INFO, "Error while closing port of " + serialNumber + ": " + serialPort, e);
-                }
+            close();
+        }
+    }
+
+    /**
+     * Opens the port and the writer, then data is read with {@link #readOnce()} until it returns -1, and the task
+     * is {@link #close()}d. Opening can be done on another thread, as long as it is done before the first read.
+     *
+     * @param blockingReads if true, reads wait for the data up to READ_TIMEOUT_MS, otherwise they return at once
+     * @return false if the port can't be opened
+     */
+    boolean open(boolean blockingReads) throws IOException {
+        if (!connectToSerialPort(blockingReads)) {
+            connectFailures.inc();
+            return false;
+        }
+        connects.inc();
+        writer = DataFormats.newWriter(dataFormat, baseDir, serialNumber, liveRecords);
+        if (writerStage != null) {
+            queue = writerStage.register(serialNumber, writer);
+            // owned by the stage now
+            writer = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return bytes read, 0 if there was no data, -1 if the port can't be read anymore
+     */
+    int readOnce() throws IOException {
+        if (!serialPort.isOpen()) {
+            LOG.warning("Won't read from not opened port " + serialNumber + ". Will stop now.");
+            return -1;
+        }
+        if (queue != null && queue.isFailed()) {
+            LOG.warning("Failed to write data of " + serialNumber + ". Will stop reading from it now.");
+            return -1;
+        }
+        long startNanos = System.nanoTime();
+        // when blocking, returns as soon as there's data, so it is timestamped when it arrives
+        int numRead = serialPort.read(readBuffer, readBuffer.length);
+        readTime.record(System.nanoTime() - startNanos);
+        reads.inc();
+        if (numRead > 0) {
+            readBytes.add(numRead);
+            readLines.add(countLines(readBuffer, numRead));
+            long epochMs = System.currentTimeMillis();
+            if (queue == null) {
+                writer.write(readBuffer, numRead, epochMs);
+            } else if (queue.offer(readBuffer, numRead, epochMs)) {
+                writerStage.wakeUp();
             }
-            LOG.info("Stopped listening on " + serialNumber + ", baud rate: " + baudRate + " sn: " + serialNumber);
+        } else if (numRead == 0) {
+            // timed out
+            emptyReads.inc();
             if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                    // nothing to do really here
-                    LOG.log(Level.INFO, "Failed to close writer " + writer, e);
-                }
+                writer.flushIfDue();
             }
+        } else { // numRead is -1
+            // todo: this is poor man's detection.. but somehow it's tough to do anything else
+            LOG.warning("Had issues reading from the port " + serialNumber +
+                    ". Will stop reading from it now (reading should resume automatically if the port is good).");
+            readFailures.inc();
         }
+        return numRead;
     }
 
-    private boolean connectToSerialPort() throws InterruptedException {
-        for (SerialPort p : SerialPorts.listUsbPorts()) {
-            if (serialNumber.equals(SerialPorts.getSerialNumber(p))) {
-                serialPort = p;
-                break;
+    /**
+     * @param numRead result of the last read
+     * @return how long to wait before polling the port again
+     */
+    static long nextPollIntervalMs(long pollIntervalMs, int numRead) {
+        return numRead > 0 ? MIN_POLL_INTERVAL_MS : Math.min(pollIntervalMs * 2, POLL_INTERVAL_MS);
+    }
+
+    private static int countLines(byte[] data, int length) {
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                count++;
             }
         }
-        if (serialPort == null) {
-            LOG.warning("Couldn't find the port " + serialNumber + " among available ports.");
-            return false;
+        return count;
+    }
+
+    void close() {
+        if (serialPort != null) {
+            serialPort.close();
+        }
+        LOG.info("Stopped listening on " + serialNumber + ", baud rate: " + baudRate + " sn: " + serialNumber);
+        if (queue != null) {
+            // the stage closes the writer when the queue is drained
+            queue.close();
+            queue = null;
         }
-        serialPort.setBaudRate(baudRate);
-        if (!serialPort.openPort()) {
-            LOG.info("Failed to open port: " + serialNumber +
-                    // somehow saw in tests with bad baud rate it fails here
-                    ". Maybe baud rate " + baudRate + " is not good?");
+        if (writer != null) {
             try {
-                // Just in case try to release all resources. Likely this OCD is not needed
-                serialPort.closePort();
-            } catch (Exception e) {
-                LOG.log(Level.INFO, "Failed to close port " + serialPort + " sn: " + serialNumber, e);
+                writer.close();
+            } catch (IOException e) {
+                // nothing to do really here
+                LOG.log(Level.INFO, "Failed to close writer " + writer, e);
             }
+            writer = null;
+        }
+    }
+
+    String getSerialNumber() {
+        return serialNumber;
+    }
+
+    private boolean connectToSerialPort(boolean blockingReads) {
+        PortDiscovery.Port port = portDiscovery.find(serialNumber);
+        if (port == null) {
+            LOG.warning("Couldn't find the port " + serialNumber + " among available ports.");
+            return false;
+        }
+        serialPort = port.newCapturePort();
+        if (!serialPort.open(baudRate, blockingReads, READ_TIMEOUT_MS)) {
             return false;
         }
         LOG.info("Started listening on " + serialPort + ", baud rate: " + baudRate + " sn: " + serialNumber);
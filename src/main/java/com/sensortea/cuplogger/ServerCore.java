@@ -1,22 +1,58 @@
 package com.sensortea.cuplogger;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Collection;
+import java.util.Map;
 
 public class ServerCore implements ServerCoreAPI {
     private final SerialPorts serialPorts;
     private final SerialConnectionsConfig connectionsConfig;
-    private final TextFormatReader textFormatReader;
+    private final DataReader dataReader;
+    // same as dataReader, but reads recent records from memory if enabled
+    private final DataReader recentDataReader;
+    // null if not supported by the data format
+    private final ReadingsRollups rollups;
+    private final TimelineReader timelineReader;
+    private final LiveRecords liveRecords = new LiveRecords();
+    // null if disabled
+    private final ParsedFilesCache parsedFilesCache = ParsedFilesCache.configured();
 
     public ServerCore(String baseDir) throws IOException {
+        this(baseDir, PortDriver.configured());
+    }
+
+    ServerCore(String baseDir, PortDriver portDriver) throws IOException {
+        String dataFormat = DataFormats.configuredFormat();
+        DataFilesStore.loadCatalog(baseDir);
         this.connectionsConfig = new SerialConnectionsConfig(baseDir);
-        this.serialPorts = new SerialPorts(connectionsConfig, baseDir);
-        this.textFormatReader = new TextFormatReader(baseDir);
+        this.serialPorts = new SerialPorts(connectionsConfig, baseDir, dataFormat, liveRecords, portDriver);
+        this.dataReader = DataFormats.newReader(dataFormat, baseDir, DataFormats.newScanPool(),
+                parsedFilesCache);
+        HotRecordsCache hotRecordsCache = HotRecordsCache.configured();
+        if (hotRecordsCache != null) {
+            liveRecords.addListener(hotRecordsCache);
+            this.recentDataReader = new HotTailDataReader(dataReader, hotRecordsCache);
+        } else {
+            this.recentDataReader = dataReader;
+        }
+        this.timelineReader = new TimelineReader(dataReader);
+        Metrics.get().addCollector(this::collectMetrics);
+        if (dataReader instanceof TextFormatReader) {
+            this.rollups = new ReadingsRollups(baseDir, (TextFormatReader) dataReader);
+            rollups.start();
+        } else {
+            this.rollups = null;
+        }
     }
 
     @Override
     public Iterable<SerialConnectionInfo> listSerialConnections() {
-        return serialPorts.listAndUpdateConnections();
+        return serialPorts.getListing().connections;
+    }
+
+    @Override
+    public SerialConnectionsListing listSerialConnections(long knownVersion, long waitMs) {
+        return serialPorts.awaitListingChange(knownVersion, waitMs);
     }
 
     @Override
@@ -35,7 +71,74 @@ public class ServerCore implements ServerCoreAPI {
     }
 
     @Override
-    public List<DataRecord> readEvents(String serialNumber, long startEpochMs, long endEpochMs) {
-        return textFormatReader.readEvents(serialNumber, startEpochMs, endEpochMs);
+    public RecordColumns readColumns(String serialNumber, long startEpochMs, long endEpochMs) {
+        return recentDataReader.readColumns(serialNumber, startEpochMs, endEpochMs);
+    }
+
+    @Override
+    public void scanEvents(String serialNumber, long startEpochMs, long endEpochMs,
+                           DataReader.RecordConsumer consumer) {
+        recentDataReader.scan(serialNumber, startEpochMs, endEpochMs, consumer);
+    }
+
+    @Override
+    public DownsampledReadings readDownsampledReadings(String serialNumber, long startEpochMs, long endEpochMs,
+                                                       String[] readingIds, int maxPoints) {
+        ReadingsDownsampler downsampler = new ReadingsDownsampler(startEpochMs, endEpochMs, readingIds, maxPoints);
+        if (rollups != null && rollups.appliesTo(downsampler)) {
+            rollups.downsample(serialNumber, startEpochMs, endEpochMs, downsampler);
+        } else {
+            recentDataReader.scan(serialNumber, startEpochMs, endEpochMs, downsampler);
+        }
+        DownsampledReadings result = new DownsampledReadings();
+        result.bucketMs = downsampler.getBucketMs();
+        result.readingIds = readingIds;
+        result.points = downsampler.getPoints();
+        return result;
+    }
+
+    @Override
+    public Timeline getTimeline(String serialNumber, long startEpochMs, long endEpochMs, long intervalMs) {
+        return timelineReader.read(serialNumber, startEpochMs, endEpochMs, intervalMs);
+    }
+
+    @Override
+    public LiveRecords.Subscription subscribeRecords(Collection<String> serialNumbers) {
+        return liveRecords.subscribe(serialNumbers);
+    }
+
+    @Override
+    public CacheStats getParsedFilesCacheStats() {
+        return parsedFilesCache == null ? new CacheStats() : parsedFilesCache.getStats();
+    }
+
+    @Override
+    public Map<String, CaptureQueueStats> getCaptureStats() {
+        return serialPorts.getCaptureStats();
+    }
+
+    @Override
+    public String getMetrics() {
+        return Metrics.get().toPrometheusText();
+    }
+
+    private void collectMetrics(Metrics.Output out) {
+        CacheStats cache = getParsedFilesCacheStats();
+        out.counter("cuplogger_parsed_files_cache_hits_total", "Parsed files cache hits", cache.hits);
+        out.counter("cuplogger_parsed_files_cache_misses_total", "Parsed files cache misses", cache.misses);
+        out.counter("cuplogger_parsed_files_cache_evictions_total", "Parsed files cache evictions", cache.evictions);
+        out.gauge("cuplogger_parsed_files_cache_entries", "Files in parsed files cache", cache.entries);
+        out.gauge("cuplogger_parsed_files_cache_bytes", "Estimated size of parsed files cache", cache.bytes);
+        out.gauge("cuplogger_parsed_files_cache_max_bytes", "Max size of parsed files cache", cache.maxBytes);
+
+        Map<String, CaptureQueueStats> queues = getCaptureStats();
+        queues.forEach((port, stats) -> out.counter("cuplogger_capture_queue_dropped_bytes_total",
+                "Bytes read from the port but dropped as its capture queue was full", stats.droppedBytes, "port", port));
+        queues.forEach((port, stats) -> out.counter("cuplogger_capture_queue_dropped_chunks_total",
+                "Reads from the port dropped as its capture queue was full", stats.droppedChunks, "port", port));
+        queues.forEach((port, stats) -> out.gauge("cuplogger_capture_queue_depth_bytes",
+                "Bytes in the capture queue of the port, not written yet", stats.depthBytes, "port", port));
+        queues.forEach((port, stats) -> out.gauge("cuplogger_capture_queue_max_depth_bytes",
+                "Most bytes ever in the capture queue of the port", stats.maxDepthBytes, "port", port));
     }
 }
@@ -1,7 +1,8 @@
 package com.sensortea.cuplogger;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Collection;
+import java.util.Map;
 
 // todo: do we need this interface? or should we just have implementation, since the implementation is mostly delegating
 public interface ServerCoreAPI {
@@ -11,6 +12,14 @@ public interface ServerCoreAPI {
      */
     Iterable<SerialConnectionInfo> listSerialConnections();
 
+    /**
+     * Same as {@link #listSerialConnections()}, but can wait for changes.
+     *
+     * @param knownVersion version of the listing the caller has
+     * @param waitMs how long to wait for a listing with a different version, 0 to return at once
+     */
+    SerialConnectionsListing listSerialConnections(long knownVersion, long waitMs);
+
     /**
      * Sets baud rate
      * @param serialNumber serial port SN
@@ -38,7 +47,62 @@ public interface ServerCoreAPI {
      * @param serialNumber of the connection
      * @param startEpochMs start of the interval
      * @param endEpochMs end of the interval
-     * @return all events
+     * @return all events, in compact columnar form
+     */
+    RecordColumns readColumns(String serialNumber, long startEpochMs, long endEpochMs);
+
+    /**
+     * Feeds all events of a given connection for a given time range to the consumer, as they are read.
+     * @param serialNumber of the connection
+     * @param startEpochMs start of the interval
+     * @param endEpochMs end of the interval
+     * @param consumer receives events in the order they were captured, can stop the scan
+     */
+    void scanEvents(String serialNumber, long startEpochMs, long endEpochMs, DataReader.RecordConsumer consumer);
+
+    /**
+     * Reads values of given readings for a given time range, aggregated into at most maxPoints time buckets.
+     * @param serialNumber of the connection
+     * @param startEpochMs start of the interval
+     * @param endEpochMs end of the interval
+     * @param readingIds readings to read
+     * @param maxPoints max number of buckets, e.g. width of the plot
+     * @return min, avg and max of each reading in each bucket
+     */
+    DownsampledReadings readDownsampledReadings(String serialNumber, long startEpochMs, long endEpochMs,
+                                                String[] readingIds, int maxPoints);
+
+    /**
+     * Reads data availability and program/version/config changes of a given connection for a given time range,
+     * without reading the data itself where possible.
+     * @param serialNumber of the connection
+     * @param startEpochMs start of the interval
+     * @param endEpochMs end of the interval
+     * @param intervalMs desired resolution; can be increased to keep the result small and accurate
+     * @return flags for each interval of the range
+     */
+    Timeline getTimeline(String serialNumber, long startEpochMs, long endEpochMs, long intervalMs);
+
+    /**
+     * Subscribes to records of given connections as they are captured.
+     * @param serialNumbers of the connections
+     * @return subscription, must be closed when not needed anymore
+     */
+    LiveRecords.Subscription subscribeRecords(Collection<String> serialNumbers);
+
+    /* Monitoring */
+    /**
+     * @return usage stats of the cache of parsed data files, all zeros if the cache is disabled
+     */
+    CacheStats getParsedFilesCacheStats();
+
+    /**
+     * @return stats of capture queues by serial number, empty if queues are disabled
+     */
+    Map<String, CaptureQueueStats> getCaptureStats();
+
+    /**
+     * @return all metrics in Prometheus text format
      */
-    List<DataRecord> readEvents(String serialNumber, long startEpochMs, long endEpochMs);
+    String getMetrics();
 }
@@ -0,0 +1,94 @@
+package com.sensortea.cuplogger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates lines the way devices print them with CupLogger.cpp of the device library:
+ * <pre>
+ * &lt;programId&gt;,&lt;programVersion&gt;,&lt;deviceConfig&gt;,&lt;timeDelta&gt;,&lt;logMessage&gt;[,&lt;readingId&gt;:&lt;value&gt;]*,&lt;length&gt;\r\n
+ * </pre>
+ * where timeDelta is empty if it is 0, values are printed with 2 decimals, and length is of everything before
+ * ",&lt;length&gt;". Readings are noisy random walks. Some lines can be logs without readings, or corrupt (cut short or
+ * garbage), as seen from real devices.
+ * <p>
+ * Not thread-safe.
+ */
+public final class SimulatedDevice {
+    private final Random random;
+    private final int readingsPerLine;
+    private final double logLinesRatio;
+    private final double corruptLinesRatio;
+    private final String[] readingIds;
+    private final double[] values;
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * @param readingsPerLine   readings in lines that are not logs
+     * @param logLinesRatio     share of lines that are log messages without readings
+     * @param corruptLinesRatio share of lines that are cut short or garbage
+     */
+    public SimulatedDevice(long seed, int readingsPerLine, double logLinesRatio, double corruptLinesRatio) {
+        this.random = new Random(seed);
+        this.readingsPerLine = readingsPerLine;
+        this.logLinesRatio = logLinesRatio;
+        this.corruptLinesRatio = corruptLinesRatio;
+        this.readingIds = new String[readingsPerLine];
+        this.values = new double[readingsPerLine];
+        for (int i = 0; i < readingsPerLine; i++) {
+            readingIds[i] = "r" + i;
+            values[i] = random.nextDouble() * 100;
+        }
+    }
+
+    /**
+     * @return next line as printed by the device, with the line terminator
+     */
+    public String nextLine() {
+        double p = random.nextDouble();
+        if (p < corruptLinesRatio) {
+            return corruptLine();
+        }
+        return validLine(p < corruptLinesRatio + logLinesRatio) + "\r\n";
+    }
+
+    public byte[] nextLineBytes() {
+        return nextLine().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String validLine(boolean log) {
+        sb.setLength(0);
+        sb.append("thermo,1.2.0,").append(random.nextInt(100) == 0 ? "calibrating" : "default").append(',');
+        // most lines are printed at regular intervals
+        int timeDelta = random.nextInt(10) == 0 ? 0 : 100 + random.nextInt(3);
+        if (timeDelta != 0) {
+            sb.append(timeDelta);
+        }
+        sb.append(',');
+        if (log) {
+            sb.append("loop took ").append(random.nextInt(50)).append(" ms");
+        } else {
+            for (int i = 0; i < readingsPerLine; i++) {
+                values[i] += random.nextGaussian();
+                sb.append(',').append(readingIds[i]).append(':').append(String.format(Locale.ROOT, "%.2f", values[i]));
+            }
+        }
+        int length = sb.length();
+        return sb.append(',').append(length).toString();
+    }
+
+    private String corruptLine() {
+        if (random.nextBoolean()) {
+            // e.g. device reset in the middle of printing a line
+            String line = validLine(false);
+            return line.substring(0, random.nextInt(line.length())) + "\r\n";
+        }
+        // e.g. wrong baud rate
+        char[] garbage = new char[1 + random.nextInt(80)];
+        for (int i = 0; i < garbage.length; i++) {
+            garbage[i] = (char) (33 + random.nextInt(94));
+        }
+        return new String(garbage) + "\r\n";
+    }
+}
@@ -0,0 +1,245 @@
+package com.sensortea.cuplogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Simulated devices, printing lines of {@link SimulatedDevice} at the given rate, e.g. to try out the server under
+ * the load of many devices without having them. Configured with env variables:
+ * <ul>
+ * <li>SIMULATED_PORTS: number of devices, 10 by default, with serial numbers SIM0001, SIM0002, etc.</li>
+ * <li>SIMULATED_LINES_PER_SECOND: lines each device prints per second, 10 by default</li>
+ * <li>SIMULATED_READINGS: readings in each line, 5 by default</li>
+ * <li>SIMULATED_LOG_LINES_RATIO: share of lines that are logs without readings, 0.1 by default</li>
+ * <li>SIMULATED_CORRUPT_LINES_RATIO: share of lines that are cut short or garbage, 0.01 by default</li>
+ * </ul>
+ * Like with real serial ports, lines take time to transmit at the configured baud rate, so devices that print more
+ * than the baud rate allows fall behind, and data arrives in packets of up to 64 bytes.
+ */
+class SimulatedPortDriver implements PortDriver {
+    private static final Logger LOG = Logger.getLogger(SimulatedPortDriver.class.getName());
+    public static final String SIMULATED_PORTS_ENV_VARIABLE = "SIMULATED_PORTS";
+    public static final String SIMULATED_LINES_PER_SECOND_ENV_VARIABLE = "SIMULATED_LINES_PER_SECOND";
+    public static final String SIMULATED_READINGS_ENV_VARIABLE = "SIMULATED_READINGS";
+    public static final String SIMULATED_LOG_LINES_RATIO_ENV_VARIABLE = "SIMULATED_LOG_LINES_RATIO";
+    public static final String SIMULATED_CORRUPT_LINES_RATIO_ENV_VARIABLE = "SIMULATED_CORRUPT_LINES_RATIO";
+    private static final int DEFAULT_BAUD_RATE = 115200;
+    // start, data and stop bits
+    private static final int BITS_PER_BYTE = 10;
+    // USB serial adapters pass received data on in packets
+    private static final int PACKET_BYTES = 64;
+
+    private final List<PortDiscovery.Port> ports = new ArrayList<>();
+    private final double linesPerSecond;
+    private final int readingsPerLine;
+    private final double logLinesRatio;
+    private final double corruptLinesRatio;
+    // gets nanos from when a device finished printing a line until it was read
+    private volatile LongConsumer readDelays = nanos -> {
+    };
+    private final LongAdder printedLines = new LongAdder();
+    private final AtomicInteger openPorts = new AtomicInteger();
+
+    SimulatedPortDriver(int portsCount, double linesPerSecond, int readingsPerLine, double logLinesRatio,
+                        double corruptLinesRatio) {
+        this.linesPerSecond = linesPerSecond;
+        this.readingsPerLine = readingsPerLine;
+        this.logLinesRatio = logLinesRatio;
+        this.corruptLinesRatio = corruptLinesRatio;
+        for (int i = 1; i <= portsCount; i++) {
+            ports.add(new Port(i));
+        }
+    }
+
+    static SimulatedPortDriver configured() {
+        return configured((int) getEnv(SIMULATED_PORTS_ENV_VARIABLE, 10, 1, 100_000),
+                getEnv(SIMULATED_LINES_PER_SECOND_ENV_VARIABLE, 10, 0.001, 1_000_000));
+    }
+
+    /**
+     * @return driver with the given number of devices and rate, and other settings configured with env variables
+     */
+    static SimulatedPortDriver configured(int portsCount, double linesPerSecond) {
+        return new SimulatedPortDriver(portsCount, linesPerSecond,
+                (int) getEnv(SIMULATED_READINGS_ENV_VARIABLE, 5, 0, 1000),
+                getEnv(SIMULATED_LOG_LINES_RATIO_ENV_VARIABLE, 0.1, 0, 1),
+                getEnv(SIMULATED_CORRUPT_LINES_RATIO_ENV_VARIABLE, 0.01, 0, 1));
+    }
+
+    private static double getEnv(String name, double defaultValue, double minValue, double maxValue) {
+        String configured = System.getenv(name);
+        if (configured == null || configured.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            double value = Double.parseDouble(configured);
+            if (value >= minValue && value <= maxValue) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // falling through
+        }
+        LOG.warning("Bad " + name + " '" + configured + "', will use " + defaultValue);
+        return defaultValue;
+    }
+
+    @Override
+    public List<PortDiscovery.Port> scan() {
+        return new ArrayList<>(ports);
+    }
+
+    /**
+     * @param readDelays gets nanos from when a device finished printing a line until it was read, called on capture
+     *                   threads
+     */
+    void setReadDelaysConsumer(LongConsumer readDelays) {
+        this.readDelays = readDelays;
+    }
+
+    long getPrintedLines() {
+        return printedLines.sum();
+    }
+
+    int getOpenPorts() {
+        return openPorts.get();
+    }
+
+    private final class Port extends PortDiscovery.Port {
+        private final int number;
+
+        Port(int number) {
+            super(String.format("SIM%04d", number));
+            this.number = number;
+        }
+
+        @Override
+        CapturePort newCapturePort() {
+            return new SimulatedCapturePort(serialNumber, new SimulatedDevice(number, readingsPerLine, logLinesRatio,
+                    corruptLinesRatio));
+        }
+
+        @Override
+        void describe(SerialConnectionInfo info) {
+            info.descriptivePortName = "Simulated device " + number;
+            info.systemPortName = "sim" + number;
+            info.systemPortPath = "sim" + number;
+            info.portDescription = "Simulated device";
+            info.portLocation = getLocation();
+            info.baudRate = DEFAULT_BAUD_RATE;
+        }
+
+        @Override
+        String getLocation() {
+            return "simulated:" + number;
+        }
+    }
+
+    private final class SimulatedCapturePort implements CapturePort {
+        private final String serialNumber;
+        private final SimulatedDevice device;
+        private final long lineIntervalNanos = (long) (1_000_000_000L / linesPerSecond);
+        private boolean open;
+        private boolean blockingReads;
+        private long readTimeoutNanos;
+        private long transmitNanosPerByte;
+        // line being transmitted, and how much of it was read
+        private byte[] line;
+        private int lineReadBytes;
+        private long linePrintedNanos;
+        private long nextLinePrintedNanos;
+
+        SimulatedCapturePort(String serialNumber, SimulatedDevice device) {
+            this.serialNumber = serialNumber;
+            this.device = device;
+        }
+
+        @Override
+        public boolean open(int baudRate, boolean blockingReads, int readTimeoutMs) {
+            if (baudRate <= 0) {
+                return false;
+            }
+            this.blockingReads = blockingReads;
+            this.readTimeoutNanos = readTimeoutMs * 1_000_000L;
+            this.transmitNanosPerByte = 1_000_000_000L * BITS_PER_BYTE / baudRate;
+            // devices are not in sync with each other
+            nextLinePrintedNanos = System.nanoTime() + (long) (Math.random() * lineIntervalNanos);
+            nextLine();
+            open = true;
+            openPorts.incrementAndGet();
+            return true;
+        }
+
+        private void nextLine() {
+            line = device.nextLineBytes();
+            lineReadBytes = 0;
+            linePrintedNanos = nextLinePrintedNanos;
+            nextLinePrintedNanos += lineIntervalNanos;
+            printedLines.increment();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public int read(byte[] buffer, int length) {
+            if (!open) {
+                return -1;
+            }
+            long nowNanos = System.nanoTime();
+            if (blockingReads && availableBytes(nowNanos) == 0) {
+                int nextPacketBytes = Math.min(line.length, lineReadBytes + PACKET_BYTES);
+                long untilNextPacketNanos = linePrintedNanos + nextPacketBytes * transmitNanosPerByte - nowNanos;
+                LockSupport.parkNanos(Math.min(untilNextPacketNanos, readTimeoutNanos));
+                nowNanos = System.nanoTime();
+            }
+            int read = 0;
+            while (read < length) {
+                int available = Math.min(availableBytes(nowNanos), length - read);
+                if (available == 0) {
+                    break;
+                }
+                System.arraycopy(line, lineReadBytes, buffer, read, available);
+                read += available;
+                lineReadBytes += available;
+                if (lineReadBytes == line.length) {
+                    long transmittedNanos = linePrintedNanos + line.length * transmitNanosPerByte;
+                    readDelays.accept(nowNanos - transmittedNanos);
+                    nextLine();
+                    // the next line is transmitted after this one, even if it is late
+                    linePrintedNanos = Math.max(linePrintedNanos, transmittedNanos);
+                }
+            }
+            return read;
+        }
+
+        // of the current line
+        private int availableBytes(long nowNanos) {
+            long transmitted = nowNanos < linePrintedNanos ? 0 : (nowNanos - linePrintedNanos) / transmitNanosPerByte;
+            if (transmitted >= line.length) {
+                return line.length - lineReadBytes;
+            }
+            int received = (int) (transmitted / PACKET_BYTES * PACKET_BYTES);
+            return Math.max(0, received - lineReadBytes);
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                openPorts.decrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "simulated port " + serialNumber;
+        }
+    }
+}
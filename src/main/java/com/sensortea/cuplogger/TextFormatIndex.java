@@ -0,0 +1,109 @@
+package com.sensortea.cuplogger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sparse time index of a text data file, kept in a sidecar file next to it (same name + SUFFIX).
+ * Holds (epochMs, byteOffset) of the first line received in each INTERVAL_MS, so that readers can skip straight
+ * to the part of the file with the requested time range. Written by {@link TextFormatWriter} as it writes lines.
+ * Files without index are simply scanned fully.
+ */
+public class TextFormatIndex {
+    private static final Logger LOG = Logger.getLogger(TextFormatIndex.class.getName());
+    public static final String SUFFIX = ".idx";
+    static final long INTERVAL_MS = 1000;
+    private static final int ENTRY_LENGTH = 8 + 8;
+    // Written instead of an entry when clock went backwards: lines are not ordered by time anymore,
+    // so the index can't be used
+    private static final long UNORDERED = Long.MIN_VALUE;
+
+    private final long[] epochs;
+    private final long[] offsets;
+    private final long dataFileLength;
+
+    private TextFormatIndex(long[] epochs, long[] offsets, long dataFileLength) {
+        this.epochs = epochs;
+        this.offsets = offsets;
+        this.dataFileLength = dataFileLength;
+    }
+
+    static File indexFile(File dataFile) {
+        return new File(dataFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return index of a given data file, or null if there's none or it can't be used
+     */
+    static TextFormatIndex load(File dataFile, long dataFileLength) {
+        File file = indexFile(dataFile);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            // ignoring the last entry if it wasn't fully written
+            int count = bytes.remaining() / ENTRY_LENGTH;
+            long[] epochs = new long[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                epochs[i] = bytes.getLong();
+                offsets[i] = bytes.getLong();
+                if (epochs[i] == UNORDERED) {
+                    return null;
+                }
+            }
+            return new TextFormatIndex(epochs, offsets, dataFileLength);
+        } catch (IOException e) {
+            LOG.log(Level.INFO, "Failed to read index " + file.getAbsolutePath() + ", will scan whole file.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return offset of a line start, such that all lines before it have epochMs before startEpochMs
+     */
+    long startOffset(long startEpochMs) {
+        // last entry with epoch < startEpochMs
+        int idx = firstEntryAtOrAfter(startEpochMs) - 1;
+        return idx < 0 ? 0 : Math.min(offsets[idx], dataFileLength);
+    }
+
+    /**
+     * @return offset of a line start, such that all lines after it have epochMs at or after endEpochMs
+     */
+    long endOffset(long endEpochMs) {
+        int idx = firstEntryAtOrAfter(endEpochMs);
+        return idx == epochs.length ? dataFileLength : Math.min(offsets[idx], dataFileLength);
+    }
+
+    private int firstEntryAtOrAfter(long epochMs) {
+        int low = 0;
+        int high = epochs.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (epochs[mid] < epochMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    static DataOutputStream openForAppend(File dataFile) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(dataFile), true)));
+    }
+
+    static void writeEntry(DataOutput out, long epochMs, long offset) throws IOException {
+        out.writeLong(epochMs);
+        out.writeLong(offset);
+    }
+
+    static void writeUnordered(DataOutput out, long offset) throws IOException {
+        writeEntry(out, UNORDERED, offset);
+    }
+}
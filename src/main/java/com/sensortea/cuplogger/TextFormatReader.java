@@ -1,80 +1,287 @@
 package com.sensortea.cuplogger;
 
 import java.io.*;
-import java.nio.charset.CodingErrorAction;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class TextFormatReader {
+public class TextFormatReader implements DataReader {
     private static final Logger LOG = Logger.getLogger(TextFormatReader.class.getName());
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // queries that need less than that of a file's interval read the file's part via index instead of parsing
+    // all of it into the parsed files cache
+    private static final long MIN_CACHED_RANGE_MS = DataFilesStore.FILE_INTERVAL_MS / 4;
     private final String baseDir;
+    // null if files are scanned one by one in the caller thread
+    private final ForkJoinPool scanPool;
+    // null if closed files are parsed on every scan
+    private final ParsedFilesCache parsedFilesCache;
 
     public TextFormatReader(String baseDir) {
+        this(baseDir, null, null);
+    }
+
+    /**
+     * @param scanPool if not null, scans over multiple files read and parse them in parallel in this pool.
+     *                 Records are still fed to the consumer in order, in the caller thread.
+     * @param parsedFilesCache if not null, scans keep parsed closed files there and re-use them
+     */
+    public TextFormatReader(String baseDir, ForkJoinPool scanPool, ParsedFilesCache parsedFilesCache) {
         this.baseDir = baseDir;
+        this.scanPool = scanPool;
+        this.parsedFilesCache = parsedFilesCache;
     }
 
+    @Override
     public Iterable<File> findDataFiles(String serialNumber, long startEpochMs, long endEpochMs) {
         return DataFilesStore.findDataFiles(baseDir, serialNumber, TextFormatWriter.FORMAT, startEpochMs, endEpochMs);
     }
 
-    public List<DataRecord> readEvents(String serialNumber, long startEpochMs, long endEpochMs) {
-        List<DataRecord> events = new ArrayList<>(4 * 1024);
-        scan(serialNumber, startEpochMs, endEpochMs, r -> {
-            events.add(r);
-            return true;
-        });
-        return events;
-    }
-
-    public interface RecordConsumer {
-        // stops scan when returns false
-        boolean acceptAndContinue(DataRecord r);
-    }
-
+    @Override
     public void scan(String serialNumber, long startEpochMs, long endEpochMs, RecordConsumer consumer) {
         long startMs = System.currentTimeMillis();
 
-        int eventsScanned = 0;
-        for (File f : DataFilesStore.findDataFiles(baseDir, serialNumber, TextFormatWriter.FORMAT,
-                                                    startEpochMs, endEpochMs)) {
-            eventsScanned += scanFile(startEpochMs, endEpochMs, consumer, f);
+        List<File> files = new ArrayList<>();
+        findDataFiles(serialNumber, startEpochMs, endEpochMs).forEach(files::add);
+        int eventsScanned;
+        if (scanPool != null && files.size() > 1) {
+            eventsScanned = scanInParallel(files, startEpochMs, endEpochMs, consumer);
+        } else {
+            eventsScanned = 0;
+            for (File f : files) {
+                int scanned = readFile(startEpochMs, endEpochMs, consumer, f);
+                if (scanned < 0) {
+                    eventsScanned -= scanned;
+                    break;
+                }
+                eventsScanned += scanned;
+            }
         }
         long elapsedMs = System.currentTimeMillis() - startMs;
         LOG.fine("Scanned: " + eventsScanned + " in " + elapsedMs + "ms. Events per sec: " +
                 String.format("%,2d", ((long) eventsScanned * 1000 / (elapsedMs == 0 ? 1 : elapsedMs))));
     }
 
-    private static int scanFile(long startEpochMs, long endEpochMs, RecordConsumer consumer, File file) {
+    /**
+     * Always reads the file itself, i.e. doesn't use or fill parsed files cache, as e.g. background jobs going
+     * through all files would evict what queries need.
+     */
+    @Override
+    public boolean scanFile(File file, long startEpochMs, long endEpochMs, RecordConsumer consumer) {
+        return scanFile(startEpochMs, endEpochMs, consumer, file) >= 0;
+    }
+
+    // returns negated number of scanned events if consumer asked to stop
+    private int readFile(long startEpochMs, long endEpochMs, RecordConsumer consumer, File file) {
+        RecordColumns columns = getParsedFile(file, startEpochMs, endEpochMs);
+        if (columns == null) {
+            return scanFile(startEpochMs, endEpochMs, consumer, file);
+        }
+        return consumer.acceptAll(columns, startEpochMs, endEpochMs) ? columns.size() : -columns.size();
+    }
+
+    // returns null if the file can't be cached or is cheaper to read directly
+    private RecordColumns getParsedFile(File file, long startEpochMs, long endEpochMs) {
+        if (parsedFilesCache == null || !DataFilesStore.isClosed(file, System.currentTimeMillis())) {
+            return null;
+        }
+        RecordColumns columns = parsedFilesCache.get(file);
+        if (columns != null) {
+            return columns;
+        }
+        if (isNarrowRange(file, startEpochMs, endEpochMs) && TextFormatIndex.indexFile(file).exists()) {
+            return null;
+        }
+        return parsedFilesCache.load(file, f -> {
+            RecordColumns parsed = new RecordColumns();
+            scanFile(Long.MIN_VALUE, Long.MAX_VALUE, parsed, f);
+            return parsed;
+        });
+    }
+
+    private static boolean isNarrowRange(File file, long startEpochMs, long endEpochMs) {
+        long fileEpochMs = DataFilesStore.parseFileEpochMs(file.getName());
+        long intervalStartEpochMs = (fileEpochMs / DataFilesStore.FILE_INTERVAL_MS) * DataFilesStore.FILE_INTERVAL_MS;
+        long intervalEndEpochMs = intervalStartEpochMs + DataFilesStore.FILE_INTERVAL_MS;
+        return Math.min(endEpochMs, intervalEndEpochMs) - Math.max(startEpochMs, intervalStartEpochMs) <
+                MIN_CACHED_RANGE_MS;
+    }
+
+    private int scanInParallel(List<File> files, long startEpochMs, long endEpochMs, RecordConsumer consumer) {
+        // Limiting number of files in flight to keep memory use bounded, while letting all threads work
+        int maxInFlight = scanPool.getParallelism() * 2;
+        ArrayDeque<ForkJoinTask<FileRecords>> inFlight = new ArrayDeque<>();
+        int nextFile = 0;
         int eventsScanned = 0;
-        try (FileInputStream fis = new FileInputStream(file);
-             InputStreamReader isr = new InputStreamReader(fis,
-                     StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.IGNORE));
-             BufferedReader br = new BufferedReader(isr)) {
-
-            Iterator<String> lineIterator = br.lines().iterator();
-
-            while (lineIterator.hasNext()) {
-                String line = lineIterator.next();
-                DataRecord e = parseEvent(line);
-                eventsScanned++;
-                if (e != null) {
-                    if (e.epochMs >= startEpochMs && e.epochMs < endEpochMs) {
-                        if (!consumer.acceptAndContinue(e)) {
-                            break; // Break out of the loop when the condition is met
-                        }
+        // tasks that already started check it, so that they don't read their files to the end for nothing
+        AtomicBoolean stopped = new AtomicBoolean();
+        try {
+            while (nextFile < files.size() || !inFlight.isEmpty()) {
+                while (nextFile < files.size() && inFlight.size() < maxInFlight) {
+                    File file = files.get(nextFile++);
+                    inFlight.add(scanPool.submit(() -> readFileInParallel(startEpochMs, endEpochMs, file, stopped)));
+                }
+                FileRecords fileRecords = inFlight.poll().join();
+                eventsScanned += fileRecords.eventsScanned;
+                if (fileRecords.cached != null &&
+                        !consumer.acceptAll(fileRecords.cached, startEpochMs, endEpochMs)) {
+                    return eventsScanned;
+                }
+                for (DataRecord r : fileRecords.records) {
+                    if (!consumer.acceptAndContinue(r)) {
+                        return eventsScanned;
                     }
                 }
             }
+        } finally {
+            stopped.set(true);
+            for (ForkJoinTask<FileRecords> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+        return eventsScanned;
+    }
+
+    private static class FileRecords {
+        final List<DataRecord> records = new ArrayList<>();
+        // not null if file records are in parsed files cache, then records is empty
+        RecordColumns cached;
+        int eventsScanned;
+    }
+
+    private FileRecords readFileInParallel(long startEpochMs, long endEpochMs, File file, AtomicBoolean stopped) {
+        RecordColumns columns = getParsedFile(file, startEpochMs, endEpochMs);
+        if (columns == null) {
+            FileRecords result = new FileRecords();
+            result.eventsScanned = Math.abs(scanFile(startEpochMs, endEpochMs, result.records::add, file, stopped));
+            return result;
+        }
+        FileRecords result = new FileRecords();
+        result.cached = columns;
+        result.eventsScanned = columns.size();
+        return result;
+    }
+
+    // returns negated number of scanned events if consumer asked to stop
+    private static int scanFile(long startEpochMs, long endEpochMs, RecordConsumer consumer, File file) {
+        return scanFile(startEpochMs, endEpochMs, consumer, file, null);
+    }
+
+    // Files are read into a heap buffer in chunks rather than memory-mapped: the parser works on byte arrays, so
+    // mapped files would be copied into one anyway.
+    // Returns negated number of scanned events if consumer asked to stop or stopped (can be null) is set.
+    private static int scanFile(long startEpochMs, long endEpochMs, RecordConsumer consumer, File file,
+                                AtomicBoolean stopped) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            TextFormatIndex index = TextFormatIndex.load(file, channel.size());
+            if (index == null) {
+                return scanLines(in::read, startEpochMs, endEpochMs, consumer, stopped);
+            }
+            // reading only the part of the file that can have records of the range
+            long from = index.startOffset(startEpochMs);
+            long[] remaining = {index.endOffset(endEpochMs) - from};
+            channel.position(from);
+            return scanLines((buf, off, len) -> {
+                if (remaining[0] <= 0) {
+                    return -1;
+                }
+                int read = in.read(buf, off, (int) Math.min(len, remaining[0]));
+                if (read > 0) {
+                    remaining[0] -= read;
+                }
+                return read;
+            }, startEpochMs, endEpochMs, consumer, stopped);
         } catch (IOException e) {
             // this shouldn't really happen.. todo: maybe also check dir for correct access/etc.
             // just skipping the file; todo: maybe propagate to user somehow?
             LOG.log(Level.INFO, "Error reading file: " + file.getAbsolutePath() + ", skipping.", e);
+            return 0;
         }
-        return eventsScanned;
+    }
+
+    private interface BytesSource {
+        // same contract as InputStream.read()
+        int read(byte[] buf, int off, int len) throws IOException;
+    }
+
+    // returns negated number of scanned events if consumer asked to stop or stopped is set
+    private static int scanLines(BytesSource source, long startEpochMs, long endEpochMs,
+                                 RecordConsumer consumer, AtomicBoolean stopped) throws IOException {
+        int eventsScanned = 0;
+        TextLineParser parser = new TextLineParser();
+        // Splitting lines same way as BufferedReader does: at '\n', '\r' or "\r\n"
+        byte[] buf = new byte[READ_BUFFER_SIZE];
+        int lineStart = 0;
+        int pos = 0;
+        int limit = 0;
+        boolean skipLf = false;
+        while (true) {
+            if (stopped != null && stopped.get()) {
+                return -eventsScanned;
+            }
+            int read = source.read(buf, limit, buf.length - limit);
+            boolean eof = read < 0;
+            if (!eof) {
+                limit += read;
+            }
+            while (pos < limit) {
+                byte b = buf[pos++];
+                if (b == '\n' && skipLf) {
+                    skipLf = false;
+                    lineStart = pos;
+                    continue;
+                }
+                skipLf = b == '\r';
+                if (b == '\n' || b == '\r') {
+                    eventsScanned++;
+                    if (!consumeLine(parser, buf, lineStart, pos - 1, startEpochMs, endEpochMs, consumer)) {
+                        return -eventsScanned;
+                    }
+                    lineStart = pos;
+                }
+            }
+            if (eof) {
+                if (lineStart < limit) {
+                    eventsScanned++;
+                    if (!consumeLine(parser, buf, lineStart, limit, startEpochMs, endEpochMs, consumer)) {
+                        return -eventsScanned;
+                    }
+                }
+                return eventsScanned;
+            }
+            if (lineStart > 0) {
+                System.arraycopy(buf, lineStart, buf, 0, limit - lineStart);
+                pos -= lineStart;
+                limit -= lineStart;
+                lineStart = 0;
+            } else if (limit == buf.length) {
+                // line doesn't fit into buffer
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        }
+    }
+
+    // returns false if consumer asked to stop
+    private static boolean consumeLine(TextLineParser parser, byte[] buf, int from, int to,
+                                       long startEpochMs, long endEpochMs, RecordConsumer consumer) {
+        // checking the range first to avoid parsing (and creating) records that are not needed
+        long epochMs = parser.parseEpochMs(buf, from, to);
+        if (epochMs < startEpochMs || epochMs >= endEpochMs) {
+            return true;
+        }
+        DataRecord r = new DataRecord();
+        if (!parser.parse(buf, from, to, r)) {
+            return true;
+        }
+        return consumer.acceptAndContinue(r);
     }
 
     /*
@@ -82,8 +289,7 @@ public class TextFormatReader {
                        <timeDelta>,<logMessage>[,<readingName>,<readingValue>[,<readingName>,<readingValue>[...]]
      */
     public static DataRecord parseEvent(String line) {
-        // todo: efficiency can be greatly improved
-        //       incl. by checking number of parts and failing parse fast
+        // NOTE: scans use TextLineParser instead, which is much more efficient, and falls back to this for non-ASCII
         try {
             String[] parts = line.split(",");
             DataRecord de = new DataRecord();
@@ -1,53 +1,175 @@
 package com.sensortea.cuplogger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Writes received data as is, prefixing each line with epochMs of when it was received. Data is formatted into a
+ * reusable buffer and written to the file through a channel, when {@link WriteFlushPolicy} says so.
+ */
 // todo: support compression?
-public class TextFormatWriter implements Closeable {
+public class TextFormatWriter implements DataWriter {
+    private static final Logger LOG = Logger.getLogger(TextFormatWriter.class.getName());
     public static final String FORMAT = "txt";
     private final String baseDir;
     private final String serialNumber;
+    // null if not needed
+    private final LiveRecords liveRecords;
+    private final WriteFlushPolicy flushPolicy;
+    private final WriterMetrics metrics;
     private long curFileIntervalStartEpochMs = 0;
-    private OutputStream outputStream;
+    private FileChannel channel;
+    private final ByteBuffer buffer;
+    private long lastFlushEpochMs;
+    private DataOutputStream indexStream;
+    // index entries of the buffered data: written to index file only after the data is flushed
+    private final ByteArrayOutputStream pendingIndexBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pendingIndex = new DataOutputStream(pendingIndexBytes);
+    private long fileOffset;
+    private long lastIndexedEpochMs;
+    private long lastEpochMs;
+    private boolean indexUnordered;
+    private File file;
+    // null if the file had data before it was opened, then summary is created by readers when needed
+    private DataFileSummary summary;
+    private final TextLineParser parser = new TextLineParser();
+    private final DataRecord lineRecord = new DataRecord();
+    // current line as written to the file, for the summary and live records
+    private byte[] line = new byte[256];
+    private int lineLength;
+    // "<epochMs>," of the current write
+    private final byte[] timestamp = new byte[21];
+    private int timestampLength;
 
     private boolean newLineStart = true;
 
+    public TextFormatWriter(String baseDir, String serialNumber, LiveRecords liveRecords) {
+        this(baseDir, serialNumber, liveRecords, WriteFlushPolicy.configured());
+    }
+
     // NOTE: the file can exceed maxFileSize as we only split at the line boundaries
-    public TextFormatWriter(String baseDir, String serialNumber) {
+    public TextFormatWriter(String baseDir, String serialNumber, LiveRecords liveRecords,
+                            WriteFlushPolicy flushPolicy) {
         this.baseDir = baseDir;
         this.serialNumber = serialNumber;
+        this.liveRecords = liveRecords;
+        this.flushPolicy = flushPolicy;
+        this.metrics = new WriterMetrics(serialNumber);
+        this.buffer = ByteBuffer.allocateDirect(flushPolicy.flushBytes);
     }
 
-    public void write(byte[] data, int length) throws IOException {
-        long epochMs = System.currentTimeMillis();
-        if (outputStream == null) {
+    @Override
+    public void write(byte[] data, int length, long epochMs) throws IOException {
+        if (channel == null) {
             createNewFile(epochMs);
         } else if (shouldCreateNewFile(epochMs)) {
             createNewFile(epochMs);
         }
+        if (epochMs < lastEpochMs && !indexUnordered) {
+            // clock went backwards, index can't be used for this file anymore
+            TextFormatIndex.writeUnordered(pendingIndex, fileOffset);
+            indexUnordered = true;
+        }
+        lastEpochMs = epochMs;
         // Need to insert timestamp at the beginning of each line, BUT
         // need to use timestamp of when we received the line. So can't just insert current timestamp after \n, need
         // to wait to receive the line.
         // Re-using the timestamp for all data received, to avoid suggesting that multiple lines in given data
         // were produced at different time.
-        String timestamp = epochMs + ",";
-        for (int i = 0; i < length; i++) {
-            // Check for newline character
-            if (data[i] == '\n') {
-                // Write the newline character
-                outputStream.write(data[i]);
+        formatTimestamp(epochMs);
+        int i = 0;
+        while (i < length) {
+            if (newLineStart) {
+                if (data[i] == '\n') {
+                    // empty line, no timestamp for it
+                    put(data, i, 1);
+                    lineCompleted();
+                    i++;
+                    continue;
+                }
+                if (!indexUnordered && epochMs >= lastIndexedEpochMs + TextFormatIndex.INTERVAL_MS) {
+                    TextFormatIndex.writeEntry(pendingIndex, epochMs, fileOffset);
+                    lastIndexedEpochMs = epochMs;
+                }
+                put(timestamp, 0, timestampLength);
+                appendToLine(timestamp, 0, timestampLength);
+                newLineStart = false;
+            }
+            int newLine = i;
+            while (newLine < length && data[newLine] != '\n') {
+                newLine++;
+            }
+            appendToLine(data, i, newLine - i);
+            if (newLine < length) {
+                // with the new line character
+                put(data, i, newLine + 1 - i);
                 newLineStart = true;
+                lineCompleted();
+                i = newLine + 1;
             } else {
-                if (newLineStart) {
-                    // Write the timestamp after the newline
-                    outputStream.write(timestamp.getBytes());
-                    newLineStart = false;
-                }
-                // Write the current byte
-                outputStream.write(data[i]);
+                put(data, i, length - i);
+                i = length;
+            }
+        }
+        if (flushPolicy.flushEachWrite() || epochMs - lastFlushEpochMs >= flushPolicy.flushIntervalMs) {
+            flush(epochMs);
+        }
+    }
+
+    @Override
+    public void flushIfDue() throws IOException {
+        long nowMs = System.currentTimeMillis();
+        if (channel != null && buffer.position() > 0 && nowMs - lastFlushEpochMs >= flushPolicy.flushIntervalMs) {
+            flush(nowMs);
+        }
+    }
+
+    private void formatTimestamp(long epochMs) {
+        String digits = Long.toString(epochMs);
+        timestampLength = digits.length() + 1;
+        for (int i = 0; i < digits.length(); i++) {
+            timestamp[i] = (byte) digits.charAt(i);
+        }
+        timestamp[timestampLength - 1] = ',';
+    }
+
+    private void put(byte[] data, int offset, int length) throws IOException {
+        fileOffset += length;
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
             }
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, count);
+            offset += count;
+            length -= count;
         }
-        outputStream.flush();
+    }
+
+    private void writeBuffer() throws IOException {
+        metrics.bytesWritten.add(buffer.position());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void flush(long epochMs) throws IOException {
+        long startNanos = System.nanoTime();
+        writeBuffer();
+        // index must not point beyond the data readers can see
+        if (pendingIndexBytes.size() > 0) {
+            pendingIndexBytes.writeTo(indexStream);
+            pendingIndexBytes.reset();
+            indexStream.flush();
+        }
+        lastFlushEpochMs = epochMs;
+        metrics.flushTime.record(System.nanoTime() - startNanos);
     }
 
     @Override
@@ -58,27 +180,89 @@ public class TextFormatWriter implements Closeable {
                 '}';
     }
 
+    private void appendToLine(byte[] data, int offset, int length) {
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(lineLength + length, line.length * 2));
+        }
+        System.arraycopy(data, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private void lineCompleted() {
+        // same as what readers will see: '\r' ends the line too
+        int end = 0;
+        while (end < lineLength && line[end] != '\r') {
+            end++;
+        }
+        boolean live = liveRecords != null && liveRecords.wantsRecords(serialNumber);
+        // published records are kept by subscribers, so can't re-use them
+        DataRecord record = live ? new DataRecord() : lineRecord;
+        if ((summary != null || live) && end > 0 && parser.parse(line, 0, end, record)) {
+            if (summary != null) {
+                summary.add(record.epochMs, record.parsedEvent);
+            }
+            if (live) {
+                liveRecords.publish(serialNumber, record);
+            }
+        }
+        lineLength = 0;
+    }
+
     private boolean shouldCreateNewFile(long epochMs) {
         // todo: leaking format, not nice
         return epochMs - curFileIntervalStartEpochMs > DataFilesStore.FILE_INTERVAL_MS;
     }
 
     private void createNewFile(long epochMs) throws IOException {
-        if (outputStream != null) {
-            outputStream.close();
-        }
+        close();
 
-        File file = DataFilesStore.newDataFile(epochMs, FORMAT, baseDir, serialNumber);
+        file = DataFilesStore.newDataFile(epochMs, FORMAT, baseDir, serialNumber);
         curFileIntervalStartEpochMs = (epochMs / DataFilesStore.FILE_INTERVAL_MS) * DataFilesStore.FILE_INTERVAL_MS;
 
-        outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
+        // appending if file exists
+        channel = new FileOutputStream(file, true).getChannel();
+        metrics.fileRolls.inc();
+        fileOffset = file.length();
+        lastFlushEpochMs = epochMs;
+        indexStream = TextFormatIndex.openForAppend(file);
+        lastIndexedEpochMs = Long.MIN_VALUE / 2;
+        indexUnordered = false;
+        if (fileOffset == 0) {
+            summary = new DataFileSummary();
+        } else {
+            summary = null;
+            DataFileSummary.delete(file);
+        }
     }
 
     @Override
     public void close() throws IOException {
-        if (outputStream != null) {
-            outputStream.close();
-            outputStream = null;
+        if (channel != null) {
+            try {
+                flush(System.currentTimeMillis());
+                // the file won't change anymore, making sure it's on disk
+                channel.force(false);
+            } finally {
+                channel.close();
+                channel = null;
+                buffer.clear();
+                pendingIndexBytes.reset();
+                indexStream.close();
+                indexStream = null;
+            }
+            // the last line may be not terminated
+            if (lineLength > 0) {
+                lineCompleted();
+            }
+            if (summary != null && !summary.isEmpty()) {
+                try {
+                    summary.write(file);
+                } catch (IOException e) {
+                    // readers will create it when needed
+                    LOG.log(Level.INFO, "Failed to write summary of " + file.getAbsolutePath(), e);
+                }
+            }
+            summary = null;
         }
     }
 }
@@ -0,0 +1,296 @@
+package com.sensortea.cuplogger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses lines of text format (see {@link TextFormatReader#parseEvent(String)}) directly from bytes, in a single
+ * pass and without intermediate Strings. Gives exactly the same results as {@link TextFormatReader#parseEvent(String)}
+ * does for the same line decoded as UTF-8, which is used as a fallback for lines with non-ASCII characters.
+ * <p>
+ * Values of programId, programVersion, deviceConfig and readingIds repeat on nearly every line, so they are looked
+ * up in a small table of already created Strings and re-used, instead of creating new ones for each line. This also
+ * makes equality checks and hash lookups on them cheap downstream.
+ * <p>
+ * Not thread-safe: keeps reusable state between calls, so use one instance per scan.
+ */
+public class TextLineParser {
+    private static final double[] POWERS_OF_10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    // up to 18 digits always fit into long
+    private static final int MAX_FAST_DIGITS = 18;
+    private static final long MAX_EXACT_DOUBLE_MANTISSA = 1L << 53;
+    private static final String[] NO_IDS = new String[0];
+    // must be a power of 2
+    private static final int INTERNED_TABLE_SIZE = 1024;
+    private static final int MAX_INTERNED_LENGTH = 64;
+    private static final double[] NO_VALUES = new double[0];
+
+    private final CharsetDecoder decoder =
+            StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.IGNORE);
+    // positions of the commas in the current line
+    private int[] commas = new int[64];
+    // positions of ':' that end reading ids in the current line
+    private int[] readingIdEnds = new int[16];
+    // kept when a record turns out to be raw, to reuse for next parsed one
+    private DataRecord.Event spareEvent;
+    // direct-mapped by hash of the bytes: a new value replaces the one it collides with
+    private final byte[][] internedBytes = new byte[INTERNED_TABLE_SIZE][];
+    private final String[] internedStrings = new String[INTERNED_TABLE_SIZE];
+
+    /**
+     * @return epochMs of the line in buf[from, to) (without line terminator),
+     *         or Long.MIN_VALUE if the line is not a valid record
+     */
+    public long parseEpochMs(byte[] buf, int from, int to) {
+        int comma = indexOf(buf, (byte) ',', from, to);
+        if (comma < 0) {
+            return Long.MIN_VALUE;
+        }
+        for (int i = from; i < comma; i++) {
+            if (buf[i] < 0) {
+                DataRecord r = new DataRecord();
+                return parseNonAscii(buf, from, to, r) ? r.epochMs : Long.MIN_VALUE;
+            }
+        }
+        try {
+            return parseLong(buf, from, comma);
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Parses the line in buf[from, to) (without line terminator) into the given record, overwriting all its fields.
+     * Arrays and event of the record are re-used when possible, so don't hold on to them.
+     * @return false if the line is not a valid record (i.e. {@link TextFormatReader#parseEvent(String)} gives null)
+     */
+    public boolean parse(byte[] buf, int from, int to, DataRecord target) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] < 0) {
+                return parseNonAscii(buf, from, to, target);
+            }
+        }
+
+        int commasCount = 0;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == ',') {
+                if (commasCount == commas.length) {
+                    int[] newCommas = new int[commas.length * 2];
+                    System.arraycopy(commas, 0, newCommas, 0, commasCount);
+                    commas = newCommas;
+                }
+                commas[commasCount++] = i;
+            }
+        }
+        if (commasCount == 0) {
+            return false;
+        }
+        int firstComma = commas[0];
+        int lastComma = commas[commasCount - 1];
+        try {
+            target.epochMs = parseLong(buf, from, firstComma);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        // String.split() drops trailing empty parts
+        int partsEnd = to;
+        int partsCommasCount = commasCount;
+        while (partsCommasCount > 0 && commas[partsCommasCount - 1] == partsEnd - 1) {
+            partsEnd--;
+            partsCommasCount--;
+        }
+        int partsCount = partsCommasCount + 1;
+
+        DataRecord.Event e = target.parsedEvent != null ? target.parsedEvent : spareEvent;
+        if (e == null) {
+            e = new DataRecord.Event();
+        }
+        if (partsCount < 7 || !parseEvent(buf, partsCount, partsEnd, firstComma, lastComma, e)) {
+            if (target.parsedEvent != null) {
+                spareEvent = target.parsedEvent;
+            }
+            target.parsedEvent = null;
+            target.rawText = ascii(buf, firstComma + 1, to);
+            return true;
+        }
+        target.rawText = null;
+        target.parsedEvent = e;
+        if (e == spareEvent) {
+            spareEvent = null;
+        }
+        return true;
+    }
+
+    private boolean parseEvent(byte[] buf, int partsCount, int partsEnd,
+                               int firstComma, int lastComma, DataRecord.Event e) {
+        try {
+            int readingsCount = partsCount - 7;
+            // parse numbers first to fail fast before creating any strings
+            e.timeDelta = commas[3] + 1 == commas[4] ? 0 : parseLong(buf, commas[3] + 1, commas[4]);
+            long lengthCheck = parseLong(buf, commas[partsCount - 2] + 1, partsEnd);
+            if (lengthCheck != (int) lengthCheck) {
+                return false;
+            }
+            if (lastComma - firstComma - 1 != lengthCheck) {
+                return false;
+            }
+            double[] values = readingsCount == 0 ? NO_VALUES :
+                    e.readingValues != null && e.readingValues.length == readingsCount ?
+                            e.readingValues : new double[readingsCount];
+            String[] ids = readingsCount == 0 ? NO_IDS :
+                    e.readingIds != null && e.readingIds.length == readingsCount ?
+                            e.readingIds : new String[readingsCount];
+            if (readingIdEnds.length < readingsCount) {
+                readingIdEnds = new int[Math.max(readingsCount, readingIdEnds.length * 2)];
+            }
+            for (int i = 0; i < readingsCount; i++) {
+                int partStart = commas[5 + i] + 1;
+                int partEnd = commas[6 + i];
+                int colon = indexOf(buf, (byte) ':', partStart, partEnd);
+                if (colon < 0) {
+                    return false;
+                }
+                int valueEnd = indexOf(buf, (byte) ':', colon + 1, partEnd);
+                values[i] = parseDouble(buf, colon + 1, valueEnd < 0 ? partEnd : valueEnd);
+                readingIdEnds[i] = colon;
+            }
+            for (int i = 0; i < readingsCount; i++) {
+                ids[i] = intern(buf, commas[5 + i] + 1, readingIdEnds[i]);
+            }
+            e.programId = intern(buf, commas[0] + 1, commas[1]);
+            e.programVersion = intern(buf, commas[1] + 1, commas[2]);
+            e.deviceConfig = intern(buf, commas[2] + 1, commas[3]);
+            e.logMessage = ascii(buf, commas[4] + 1, commas[5]);
+            e.readingIds = ids;
+            e.readingValues = values;
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private boolean parseNonAscii(byte[] buf, int from, int to, DataRecord target) {
+        String line;
+        try {
+            line = decoder.decode(ByteBuffer.wrap(buf, from, to - from)).toString();
+        } catch (CharacterCodingException e) {
+            // doesn't happen when ignoring malformed input
+            line = new String(buf, from, to - from, StandardCharsets.UTF_8);
+        }
+        DataRecord r = TextFormatReader.parseEvent(line);
+        if (r == null) {
+            return false;
+        }
+        target.epochMs = r.epochMs;
+        target.rawText = r.rawText;
+        target.parsedEvent = r.parsedEvent;
+        return true;
+    }
+
+    // returns the same String instance for the same (ascii) bytes, as long as it's in the table
+    private String intern(byte[] buf, int from, int to) {
+        int length = to - from;
+        if (length > MAX_INTERNED_LENGTH) {
+            return ascii(buf, from, to);
+        }
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int idx = (hash ^ (hash >>> 16)) & (INTERNED_TABLE_SIZE - 1);
+        byte[] bytes = internedBytes[idx];
+        if (bytes != null && bytes.length == length) {
+            int i = 0;
+            while (i < length && bytes[i] == buf[from + i]) {
+                i++;
+            }
+            if (i == length) {
+                return internedStrings[idx];
+            }
+        }
+        String value = ascii(buf, from, to);
+        internedBytes[idx] = Arrays.copyOfRange(buf, from, to);
+        internedStrings[idx] = value;
+        return value;
+    }
+
+    private static String ascii(byte[] buf, int from, int to) {
+        return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int indexOf(byte[] buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // same as Long.parseLong(), but without creating a String for the common case
+    static long parseLong(byte[] buf, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == to || to - i > MAX_FAST_DIGITS) {
+            return Long.parseLong(ascii(buf, from, to));
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + ascii(buf, from, to) + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // same as Double.parseDouble(), but without creating a String for the common case of plain decimals
+    static double parseDouble(byte[] buf, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        for (; i < to; i++) {
+            int digit = buf[i] - '0';
+            if (digit >= 0 && digit <= 9) {
+                if (digits == MAX_FAST_DIGITS) {
+                    return Double.parseDouble(ascii(buf, from, to));
+                }
+                mantissa = mantissa * 10 + digit;
+                digits++;
+                if (point) {
+                    fractionDigits++;
+                }
+            } else if (buf[i] == '.' && !point) {
+                point = true;
+            } else {
+                // exponent, special values, whitespace, etc.
+                return Double.parseDouble(ascii(buf, from, to));
+            }
+        }
+        if (digits == 0 || mantissa > MAX_EXACT_DOUBLE_MANTISSA) {
+            return Double.parseDouble(ascii(buf, from, to));
+        }
+        // both are exact, so division gives correctly rounded result, same as Double.parseDouble()
+        double value = (double) mantissa / POWERS_OF_10[fractionDigits];
+        return negative ? -value : value;
+    }
+}
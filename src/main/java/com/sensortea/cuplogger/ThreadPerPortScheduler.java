@@ -0,0 +1,31 @@
+package com.sensortea.cuplogger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs each task on its own thread of the executor until it stops.
+ */
+class ThreadPerPortScheduler implements CaptureScheduler {
+    private final ExecutorService executor;
+    private final boolean blockingReads;
+
+    /**
+     * @param blockingReads must be false for virtual threads, as they can't unmount while blocked in native code
+     */
+    ThreadPerPortScheduler(ExecutorService executor, boolean blockingReads) {
+        this.executor = executor;
+        this.blockingReads = blockingReads;
+    }
+
+    @Override
+    public Future<?> start(SerialReaderTask task, Runnable onStopped) {
+        return executor.submit(() -> {
+            try {
+                task.capture(blockingReads);
+            } finally {
+                onStopped.run();
+            }
+        });
+    }
+}
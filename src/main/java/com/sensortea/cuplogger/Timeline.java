@@ -0,0 +1,7 @@
+package com.sensortea.cuplogger;
+
+public class Timeline {
+    public long intervalMs;
+    // [intervalStartEpochMs, 1 if has data else 0, 1 if program/version/config changed else 0] for each interval
+    public long[][] points;
+}
@@ -0,0 +1,82 @@
+package com.sensortea.cuplogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds {@link Timeline} from {@link DataFileSummary} of data files, so that raw data is only read for files that
+ * don't have a summary yet. Summaries of closed files are created on first use.
+ */
+public class TimelineReader {
+    private static final Logger LOG = Logger.getLogger(TimelineReader.class.getName());
+    // shorter intervals can be fully within a gap of a summary range and be wrongly shown as having data
+    static final long MIN_INTERVAL_MS = 2 * DataFileSummary.MAX_GAP_MS;
+    static final int MAX_INTERVALS = 100_000;
+
+    private final DataReader reader;
+
+    public TimelineReader(DataReader reader) {
+        this.reader = reader;
+    }
+
+    public Timeline read(String serialNumber, long startEpochMs, long endEpochMs, long intervalMs) {
+        long rangeMs = Math.max(1, endEpochMs - startEpochMs);
+        intervalMs = Math.max(intervalMs, Math.max(MIN_INTERVAL_MS, (rangeMs + MAX_INTERVALS - 1) / MAX_INTERVALS));
+        long firstIntervalEpochMs = Math.floorDiv(startEpochMs, intervalMs) * intervalMs;
+        int intervalsCount = (int) (Math.floorDiv(endEpochMs, intervalMs) - Math.floorDiv(startEpochMs, intervalMs) + 1);
+        boolean[] available = new boolean[intervalsCount];
+        boolean[] changed = new boolean[intervalsCount];
+
+        long nowMs = System.currentTimeMillis();
+        DataFileSummary.Config prevConfig = null;
+        for (File file : reader.findDataFiles(serialNumber, startEpochMs, endEpochMs)) {
+            DataFileSummary summary = getSummary(file, nowMs);
+            for (long[] range : summary.getRanges()) {
+                long from = Math.max(range[0], startEpochMs);
+                long to = Math.min(range[1], endEpochMs - 1);
+                if (from <= to) {
+                    int lastIdx = (int) ((to - firstIntervalEpochMs) / intervalMs);
+                    for (int i = (int) ((from - firstIntervalEpochMs) / intervalMs); i <= lastIdx; i++) {
+                        available[i] = true;
+                    }
+                }
+            }
+            for (DataFileSummary.Config config : summary.getConfigs()) {
+                if (prevConfig != null && !config.sameAs(prevConfig) &&
+                        config.epochMs >= startEpochMs && config.epochMs < endEpochMs) {
+                    changed[(int) ((config.epochMs - firstIntervalEpochMs) / intervalMs)] = true;
+                }
+                prevConfig = config;
+            }
+        }
+
+        Timeline timeline = new Timeline();
+        timeline.intervalMs = intervalMs;
+        timeline.points = new long[intervalsCount][];
+        for (int i = 0; i < intervalsCount; i++) {
+            timeline.points[i] = new long[]{
+                    firstIntervalEpochMs + i * intervalMs, available[i] ? 1 : 0, changed[i] ? 1 : 0};
+        }
+        return timeline;
+    }
+
+    private DataFileSummary getSummary(File file, long nowMs) {
+        DataFileSummary summary = DataFileSummary.load(file);
+        if (summary != null) {
+            return summary;
+        }
+        summary = new DataFileSummary();
+        reader.scanFile(file, Long.MIN_VALUE, Long.MAX_VALUE, summary);
+        // the file being written will have its summary written by the writer when closed
+        if (DataFilesStore.isClosed(file, nowMs)) {
+            try {
+                summary.write(file);
+            } catch (IOException e) {
+                LOG.log(Level.INFO, "Failed to write summary of " + file.getAbsolutePath(), e);
+            }
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,68 @@
+package com.sensortea.cuplogger;
+
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * When writers pass buffered data to the OS. Configured with env variables:
+ * <ul>
+ * <li>WRITE_FLUSH_MS: 0 (default) to flush after each write, i.e. each read from the serial port; otherwise at most
+ *     that many ms after the data was received, up to MAX_FLUSH_INTERVAL_MS</li>
+ * <li>WRITE_FLUSH_BYTES: flush when that much data is buffered, 64KB by default</li>
+ * </ul>
+ * Flushed data is visible to readers and survives the server crash, but not the OS crash or power loss: files are
+ * synced to disk only when they are closed, e.g. when a writer moves on to a new file.
+ */
+public final class WriteFlushPolicy {
+    private static final Logger LOG = Logger.getLogger(WriteFlushPolicy.class.getName());
+    public static final String WRITE_FLUSH_MS_ENV_VARIABLE = "WRITE_FLUSH_MS";
+    public static final String WRITE_FLUSH_BYTES_ENV_VARIABLE = "WRITE_FLUSH_BYTES";
+    private static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+    // data must be flushed before readers consider the file closed and e.g. cache or roll it up
+    static final long MAX_FLUSH_INTERVAL_MS = DataFilesStore.CLOSED_FILE_MARGIN_MS / 2;
+
+    final long flushIntervalMs;
+    final int flushBytes;
+
+    public WriteFlushPolicy(long flushIntervalMs, int flushBytes) {
+        this.flushIntervalMs = flushIntervalMs;
+        this.flushBytes = flushBytes;
+    }
+
+    public static WriteFlushPolicy configured() {
+        return configured(System.getenv());
+    }
+
+    static WriteFlushPolicy configured(Map<String, String> env) {
+        return new WriteFlushPolicy(
+                getEnv(env, WRITE_FLUSH_MS_ENV_VARIABLE, 0, 0, MAX_FLUSH_INTERVAL_MS),
+                (int) getEnv(env, WRITE_FLUSH_BYTES_ENV_VARIABLE, DEFAULT_FLUSH_BYTES, 1, Integer.MAX_VALUE));
+    }
+
+    private static long getEnv(Map<String, String> env, String name, long defaultValue, long minValue,
+                               long maxValue) {
+        String configured = env.get(name);
+        if (configured == null || configured.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            long value = Long.parseLong(configured);
+            if (value >= minValue && value <= maxValue) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // falling through
+        }
+        LOG.warning("Bad " + name + " '" + configured + "', will use " + defaultValue);
+        return defaultValue;
+    }
+
+    boolean flushEachWrite() {
+        return flushIntervalMs == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteFlushPolicy{flushIntervalMs=" + flushIntervalMs + ", flushBytes=" + flushBytes + '}';
+    }
+}
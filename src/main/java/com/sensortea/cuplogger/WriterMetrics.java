@@ -0,0 +1,20 @@
+package com.sensortea.cuplogger;
+
+/**
+ * Metrics of {@link DataWriter}s of a port.
+ */
+final class WriterMetrics {
+    final Metrics.Timer flushTime;
+    final Metrics.Counter bytesWritten;
+    final Metrics.Counter fileRolls;
+
+    WriterMetrics(String serialNumber) {
+        Metrics metrics = Metrics.get();
+        flushTime = metrics.timer("cuplogger_writer_flush",
+                "Time spent writing buffered data to data files", "port", serialNumber);
+        bytesWritten = metrics.counter("cuplogger_writer_bytes_total",
+                "Bytes written to data files", "port", serialNumber);
+        fileRolls = metrics.counter("cuplogger_writer_file_rolls_total",
+                "Data files opened for writing", "port", serialNumber);
+    }
+}
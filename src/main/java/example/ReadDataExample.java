@@ -1,6 +1,7 @@
 package example;
 
 import com.sensortea.cuplogger.DataRecord;
+import com.sensortea.cuplogger.RecordColumns;
 import com.sensortea.cuplogger.TextFormatReader;
 
 public class ReadDataExample {
@@ -23,5 +24,13 @@ public class ReadDataExample {
             System.out.println(r.epochMs);
             return true;
         });
+
+        // 2c. Read records into compact columns, and go through them without creating objects
+        RecordColumns.Cursor cursor = reader.readColumns(serialNumber, startEpochMs, endEpochMs).cursor();
+        while (cursor.next()) {
+            for (int i = 0; i < cursor.readingsCount(); i++) {
+                System.out.println(cursor.epochMs() + " " + cursor.readingId(i) + "=" + cursor.readingValue(i));
+            }
+        }
     }
 }
\ No newline at end of file
@@ -2,6 +2,15 @@
 // todo: more efficient event: [0:<programId>,1:<programVersion>,2:<deviceConfig>,3:<timeDelta>,4:<logMessage>, 5:{<readingName>: <readingValue>}]
 let data = {};
 
+// windows longer than that are plotted from readings downsampled on the server, so raw records are loaded only for
+// up to RAW_DATA_MAX_MS of them: for the text view and the list of readings
+const DOWNSAMPLED_WINDOW_MS = 8 * 60 * 60 * 1000;
+const RAW_DATA_MAX_MS = 60 * 60 * 1000;
+
+function isDownsampledWindow(startEpochMs, endEpochMs) {
+    return endEpochMs - startEpochMs > DOWNSAMPLED_WINDOW_MS;
+}
+
 // todo: think through error hanlding and propagating to user
 async function fetchData(url, input = {}) {
     try {
@@ -35,6 +44,10 @@ async function fetchData(url, input = {}) {
 //       (-10ms maybe just in case ;))
 // ensures we only load and append data after the epochMs of already loaded data
 async function loadAndAppendData(sn, startEpochMs, endEpochMs) {
+    if (data[sn].live) {
+        // new records are pushed by the server
+        return;
+    }
     let snData = data[sn].data;
     // NOTE: assuming we always append to the end;
     let currEndEpochMs = data[sn].maxEpochMs;
@@ -49,28 +62,191 @@ async function loadAndAppendData(sn, startEpochMs, endEpochMs) {
         {
             serialNumber: sn,
             startEpochMs: startEpochMs,
-            endEpochMs: endEpochMs
-        }) || "[]";
-    var fetched = await response.json();
-    data[sn].fetchedBytes += parseInt(response.headers.get("Content-Length"));
+            endEpochMs: endEpochMs,
+            format: "columnar-binary"
+        });
+    if (!response || !response.ok) {
+        return;
+    }
+    var buffer = await response.arrayBuffer();
+    var fetched = decodeColumnarBinary(buffer);
+    data[sn].fetchedBytes += buffer.byteLength;
 
     // Remove all entries from startEpochMs onwards (previous load could load partial data)
     while (snData.length > 0 && snData[snData.length - 1][0] >= startEpochMs) {
         snData.pop();
     }
-    fetched.forEach(dataEvent => {
-        currEndEpochMs = currEndEpochMs < dataEvent.epochMs ? dataEvent.epochMs : currEndEpochMs;
-        snData.push([dataEvent.epochMs, dataEvent.rawText, dataEvent.parsedEvent]);
+    fetched.forEach(entry => {
+        currEndEpochMs = currEndEpochMs < entry[0] ? entry[0] : currEndEpochMs;
+        snData.push(entry);
     });
     data[sn].maxEpochMs = currEndEpochMs;
 }
 
+// one stream of pushed records for all followed connections, as browsers allow only 6 connections per server,
+// incl. all other requests
+let liveSource = null;
+let liveSerialNumbers = new Set();
+let liveReopenTimer = null;
+
+// subscribes to records pushed by the server as they are captured and appends them to loaded data,
+// so that following a live connection doesn't need to re-fetch data
+function subscribeLiveData(sn) {
+    if (liveSerialNumbers.has(sn)) {
+        return;
+    }
+    liveSerialNumbers.add(sn);
+    // records pushed before the gap since the loaded data is filled in
+    data[sn].livePending = [];
+    reopenLiveSource();
+}
+
+function unsubscribeLiveData(sn) {
+    if (!liveSerialNumbers.delete(sn)) {
+        return;
+    }
+    if (data[sn] !== undefined) {
+        data[sn].live = false;
+    }
+    reopenLiveSource();
+}
+
+// re-subscribing is delayed a bit, so that changing multiple connections at once opens only one new stream
+function reopenLiveSource() {
+    if (liveReopenTimer !== null) {
+        return;
+    }
+    liveReopenTimer = setTimeout(function () {
+        liveReopenTimer = null;
+        if (liveSource !== null) {
+            liveSource.close();
+            liveSource = null;
+        }
+        // records captured meanwhile are fetched on the first push
+        resetLiveData();
+        if (liveSerialNumbers.size === 0) {
+            return;
+        }
+        let query = Array.from(liveSerialNumbers).map(sn => 'serialNumber=' + encodeURIComponent(sn)).join('&');
+        let source = new EventSource(httpEndpoint + '/subscribeRecords?' + query);
+        liveSource = source;
+        source.onmessage = function (message) {
+            let event = JSON.parse(message.data);
+            appendPushedRecords(event.serialNumber, decodeColumnar(event.records));
+        };
+        source.onerror = function () {
+            // browser reconnects automatically, and records missed meanwhile are fetched on the next push
+            resetLiveData();
+        };
+    }, 100);
+}
+
+function resetLiveData() {
+    liveSerialNumbers.forEach(sn => {
+        data[sn].live = false;
+        data[sn].livePending = [];
+    });
+}
+
+async function appendPushedRecords(sn, records) {
+    let snData = data[sn];
+    if (snData === undefined || !liveSerialNumbers.has(sn)) {
+        return;
+    }
+    if (snData.livePending === null) {
+        appendLiveRecords(sn, records);
+        return;
+    }
+    snData.livePending.push(...records);
+    if (snData.livePending.length > records.length) {
+        // already filling in the gap
+        return;
+    }
+    await loadAndAppendData(sn, snData.maxEpochMs, records[0][0]);
+    if (data[sn] !== snData) {
+        // reloaded meanwhile
+        return;
+    }
+    appendLiveRecords(sn, snData.livePending);
+    snData.livePending = null;
+    snData.live = true;
+}
+
+function appendLiveRecords(sn, records) {
+    let snData = data[sn].data;
+    records.forEach(entry => {
+        // NOTE: assuming we always append to the end
+        if (entry[0] >= data[sn].maxEpochMs) {
+            snData.push(entry);
+            data[sn].maxEpochMs = entry[0];
+        }
+    });
+}
+
+// decodes /getData response in "columnar-binary" format into [[epochMs, rawText, parsedEvent]]
+function decodeColumnarBinary(buffer) {
+    let headerLength = new DataView(buffer).getUint32(0, true);
+    let columns = JSON.parse(new TextDecoder().decode(new Uint8Array(buffer, 4, headerLength)));
+    // values are little-endian, same as typed arrays in all mainstream browsers
+    columns.readingValues = new Float64Array(buffer, 4 + headerLength);
+    return decodeColumnar(columns);
+}
+
+// decodes /getData response in "columnar" format into [[epochMs, rawText, parsedEvent]]
+function decodeColumnar(columns) {
+    let result = new Array(columns.count);
+    let dict = columns.dictionary;
+    let epochMs = 0;
+    let readingIdx = 0;
+    for (let i = 0; i < columns.count; i++) {
+        epochMs += columns.epochMsDeltas[i];
+        if (columns.programIds[i] === -1) {
+            result[i] = [epochMs, columns.texts[i], undefined];
+            continue;
+        }
+        let count = columns.readingsCounts[i];
+        let readingIds = new Array(count);
+        let readingValues = new Array(count);
+        for (let j = 0; j < count; j++, readingIdx++) {
+            readingIds[j] = dict[columns.readingIds[readingIdx]];
+            let value = columns.readingValues[readingIdx];
+            readingValues[j] = value === null ? NaN : value;
+        }
+        result[i] = [epochMs, undefined, {
+            programId: dict[columns.programIds[i]],
+            programVersion: dict[columns.programVersions[i]],
+            deviceConfig: dict[columns.deviceConfigs[i]],
+            timeDelta: columns.timeDeltas[i],
+            logMessage: columns.texts[i],
+            readingIds: readingIds,
+            readingValues: readingValues
+        }];
+    }
+    return result;
+}
+
 async function loadData(sn, startEpochMs, endEpochMs) {
-    data[sn] = {data: [], minEpochMs: 0, maxEpochMs: 0, fetchedBytes: 0};
+    unsubscribeLiveData(sn);
+    data[sn] = {data: [], minEpochMs: 0, maxEpochMs: 0, fetchedBytes: 0,
+                loadedStartEpochMs: startEpochMs, loadedEndEpochMs: endEpochMs};
     // todo: always load at least whole timeline interval to make sure timeline shows correctly?
     await loadAndAppendData(sn, startEpochMs, endEpochMs);
 }
 
+// loads raw records of the window: all of them, or only the last RAW_DATA_MAX_MS for downsampled windows
+async function loadWindowData(sn, startEpochMs, endEpochMs) {
+    if (isDownsampledWindow(startEpochMs, endEpochMs)) {
+        startEpochMs = Math.max(startEpochMs, endEpochMs - RAW_DATA_MAX_MS);
+    }
+    await loadData(sn, startEpochMs, endEpochMs);
+}
+
+function isDataLoaded(sn, startEpochMs, endEpochMs) {
+    let snData = data[sn];
+    return snData !== undefined && snData.loadedStartEpochMs <= startEpochMs &&
+        endEpochMs <= Math.max(snData.loadedEndEpochMs, snData.maxEpochMs);
+}
+
 function getIndex(arr, epochMs) {
     let start = 0;
     let end = arr.length - 1;
@@ -113,44 +289,33 @@ function scanLoadedData(sn, startEpochMs, endEpochMs, scannerFunc) {
     }
 }
 
-function getTimeline(sn, startEpochMs, endEpochMs) {
-    // [[epochMs, dataAvail=1, update=""]]
-    let points = [];
+async function getTimeline(sn, startEpochMs, endEpochMs) {
+    // [[epochMs, dataAvail=1, update=1]]
     let intervalMs;
     // picking resolution based on time range. needs to be a bit bigger than default intervals, as we append to them
-    if (startEpochMs - endEpochMs <= 8 * HOUR_IN_MS) {
+    if (endEpochMs - startEpochMs <= 8 * HOUR_IN_MS) {
         intervalMs = 10 * 1000;
-    } else if (startEpochMs - endEpochMs <= 2 * DAY_IN_MS) {
+    } else if (endEpochMs - startEpochMs <= 2 * DAY_IN_MS) {
         intervalMs = 60 * 1000;
     } else {
         intervalMs = 5 * 60 * 1000;
     }
 
-    // first point
-    let firstIntervalEpochMs = Math.floor(startEpochMs / intervalMs) * intervalMs;
-    // fill all with empty points
-    // +1 because ...
-    let intervalsCount = Math.floor(endEpochMs / intervalMs) - Math.floor(startEpochMs / intervalMs) + 1;
-    for (var i = 0; i < intervalsCount; i++) {
-        points.push([firstIntervalEpochMs + i * intervalMs, NaN, NaN]);
+    let points = [];
+    // computed on the server from small per-file summaries, so doesn't need the data to be loaded
+    let response = await fetchData(
+        httpEndpoint + '/getTimeline',
+        {
+            serialNumber: sn,
+            startEpochMs: startEpochMs,
+            endEpochMs: endEpochMs + 1,
+            intervalMs: intervalMs
+        });
+    if (response && response.ok) {
+        let timeline = await response.json();
+        points = timeline.points.map(point =>
+            [point[0], point[1] === 1 ? 1 : NaN, point[2] === 1 ? 1 : NaN]);
     }
-
-    let prevEvent;
-    // todo: use firstIntervalEpochMs instead of startEpochMs to make sure full interval data is considered?
-    scanLoadedData(sn, startEpochMs, endEpochMs, function (epochMs, rawText, event) {
-        let intervalIdx = Math.floor((epochMs - firstIntervalEpochMs) / intervalMs);
-        points[intervalIdx][1] = 1;
-        if (event !== undefined) {
-            if (prevEvent !== undefined && (
-                prevEvent.programId !== event.programId ||
-                prevEvent.programVersion !== event.programVersion ||
-                prevEvent.deviceConfig !== event.deviceConfig)) {
-
-                points[intervalIdx][2] = 1;
-            }
-            prevEvent = event;
-        }
-    })
     // adding "edge point" at end
     points.push([endEpochMs + 1, NaN, NaN]);
     return points;
@@ -217,4 +382,30 @@ function getReadingValues(sn, reading, startEpochMs, endEpochMs) {
     });
 
     return result;
-}
\ No newline at end of file
+}
+
+// Reads readings values aggregated on the server into at most maxPoints buckets.
+// Returns same format as getReadingsValues (average per bucket): [[epochMs, value1, value2, ...]]
+async function fetchDownsampledReadingsValues(sn, readings, startEpochMs, endEpochMs, maxPoints) {
+    let response = await fetchData(
+        httpEndpoint + '/getDownsampledReadings',
+        {
+            serialNumber: sn,
+            startEpochMs: startEpochMs,
+            endEpochMs: endEpochMs,
+            readingIds: readings.join(","),
+            maxPoints: maxPoints
+        });
+    if (!response || !response.ok) {
+        return [];
+    }
+    let downsampled = await response.json();
+    return downsampled.points.map(point => {
+        let row = [point[0]];
+        for (let i = 1; i < point.length; i++) {
+            // [min, avg, max]
+            row.push(point[i] === null ? null : point[i][1]);
+        }
+        return row;
+    });
+}
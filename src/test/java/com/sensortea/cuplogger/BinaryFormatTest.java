@@ -0,0 +1,76 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * Records read back from .clb files must be the same as parsed from text files of the same lines.
+ */
+public class BinaryFormatTest {
+    private static final String SN = "SN1";
+    private static final long END = T0 + 2 * DataFilesStore.FILE_INTERVAL_MS;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+    private String textDir;
+    private String binaryDir;
+
+    @Before
+    public void setUp() throws Exception {
+        textDir = dir.newFolder("text").getPath();
+        binaryDir = dir.newFolder("binary").getPath();
+        TestDataFiles.write(textDir, SN, T0, END, 50, 1);
+        try (BinaryFormatWriter writer = new BinaryFormatWriter(binaryDir, SN, null)) {
+            TestDataFiles.write(writer, T0, END, 50, 1);
+        }
+    }
+
+    @Test
+    public void readsWhatWasWritten() throws Exception {
+        BinaryFormatReader reader = new BinaryFormatReader(binaryDir);
+        TestDataFiles.assertSameRecords(TestDataFiles.readAll(textDir, SN, T0, END),
+                TestDataFiles.scan(reader, SN, T0, END));
+        // within blocks and across files
+        long start = T0 + 123_456;
+        long end = END - 234_567;
+        TestDataFiles.assertSameRecords(TestDataFiles.readAll(textDir, SN, start, end),
+                TestDataFiles.scan(reader, SN, start, end));
+    }
+
+    @Test
+    public void skipsBlockThatWasNotFullyWritten() throws Exception {
+        File file = reader().findDataFiles(SN, T0, T0 + 1).iterator().next();
+        List<DataRecord> full = readFile(file);
+        long fileEnd = file.length();
+        // cut off some of the last block, then more of it, then all but a part of the magic
+        for (long length : new long[]{fileEnd - 10, fileEnd - 30, 2}) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(length);
+            }
+            List<DataRecord> read = readFile(file);
+            assertTrue(read.size() < full.size());
+            TestDataFiles.assertSameRecords(full.subList(0, read.size()), read);
+        }
+        assertEquals(0, readFile(file).size());
+    }
+
+    private BinaryFormatReader reader() {
+        return new BinaryFormatReader(binaryDir);
+    }
+
+    private List<DataRecord> readFile(File file) {
+        List<DataRecord> records = new ArrayList<>();
+        assertTrue(reader().scanFile(file, Long.MIN_VALUE, Long.MAX_VALUE, records::add));
+        return records;
+    }
+}
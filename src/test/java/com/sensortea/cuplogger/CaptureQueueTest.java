@@ -0,0 +1,103 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CaptureQueue} must pass every chunk, with its bytes and timestamp, from the producer to the consumer thread.
+ */
+public class CaptureQueueTest {
+    private static final int CHUNKS = 300_000;
+
+    private static int length(int chunk, int maxLength) {
+        return 1 + (int) (chunk * 7919L % maxLength);
+    }
+
+    private static byte content(int chunk, int offset) {
+        return (byte) (chunk * 31 + offset);
+    }
+
+    @Test
+    public void passesAllChunksWhenBytesAreFull() throws Exception {
+        passesAllChunks(1024, 300);
+    }
+
+    @Test
+    public void passesAllChunksWhenChunkSlotsAreFull() throws Exception {
+        // short chunks, so that all MAX_CHUNKS slots are in use before the bytes fill up
+        passesAllChunks(64 * 1024, 8);
+    }
+
+    private static void passesAllChunks(int capacityBytes, int maxLength) throws Exception {
+        CheckingWriter writer = new CheckingWriter(maxLength);
+        CaptureQueue.Counters counters = new CaptureQueue.Counters();
+        CaptureQueue queue = new CaptureQueue("SN1", writer, capacityBytes, counters);
+        AtomicReference<Throwable> producerError = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                byte[] data = new byte[maxLength];
+                for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                    int length = length(chunk, maxLength);
+                    for (int i = 0; i < length; i++) {
+                        data[i] = content(chunk, i);
+                    }
+                    // retrying the dropped ones, so that all of them get through
+                    long dropped = counters.droppedChunks.get();
+                    queue.offer(data, length, chunk);
+                    while (counters.droppedChunks.get() != dropped) {
+                        Thread.yield();
+                        dropped = counters.droppedChunks.get();
+                        queue.offer(data, length, chunk);
+                    }
+                }
+            } catch (Throwable t) {
+                producerError.set(t);
+            }
+        });
+        producer.start();
+        byte[] buffer = new byte[maxLength];
+        long deadlineMs = System.currentTimeMillis() + 60_000;
+        int maxChunks = 1;
+        while (writer.chunks < CHUNKS && System.currentTimeMillis() < deadlineMs) {
+            if (queue.drainTo(buffer, maxChunks) == 0) {
+                Thread.yield();
+            }
+            maxChunks = maxChunks % 64 + 1;
+        }
+        producer.join();
+        assertNull(producerError.get());
+        assertEquals(CHUNKS, writer.chunks);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.depthBytes());
+        assertEquals(CHUNKS, counters.chunks.get());
+    }
+
+    private static class CheckingWriter implements DataWriter {
+        final int maxLength;
+        int chunks;
+
+        CheckingWriter(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public void write(byte[] data, int length, long epochMs) {
+            int chunk = chunks++;
+            assertEquals("timestamp of chunk " + chunk, chunk, epochMs);
+            assertEquals("length of chunk " + chunk, length(chunk, maxLength), length);
+            for (int i = 0; i < length; i++) {
+                if (data[i] != content(chunk, i)) {
+                    fail("byte " + i + " of chunk " + chunk);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * Closing {@link CaptureWriterStage}, e.g. on shutdown, must write all queued data, incl. blocks that writers keep
+ * in memory, even if ports are still being captured.
+ */
+public class CaptureWriterStageTest {
+    private static final long END = T0 + 60_000;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void closeWritesQueuedData() throws Exception {
+        String textDir = dir.newFolder("text").getPath();
+        String binaryDir = dir.newFolder("binary").getPath();
+        int lines = TestDataFiles.write(textDir, "SN1", T0, END, 100, 1);
+        CaptureWriterStage stage = new CaptureWriterStage(1024 * 1024);
+        CaptureQueue text = stage.register("SN1", new TextFormatWriter(dir.getRoot().getPath(), "SN1", null,
+                new WriteFlushPolicy(WriteFlushPolicy.MAX_FLUSH_INTERVAL_MS, 64 * 1024)));
+        CaptureQueue binary = stage.register("SN1", new BinaryFormatWriter(binaryDir, "SN1", null));
+        // not closed by the producers, as when capture is still running on shutdown
+        assertEquals(lines, TestDataFiles.write(new QueueWriter(text, binary), T0, END, 100, 1));
+        stage.close();
+
+        List<DataRecord> expected = TestDataFiles.readAll(textDir, "SN1", T0, END);
+        TestDataFiles.assertSameRecords(expected, TestDataFiles.readAll(dir.getRoot().getPath(), "SN1", T0, END));
+        TestDataFiles.assertSameRecords(expected,
+                TestDataFiles.scan(new BinaryFormatReader(binaryDir), "SN1", T0, END));
+        assertTrue(text.isClosed());
+        assertFalse(text.isFailed());
+
+        // nothing is taken after close
+        CaptureQueue late = stage.register("SN2", new BinaryFormatWriter(binaryDir, "SN2", null));
+        assertTrue(late.isFailed());
+        late.offer(new byte[]{'x', '\n'}, 2, END);
+        assertTrue(late.isEmpty());
+        text.offer(new byte[]{'x', '\n'}, 2, END);
+        assertTrue(text.isEmpty());
+    }
+
+    // offers to all queues, same as capture tasks do
+    private static final class QueueWriter implements DataWriter {
+        private final CaptureQueue[] queues;
+
+        QueueWriter(CaptureQueue... queues) {
+            this.queues = queues;
+        }
+
+        @Override
+        public void write(byte[] data, int length, long epochMs) {
+            for (CaptureQueue queue : queues) {
+                while (!queue.isFailed() && queue.depthBytes() + length > queue.capacityBytes() / 2) {
+                    // not to drop any, the stage keeps up with a real port
+                    Thread.yield();
+                }
+                queue.offer(data, length, epochMs);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
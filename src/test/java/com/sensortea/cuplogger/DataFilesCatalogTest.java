@@ -0,0 +1,129 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * Finding data files via the catalog must give the same files as listing the data dirs, incl. files created after
+ * the catalog was built.
+ */
+public class DataFilesCatalogTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void findsFilesThatWereOnDisk() throws Exception {
+        // created under another base dir, so that this one's catalog is built from what's on disk
+        String otherDir = dir.newFolder("other").getPath();
+        Random random = new Random(7);
+        createFiles(otherDir, "SN1", random, 200);
+        createFiles(otherDir, "SN2", random, 20);
+        File snDir = DataFilesStore.newDataFile(T0, TextFormatWriter.FORMAT, otherDir, "SN1").getParentFile();
+        // not data files
+        assertTrue(new File(snDir, "notes.txt").createNewFile());
+        assertTrue(new File(snDir, "2023_11_14_221000").createNewFile());
+        String baseDir = dir.newFolder("base").getPath();
+        Files.move(new File(otherDir, DataFilesStore.DATA_DIR).toPath(),
+                new File(baseDir, DataFilesStore.DATA_DIR).toPath());
+        DataFilesStore.loadCatalog(baseDir);
+
+        assertEquals(new HashSet<>(Arrays.asList("SN1", "SN2")), toSet(DataFilesStore.listSerialNumbers(baseDir)));
+        assertFindsSameAsListing(baseDir, random);
+    }
+
+    @Test
+    public void findsFilesCreatedLater() throws Exception {
+        String baseDir = dir.getRoot().getPath();
+        Random random = new Random(8);
+        createFiles(baseDir, "SN1", random, 50);
+        DataFilesStore.loadCatalog(baseDir);
+        // some before the first ones, some in between
+        createFiles(baseDir, "SN1", random, 50);
+        createFiles(baseDir, "SN3", random, 50);
+        assertTrue(toSet(DataFilesStore.listSerialNumbers(baseDir)).contains("SN3"));
+        assertFindsSameAsListing(baseDir, random);
+    }
+
+    @Test
+    public void registersReopenedFileOnce() throws Exception {
+        String baseDir = dir.getRoot().getPath();
+        long fileEpochMs = T0 + 123_000;
+        File file = DataFilesStore.newDataFile(fileEpochMs, TextFormatWriter.FORMAT, baseDir, "SN1");
+        assertTrue(file.createNewFile());
+        assertEquals(file, DataFilesStore.newDataFile(fileEpochMs + 500, TextFormatWriter.FORMAT, baseDir, "SN1"));
+        assertEquals(Collections.singletonList(file), find(baseDir, "SN1", TextFormatWriter.FORMAT, T0, T0 + 1));
+        // other format is a separate list
+        assertEquals(Collections.emptyList(), find(baseDir, "SN1", BinaryFormatWriter.FORMAT, T0, T0 + 1));
+    }
+
+    private static void createFiles(String baseDir, String serialNumber, Random random, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            // over a few days, so that files are in different day dirs; whole seconds as in file names
+            long epochMs = T0 + random.nextInt((int) (3 * DAY_MS / 1000)) * 1000L;
+            String format = random.nextInt(4) == 0 ? BinaryFormatWriter.FORMAT : TextFormatWriter.FORMAT;
+            File file = DataFilesStore.newDataFile(epochMs, format, baseDir, serialNumber);
+            file.createNewFile();
+        }
+    }
+
+    private static void assertFindsSameAsListing(String baseDir, Random random) {
+        for (int i = 0; i < 100; i++) {
+            long start = T0 - DAY_MS / 2 + (long) (random.nextDouble() * 4 * DAY_MS);
+            long end = start + random.nextInt(i % 2 == 0 ? DataFilesStore.FILE_INTERVAL_MS * 3 : (int) DAY_MS);
+            for (String serialNumber : Arrays.asList("SN1", "SN2", "SN3")) {
+                for (String format : Arrays.asList(TextFormatWriter.FORMAT, BinaryFormatWriter.FORMAT)) {
+                    assertEquals(list(baseDir, serialNumber, format, start, end),
+                            find(baseDir, serialNumber, format, start, end));
+                }
+            }
+        }
+    }
+
+    private static List<File> find(String baseDir, String serialNumber, String format, long start, long end) {
+        List<File> files = new ArrayList<>();
+        DataFilesStore.findDataFiles(baseDir, serialNumber, format, start, end).forEach(files::add);
+        return files;
+    }
+
+    // files that can have records of the range, found the slow way
+    private static List<File> list(String baseDir, String serialNumber, String format, long start, long end) {
+        long fromEpochMs = (start / DataFilesStore.FILE_INTERVAL_MS) * DataFilesStore.FILE_INTERVAL_MS;
+        long toEpochMs = (end / DataFilesStore.FILE_INTERVAL_MS + 1) * DataFilesStore.FILE_INTERVAL_MS;
+        List<File> files = new ArrayList<>();
+        File[] dayDirs = new File(baseDir, DataFilesStore.DATA_DIR).listFiles(File::isDirectory);
+        for (File dayDir : dayDirs == null ? new File[0] : dayDirs) {
+            File[] dataFiles = new File(dayDir, serialNumber).listFiles(File::isFile);
+            for (File file : dataFiles == null ? new File[0] : dataFiles) {
+                long fileEpochMs = DataFilesStore.parseFileEpochMs(file.getName());
+                if (fileEpochMs != Long.MIN_VALUE && DataFilesStore.getFormat(file.getName()).equals(format) &&
+                        fileEpochMs >= fromEpochMs && fileEpochMs < toEpochMs) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort((a, b) -> Long.compare(DataFilesStore.parseFileEpochMs(a.getName()),
+                DataFilesStore.parseFileEpochMs(b.getName())));
+        return files;
+    }
+
+    private static HashSet<String> toSet(Iterable<String> values) {
+        HashSet<String> set = new HashSet<>();
+        values.forEach(set::add);
+        return set;
+    }
+}
@@ -0,0 +1,120 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * All ways of reading data files, sequential, parallel, cached, columnar and binary, must return the same records
+ * as parsing text lines one by one.
+ */
+public class DataReadersTest {
+    private static final String SN = "SN1";
+    // with a gap without files in the middle
+    private static final long GAP_START = T0 + 3 * DataFilesStore.FILE_INTERVAL_MS + 12_345;
+    private static final long GAP_END = T0 + 5 * DataFilesStore.FILE_INTERVAL_MS;
+    private static final long END = T0 + 7 * DataFilesStore.FILE_INTERVAL_MS;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+    private String textDir;
+    private String binaryDir;
+
+    @Before
+    public void setUp() throws Exception {
+        textDir = dir.newFolder("text").getPath();
+        binaryDir = dir.newFolder("binary").getPath();
+        TestDataFiles.write(textDir, SN, T0, GAP_START, 20, 1);
+        TestDataFiles.write(textDir, SN, GAP_END, END, 20, 2);
+        try (BinaryFormatWriter writer = new BinaryFormatWriter(binaryDir, SN, null)) {
+            TestDataFiles.write(writer, T0, GAP_START, 20, 1);
+        }
+        try (BinaryFormatWriter writer = new BinaryFormatWriter(binaryDir, SN, null)) {
+            TestDataFiles.write(writer, GAP_END, END, 20, 2);
+        }
+    }
+
+    @Test
+    public void readersReturnSameRecordsAsParsedLines() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParsedFilesCache cache = new ParsedFilesCache(64 * 1024 * 1024);
+            DataReader[] readers = {
+                    new TextFormatReader(textDir),
+                    new TextFormatReader(textDir, pool, null),
+                    new TextFormatReader(textDir, null, cache),
+                    new TextFormatReader(textDir, pool, cache),
+                    new BinaryFormatReader(binaryDir),
+            };
+            List<long[]> ranges = new ArrayList<>();
+            ranges.add(new long[]{T0, END});
+            ranges.add(new long[]{T0 - 1000, END + 1000});
+            ranges.add(new long[]{GAP_START - 1000, GAP_END + 1000});
+            ranges.add(new long[]{GAP_START + 1000, GAP_END - 1000});
+            Random random = new Random(3);
+            for (int i = 0; i < 30; i++) {
+                long start = T0 - 1000 + (long) (random.nextDouble() * (END - T0 + 2000));
+                // narrow ones, read via index instead of cache, and wide ones
+                long length = random.nextInt(i % 2 == 0 ? 60_000 : 4 * DataFilesStore.FILE_INTERVAL_MS);
+                ranges.add(new long[]{start, start + length});
+            }
+            for (long[] range : ranges) {
+                List<DataRecord> expected = TestDataFiles.readAll(textDir, SN, range[0], range[1]);
+                for (DataReader reader : readers) {
+                    String message = reader.getClass().getSimpleName() + " [" + range[0] + ", " + range[1] + ")";
+                    TestDataFiles.assertSameRecords(message, expected,
+                            TestDataFiles.scan(reader, SN, range[0], range[1]));
+                    TestDataFiles.assertSameRecords(message, expected,
+                            columnRecords(reader.readColumns(SN, range[0], range[1])));
+                }
+            }
+            assertTrue(cache.getStats().hits > 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void readersStopWhenConsumerAsks() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            DataReader[] readers = {
+                    new TextFormatReader(textDir),
+                    new TextFormatReader(textDir, pool, null),
+                    new TextFormatReader(textDir, pool, new ParsedFilesCache(64 * 1024 * 1024)),
+                    new BinaryFormatReader(binaryDir),
+            };
+            List<DataRecord> all = TestDataFiles.readAll(textDir, SN, T0, END);
+            for (int limit : new int[]{1, 1000, all.size() / 2, all.size() - 1}) {
+                for (DataReader reader : readers) {
+                    List<DataRecord> read = new ArrayList<>();
+                    reader.scan(SN, T0, END, r -> {
+                        read.add(r);
+                        return read.size() < limit;
+                    });
+                    TestDataFiles.assertSameRecords(reader.getClass().getSimpleName() + " " + limit,
+                            all.subList(0, limit), read);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<DataRecord> columnRecords(RecordColumns columns) {
+        List<DataRecord> records = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            records.add(columns.get(i));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,150 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * Ranges read partly from data files and partly from {@link HotRecordsCache} must have the same records as read from
+ * files only, and the cache must keep all records after its covered time within its budget.
+ */
+public class HotRecordsCacheTest {
+    private static final String SN = "SN1";
+    private static final long MAX_BYTES = 2 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void splitRangesReadSameAsFiles() throws Exception {
+        String baseDir = dir.getRoot().getPath();
+        long end = T0 + 2 * DataFilesStore.FILE_INTERVAL_MS;
+        HotRecordsCache cache = new HotRecordsCache(MAX_BYTES);
+        LiveRecords liveRecords = new LiveRecords();
+        liveRecords.addListener(cache);
+        try (TextFormatWriter writer = new TextFormatWriter(baseDir, SN, liveRecords,
+                new WriteFlushPolicy(1000, 64 * 1024))) {
+            TestDataFiles.write(writer, T0, end, 20, 1);
+        }
+        long coveredFromEpochMs = cache.coveredFromEpochMs(SN);
+        // older records were evicted
+        assertTrue(coveredFromEpochMs > T0 + 60_000 && coveredFromEpochMs < end - 60_000);
+        assertTrue(cache.getBytes() <= MAX_BYTES);
+
+        DataReader reader = new HotTailDataReader(new TextFormatReader(baseDir), cache);
+        List<long[]> ranges = new ArrayList<>();
+        ranges.add(new long[]{T0, end});
+        ranges.add(new long[]{coveredFromEpochMs - 1, coveredFromEpochMs + 1});
+        ranges.add(new long[]{coveredFromEpochMs, end + 1000});
+        ranges.add(new long[]{T0 - 1000, coveredFromEpochMs});
+        Random random = new Random(4);
+        for (int i = 0; i < 40; i++) {
+            long start = T0 + (long) (random.nextDouble() * (end - T0));
+            ranges.add(new long[]{start, start + random.nextInt(i % 2 == 0 ? 10_000 : 600_000)});
+        }
+        for (long[] range : ranges) {
+            TestDataFiles.assertSameRecords("[" + range[0] + ", " + range[1] + ")",
+                    TestDataFiles.readAll(baseDir, SN, range[0], range[1]),
+                    TestDataFiles.scan(reader, SN, range[0], range[1]));
+        }
+        // stopping in the files part and in the cache part
+        List<DataRecord> all = TestDataFiles.readAll(baseDir, SN, T0, end);
+        for (int limit : new int[]{1, all.size() - 1}) {
+            List<DataRecord> read = new ArrayList<>();
+            reader.scan(SN, T0, end, r -> {
+                read.add(r);
+                return read.size() < limit;
+            });
+            TestDataFiles.assertSameRecords(all.subList(0, limit), read);
+        }
+        assertEquals(coveredFromEpochMs, cache.coveredFromEpochMs(SN));
+    }
+
+    @Test
+    public void connectionsShareBudget() throws Exception {
+        HotRecordsCache cache = new HotRecordsCache(MAX_BYTES);
+        String[] serialNumbers = {"SN1", "SN2", "SN3", "SN4"};
+        List<List<DataRecord>> captured = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int i = 0; i < serialNumbers.length; i++) {
+            String serialNumber = serialNumbers[i];
+            // some capture more than others
+            int count = 20_000 * (i + 1);
+            List<DataRecord> records = new ArrayList<>();
+            captured.add(records);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int j = 0; j < count; j++) {
+                        DataRecord r = new DataRecord();
+                        // a few per millisecond
+                        r.epochMs = T0 + j / 3;
+                        r.rawText = serialNumber + " " + j;
+                        records.add(r);
+                        cache.recordCaptured(serialNumber, r);
+                    }
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+        // approximate, as others can add while one evicts
+        assertTrue(cache.getBytes() <= MAX_BYTES + 4 * 1024);
+        int minCached = Integer.MAX_VALUE;
+        int maxCached = 0;
+        for (int i = 0; i < serialNumbers.length; i++) {
+            List<DataRecord> records = captured.get(i);
+            long coveredFromEpochMs = cache.coveredFromEpochMs(serialNumbers[i]);
+            DataRecord[] cached = cache.read(serialNumbers[i], coveredFromEpochMs, Long.MAX_VALUE);
+            assertNotNull(cached);
+            // all after the covered time, in order
+            int first = 0;
+            while (records.get(first).epochMs < coveredFromEpochMs) {
+                first++;
+            }
+            assertEquals(records.subList(first, records.size()), Arrays.asList(cached));
+            assertNull(cache.read(serialNumbers[i], coveredFromEpochMs - 1, Long.MAX_VALUE));
+            minCached = Math.min(minCached, cached.length);
+            maxCached = Math.max(maxCached, cached.length);
+        }
+        // records are of about the same size, so shares are about the same number of records
+        assertTrue(minCached + " " + maxCached, minCached > maxCached / 2);
+    }
+
+    @Test
+    public void clockGoingBackStartsOver() {
+        HotRecordsCache cache = new HotRecordsCache(MAX_BYTES);
+        for (int i = 0; i < 100; i++) {
+            cache.recordCaptured(SN, rawRecord(T0 + i));
+        }
+        assertEquals(T0 + 1, cache.coveredFromEpochMs(SN));
+        assertEquals(99, cache.read(SN, T0 + 1, Long.MAX_VALUE).length);
+        long bytes = cache.getBytes();
+
+        cache.recordCaptured(SN, rawRecord(T0 + 50));
+        assertEquals(T0 + 51, cache.coveredFromEpochMs(SN));
+        assertEquals(0, cache.read(SN, T0 + 51, Long.MAX_VALUE).length);
+        assertTrue(cache.getBytes() < bytes / 50);
+    }
+
+    private static DataRecord rawRecord(long epochMs) {
+        DataRecord r = new DataRecord();
+        r.epochMs = epochMs;
+        r.rawText = "line";
+        return r;
+    }
+}
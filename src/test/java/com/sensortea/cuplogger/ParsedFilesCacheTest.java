@@ -0,0 +1,146 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ParsedFilesCache} must parse a file once for concurrent loads of it, and keep the least recently used files
+ * within its budget.
+ */
+public class ParsedFilesCacheTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void concurrentLoadsParseOnce() throws Exception {
+        ParsedFilesCache cache = new ParsedFilesCache(1024 * 1024);
+        File file = newFile("a");
+        int threads = 8;
+        CountDownLatch loading = new CountDownLatch(threads);
+        AtomicInteger parsed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<RecordColumns>> loads = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                loads.add(executor.submit(() -> {
+                    loading.countDown();
+                    return cache.load(file, f -> {
+                        parsed.incrementAndGet();
+                        try {
+                            // until all others wait for this load
+                            loading.await();
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return columns(100);
+                    });
+                }));
+            }
+            RecordColumns first = loads.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<RecordColumns> load : loads) {
+                assertSame(first, load.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, parsed.get());
+        assertNotNull(cache.get(file));
+        // loaded already
+        assertSame(cache.get(file), cache.load(file, f -> {
+            throw new AssertionError("parsed again");
+        }));
+    }
+
+    @Test
+    public void failedLoadIsNotCached() throws Exception {
+        ParsedFilesCache cache = new ParsedFilesCache(1024 * 1024);
+        File file = newFile("a");
+        try {
+            cache.load(file, f -> {
+                throw new IllegalStateException("can't read");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("can't read", e.getMessage());
+        }
+        assertNull(cache.get(file));
+        assertEquals(100, cache.load(file, f -> columns(100)).size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        RecordColumns trimmed = columns(100);
+        // as kept in the cache
+        trimmed.trim();
+        long entryBytes = trimmed.estimateBytes();
+        ParsedFilesCache cache = new ParsedFilesCache(entryBytes * 3 + entryBytes / 2);
+        File a = newFile("a");
+        File b = newFile("b");
+        File c = newFile("c");
+        File d = newFile("d");
+        cache.put(a, columns(100));
+        cache.put(b, columns(100));
+        cache.put(c, columns(100));
+        assertNotNull(cache.get(a));
+        cache.put(d, columns(100));
+
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(c));
+        assertNotNull(cache.get(d));
+        CacheStats stats = cache.getStats();
+        assertEquals(3, stats.entries);
+        assertEquals(1, stats.evictions);
+        assertEquals(3 * entryBytes, stats.bytes);
+        assertEquals(4, stats.hits);
+        assertEquals(1, stats.misses);
+
+        // larger than all the budget, not kept and nothing evicted for it
+        File large = newFile("large");
+        cache.put(large, columns(1000));
+        assertNull(cache.get(large));
+        assertEquals(3, cache.getStats().entries);
+    }
+
+    @Test
+    public void changedFileIsNotServedFromCache() throws Exception {
+        ParsedFilesCache cache = new ParsedFilesCache(1024 * 1024);
+        File file = newFile("a");
+        cache.put(file, columns(100));
+        assertNotNull(cache.get(file));
+        Files.write(file.toPath(), "changed".getBytes());
+        assertNull(cache.get(file));
+    }
+
+    private File newFile(String content) throws Exception {
+        File file = dir.newFile();
+        Files.write(file.toPath(), content.getBytes());
+        return file;
+    }
+
+    private static RecordColumns columns(int count) {
+        RecordColumns columns = new RecordColumns();
+        for (int i = 0; i < count; i++) {
+            DataRecord r = new DataRecord();
+            r.epochMs = TestDataFiles.T0 + i;
+            r.rawText = "line";
+            columns.add(r);
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,174 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * {@link ReadingsDownsampler} must give min/avg/max of valid values of each reading per time bucket, and no more
+ * buckets than asked for.
+ */
+public class ReadingsDownsamplerTest {
+    private static final String[] IDS = {"r0", "r2", "missing"};
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void bucketsCoverRangeWithinMaxPoints() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long rangeMs = 1 + random.nextInt(i % 2 == 0 ? 1000 : 100_000_000);
+            int maxPoints = 1 + random.nextInt(2000);
+            ReadingsDownsampler downsampler = new ReadingsDownsampler(T0, T0 + rangeMs, IDS, maxPoints);
+            long bucketMs = downsampler.getBucketMs();
+            assertTrue(bucketMs >= 1);
+            long buckets = (rangeMs + bucketMs - 1) / bucketMs;
+            assertTrue(rangeMs + " " + maxPoints, buckets <= maxPoints);
+            // and not much coarser than needed
+            assertTrue(rangeMs + " " + maxPoints, bucketMs == 1 || (bucketMs - 1) * maxPoints < rangeMs);
+        }
+    }
+
+    @Test
+    public void aggregatesValuesPerBucket() throws Exception {
+        String baseDir = dir.getRoot().getPath();
+        long end = T0 + 3 * DataFilesStore.FILE_INTERVAL_MS;
+        TestDataFiles.write(baseDir, "SN1", T0, end, 20, 1);
+        List<DataRecord> records = TestDataFiles.readAll(baseDir, "SN1", T0, end);
+        long start = T0 + 12_345;
+        end -= 67_890;
+        for (int maxPoints : new int[]{1, 7, 500, 100_000}) {
+            ReadingsDownsampler downsampler = new ReadingsDownsampler(start, end, IDS, maxPoints);
+            records.forEach(downsampler::acceptAndContinue);
+            assertEquals(format(expectedPoints(records, start, end, downsampler.getBucketMs())),
+                    format(downsampler.getPoints()));
+        }
+    }
+
+    @Test
+    public void ignoresWhatCantBePlotted() {
+        ReadingsDownsampler downsampler = new ReadingsDownsampler(T0, T0 + 10_000, IDS, 10);
+        // before and after the range
+        downsampler.acceptAndContinue(record(T0 - 1, new String[]{"r0"}, 1));
+        downsampler.acceptAndContinue(record(T0 + 10_000, new String[]{"r0"}, 1));
+        // not parsed
+        DataRecord raw = new DataRecord();
+        raw.epochMs = T0;
+        raw.rawText = "r0:1";
+        downsampler.acceptAndContinue(raw);
+        // not plotted reading
+        downsampler.acceptAndContinue(record(T0 + 1000, new String[]{"r1"}, 1));
+        // invalid values
+        downsampler.acceptAndContinue(record(T0 + 2000, new String[]{"r0", "r2"}, Double.NaN,
+                Double.POSITIVE_INFINITY));
+        assertEquals(0, downsampler.getPoints().size());
+
+        downsampler.acceptAndContinue(record(T0 + 2500, new String[]{"r2", "r0"}, -3, Double.NEGATIVE_INFINITY));
+        downsampler.acceptAndContinue(record(T0 + 2999, new String[]{"r2"}, 5));
+        assertEquals("[[" + (T0 + 2000) + ",null,[-3.0,1.0,5.0],null]]",
+                TestDataFiles.toJson(downsampler.getPoints()));
+    }
+
+    @Test
+    public void aggregatesAreSameAsTheirValues() {
+        Random random = new Random(2);
+        ReadingsDownsampler fromValues = new ReadingsDownsampler(T0, T0 + 60_000, IDS, 6);
+        ReadingsDownsampler fromAggregates = new ReadingsDownsampler(T0, T0 + 60_000, IDS, 6);
+        // aggregated per second
+        for (long second = T0 - 1000; second < T0 + 61_000; second += 1000) {
+            long count = 0;
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            double sum = 0;
+            for (int i = random.nextInt(3); i > 0; i--) {
+                // whole numbers, so that sums are exact
+                double value = random.nextInt(1000) - 500;
+                fromValues.acceptAndContinue(record(second + random.nextInt(1000), new String[]{"r0"}, value));
+                count++;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+            fromAggregates.addAggregate(second, "r0", count, min, max, sum);
+            fromAggregates.addAggregate(second, "r1", 1, 0, 0, 0);
+        }
+        assertEquals(TestDataFiles.toJson(fromValues.getPoints()), TestDataFiles.toJson(fromAggregates.getPoints()));
+    }
+
+    // the simplest way: bucket start -> reading -> values
+    private static List<Object[]> expectedPoints(List<DataRecord> records, long start, long end, long bucketMs) {
+        TreeMap<Long, Object[]> points = new TreeMap<>();
+        TreeMap<Long, long[]> counts = new TreeMap<>();
+        for (DataRecord r : records) {
+            if (r.parsedEvent == null || r.epochMs < start || r.epochMs >= end) {
+                continue;
+            }
+            long bucketStart = start + (r.epochMs - start) / bucketMs * bucketMs;
+            for (int i = 0; i < r.parsedEvent.readingIds.length; i++) {
+                double value = r.parsedEvent.readingValues[i];
+                int idx = Arrays.asList(IDS).indexOf(r.parsedEvent.readingIds[i]);
+                if (idx < 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+                    continue;
+                }
+                Object[] point = points.computeIfAbsent(bucketStart, k -> {
+                    Object[] p = new Object[IDS.length + 1];
+                    p[0] = k;
+                    return p;
+                });
+                long[] count = counts.computeIfAbsent(bucketStart, k -> new long[IDS.length]);
+                double[] minAvgMax = (double[]) point[idx + 1];
+                if (minAvgMax == null) {
+                    point[idx + 1] = new double[]{value, value, value};
+                } else {
+                    // sum for now
+                    point[idx + 1] = new double[]{Math.min(minAvgMax[0], value), minAvgMax[1] + value,
+                            Math.max(minAvgMax[2], value)};
+                }
+                count[idx]++;
+            }
+        }
+        for (Object[] point : points.values()) {
+            long[] count = counts.get((Long) point[0]);
+            for (int i = 0; i < IDS.length; i++) {
+                if (point[i + 1] != null) {
+                    ((double[]) point[i + 1])[1] /= count[i];
+                }
+            }
+        }
+        return new ArrayList<>(points.values());
+    }
+
+    // averages summed in other order can differ in the last bits, and in the sign of 0
+    private static String format(List<Object[]> points) {
+        StringBuilder s = new StringBuilder();
+        for (Object[] point : points) {
+            s.append(point[0]);
+            for (int i = 1; i < point.length; i++) {
+                double[] minAvgMax = (double[]) point[i];
+                s.append(minAvgMax == null ? " -" : String.format(" %s/%.9f/%s", minAvgMax[0], minAvgMax[1] + 0.0,
+                        minAvgMax[2]));
+            }
+            s.append('\n');
+        }
+        return s.toString();
+    }
+
+    private static DataRecord record(long epochMs, String[] readingIds, double... values) {
+        DataRecord r = new DataRecord();
+        r.epochMs = epochMs;
+        r.parsedEvent = new DataRecord.Event();
+        r.parsedEvent.readingIds = readingIds;
+        r.parsedEvent.readingValues = values;
+        return r;
+    }
+}
@@ -0,0 +1,106 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.List;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * Downsampling from {@link ReadingsRollups} must give the same as downsampling raw data, up to rounding of sums.
+ */
+public class ReadingsRollupsTest {
+    private static final String SN = "SN1";
+    private static final String[] READING_IDS = {"r0", "r2", "missing"};
+    private static final long END = T0 + 3 * DataFilesStore.FILE_INTERVAL_MS;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+    private String baseDir;
+    private TextFormatReader reader;
+    private ReadingsRollups rollups;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = dir.getRoot().getPath();
+        TestDataFiles.write(baseDir, SN, T0, END, 20, 1);
+        reader = new TextFormatReader(baseDir);
+        rollups = new ReadingsRollups(baseDir, reader);
+        for (File dataFile : reader.findDataFiles(SN, T0, END)) {
+            rollups.rollup(dataFile);
+        }
+    }
+
+    @Test
+    public void downsamplesFromEachTierAsRawData() {
+        // buckets of 1s, 1min and 1h, and larger than that
+        for (int maxPoints : new int[]{1800, 30, 1}) {
+            assertEquals(downsampleRaw(T0, END, maxPoints), downsampleRollups(T0, END, maxPoints));
+        }
+        // part of the data, from bucket to bucket
+        assertEquals(downsampleRaw(T0 + 60_000, END - 120_000, 27),
+                downsampleRollups(T0 + 60_000, END - 120_000, 27));
+    }
+
+    @Test
+    public void appliesOnlyWithBucketsOfTierSize() {
+        assertTrue(rollups.appliesTo(new ReadingsDownsampler(T0, END, READING_IDS, 1000)));
+        assertFalse(rollups.appliesTo(new ReadingsDownsampler(T0, T0 + 10_000, READING_IDS, 1000)));
+    }
+
+    @Test
+    public void brokenRollupIsNotCountedTwice() throws Exception {
+        for (File dataFile : reader.findDataFiles(SN, T0, END)) {
+            File rollupFile = DataFilesStore.siblingFile(dataFile, "r1m");
+            try (Writer writer = new FileWriter(rollupFile, true)) {
+                writer.write("broken line\n");
+            }
+            // only the first file, the rest are read from rollups
+            break;
+        }
+        assertEquals(downsampleRaw(T0, END, 30), downsampleRollups(T0, END, 30));
+    }
+
+    @Test
+    public void missingRollupFallsBackToRawData() {
+        for (File dataFile : reader.findDataFiles(SN, T0, END)) {
+            assertTrue(DataFilesStore.siblingFile(dataFile, "r1m").delete());
+            break;
+        }
+        assertEquals(downsampleRaw(T0, END, 30), downsampleRollups(T0, END, 30));
+    }
+
+    private String downsampleRaw(long startEpochMs, long endEpochMs, int maxPoints) {
+        ReadingsDownsampler downsampler = new ReadingsDownsampler(startEpochMs, endEpochMs, READING_IDS, maxPoints);
+        reader.scan(SN, startEpochMs, endEpochMs, downsampler);
+        return format(downsampler.getPoints());
+    }
+
+    private String downsampleRollups(long startEpochMs, long endEpochMs, int maxPoints) {
+        ReadingsDownsampler downsampler = new ReadingsDownsampler(startEpochMs, endEpochMs, READING_IDS, maxPoints);
+        rollups.downsample(SN, startEpochMs, endEpochMs, downsampler);
+        return format(downsampler.getPoints());
+    }
+
+    // averages are rounded, as sums are added up in different order
+    private static String format(List<Object[]> points) {
+        StringBuilder sb = new StringBuilder();
+        for (Object[] point : points) {
+            sb.append(point[0]);
+            for (int i = 1; i < point.length; i++) {
+                double[] minAvgMax = (double[]) point[i];
+                sb.append(minAvgMax == null ? " -" :
+                        String.format(" %s/%.9f/%s", minAvgMax[0], minAvgMax[1], minAvgMax[2]));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
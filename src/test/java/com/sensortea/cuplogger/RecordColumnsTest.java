@@ -0,0 +1,200 @@
+package com.sensortea.cuplogger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * Records encoded by {@link RecordColumns} in the "columnar" and "columnar-binary" forms must decode, the way the UI
+ * does it, to the same records.
+ */
+public class RecordColumnsTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void encodedRecordsDecodeToSame() throws Exception {
+        List<DataRecord> records = records();
+        RecordColumns columns = new RecordColumns();
+        records.forEach(columns::add);
+
+        StringWriter json = new StringWriter();
+        columns.writeJson(new JsonWriter(json), true);
+        // JSON has no Infinity, so it's sent as null, same as NaN
+        TestDataFiles.assertSameRecords(withInfinityAsNaN(records),
+                decode(JsonParser.parseString(json.toString()).getAsJsonObject(), null));
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        columns.writeBinary(binary);
+        TestDataFiles.assertSameRecords(records, decodeBinary(binary.toByteArray()));
+    }
+
+    @Test
+    public void binaryValuesAreAligned() throws Exception {
+        // header of every length mod 8
+        for (int i = 0; i < 8; i++) {
+            RecordColumns columns = new RecordColumns();
+            DataRecord r = parsedRecord(T0, new String(new char[i]).replace('\0', 'x'), 1.5);
+            columns.add(r);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            columns.writeBinary(out);
+            byte[] bytes = out.toByteArray();
+            int headerLength = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            assertEquals(0, (4 + headerLength) % 8);
+            assertEquals(4 + headerLength + 8, bytes.length);
+            TestDataFiles.assertSameRecords(Collections.singletonList(r), decodeBinary(bytes));
+        }
+    }
+
+    @Test
+    public void copiedRecordsAreSame() throws Exception {
+        List<DataRecord> records = records();
+        RecordColumns columns = new RecordColumns();
+        records.forEach(columns::add);
+        // other dictionary with codes in different order
+        RecordColumns copy = new RecordColumns();
+        copy.add(parsedRecord(T0 - 1, "first", 0));
+        long start = records.get(records.size() / 3).epochMs;
+        long end = records.get(records.size() * 2 / 3).epochMs;
+        copy.addAll(columns, start, end);
+        copy.trim();
+
+        List<DataRecord> expected = new ArrayList<>();
+        expected.add(parsedRecord(T0 - 1, "first", 0));
+        columns.scan(start, end, expected::add);
+        List<DataRecord> copied = new ArrayList<>();
+        for (RecordColumns.Cursor cursor = copy.cursor(); cursor.next(); ) {
+            copied.add(cursor.toRecord());
+        }
+        TestDataFiles.assertSameRecords(expected, copied);
+    }
+
+    private List<DataRecord> records() throws Exception {
+        String baseDir = dir.getRoot().getPath();
+        TestDataFiles.write(baseDir, "SN1", T0, T0 + 60_000, 20, 1);
+        List<DataRecord> records = TestDataFiles.readAll(baseDir, "SN1", T0, T0 + 60_000);
+        long epochMs = T0 + 60_000;
+        DataRecord raw = new DataRecord();
+        raw.epochMs = epochMs++;
+        raw.rawText = "not parsed, \"quoted\" °C";
+        records.add(raw);
+        records.add(parsedRecord(epochMs++, "no readings"));
+        records.add(parsedRecord(epochMs++, "", Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY));
+        // clock went back
+        records.add(parsedRecord(epochMs - 5000, "earlier", -0.0, Double.MIN_VALUE, Double.MAX_VALUE));
+        return records;
+    }
+
+    private static DataRecord parsedRecord(long epochMs, String logMessage, double... values) {
+        DataRecord r = new DataRecord();
+        r.epochMs = epochMs;
+        r.parsedEvent = new DataRecord.Event();
+        r.parsedEvent.programId = "p";
+        r.parsedEvent.programVersion = "1";
+        r.parsedEvent.deviceConfig = "c" + values.length;
+        r.parsedEvent.timeDelta = -values.length;
+        r.parsedEvent.logMessage = logMessage;
+        r.parsedEvent.readingIds = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            r.parsedEvent.readingIds[i] = "v" + i;
+        }
+        r.parsedEvent.readingValues = values;
+        return r;
+    }
+
+    private static List<DataRecord> withInfinityAsNaN(List<DataRecord> records) {
+        List<DataRecord> result = new ArrayList<>();
+        for (DataRecord r : records) {
+            if (r.parsedEvent != null) {
+                DataRecord copy = parsedRecord(r.epochMs, r.parsedEvent.logMessage,
+                        r.parsedEvent.readingValues.clone());
+                copy.parsedEvent.programId = r.parsedEvent.programId;
+                copy.parsedEvent.programVersion = r.parsedEvent.programVersion;
+                copy.parsedEvent.deviceConfig = r.parsedEvent.deviceConfig;
+                copy.parsedEvent.timeDelta = r.parsedEvent.timeDelta;
+                copy.parsedEvent.readingIds = r.parsedEvent.readingIds;
+                double[] values = copy.parsedEvent.readingValues;
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Double.isInfinite(values[i]) ? Double.NaN : values[i];
+                }
+                r = copy;
+            }
+            result.add(r);
+        }
+        return result;
+    }
+
+    // same as decodeColumnarBinary() of the UI
+    private static List<DataRecord> decodeBinary(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int headerLength = buffer.getInt();
+        JsonObject header = JsonParser.parseString(new String(bytes, 4, headerLength, StandardCharsets.UTF_8))
+                .getAsJsonObject();
+        buffer.position(4 + headerLength);
+        double[] values = new double[buffer.remaining() / 8];
+        buffer.asDoubleBuffer().get(values);
+        assertEquals(0, buffer.remaining() % 8);
+        return decode(header, values);
+    }
+
+    // same as decodeColumnar() of the UI
+    private static List<DataRecord> decode(JsonObject columns, double[] readingValues) {
+        int count = columns.get("count").getAsInt();
+        JsonArray dictionary = columns.getAsJsonArray("dictionary");
+        JsonArray values = columns.getAsJsonArray("readingValues");
+        assertTrue(readingValues == null ^ values == null);
+        List<DataRecord> records = new ArrayList<>();
+        long epochMs = 0;
+        int readingIdx = 0;
+        for (int i = 0; i < count; i++) {
+            DataRecord r = new DataRecord();
+            epochMs += columns.getAsJsonArray("epochMsDeltas").get(i).getAsLong();
+            r.epochMs = epochMs;
+            records.add(r);
+            JsonElement text = columns.getAsJsonArray("texts").get(i);
+            if (columns.getAsJsonArray("programIds").get(i).getAsInt() == RecordColumns.NO_CODE) {
+                r.rawText = text.getAsString();
+                continue;
+            }
+            DataRecord.Event e = new DataRecord.Event();
+            e.programId = dictionary.get(columns.getAsJsonArray("programIds").get(i).getAsInt()).getAsString();
+            e.programVersion = dictionary.get(columns.getAsJsonArray("programVersions").get(i).getAsInt())
+                    .getAsString();
+            e.deviceConfig = dictionary.get(columns.getAsJsonArray("deviceConfigs").get(i).getAsInt()).getAsString();
+            e.timeDelta = columns.getAsJsonArray("timeDeltas").get(i).getAsLong();
+            e.logMessage = text.isJsonNull() ? null : text.getAsString();
+            int readingsCount = columns.getAsJsonArray("readingsCounts").get(i).getAsInt();
+            e.readingIds = new String[readingsCount];
+            e.readingValues = new double[readingsCount];
+            for (int j = 0; j < readingsCount; j++, readingIdx++) {
+                e.readingIds[j] = dictionary.get(columns.getAsJsonArray("readingIds").get(readingIdx).getAsInt())
+                        .getAsString();
+                if (readingValues != null) {
+                    e.readingValues[j] = readingValues[readingIdx];
+                } else {
+                    JsonElement value = values.get(readingIdx);
+                    e.readingValues[j] = value.isJsonNull() ? Double.NaN : value.getAsDouble();
+                }
+            }
+            r.parsedEvent = e;
+        }
+        return records;
+    }
+}
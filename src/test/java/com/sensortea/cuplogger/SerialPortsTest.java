@@ -0,0 +1,159 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Config changes, incl. edits of serialConnections.json by hand, must show up in {@link SerialPorts#getListing()},
+ * and capture of ports that fail must be restarted with growing delays.
+ */
+public class SerialPortsTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void configCallsBackOnHandEdit() throws Exception {
+        SerialConnectionsConfig config = new SerialConnectionsConfig(dir.getRoot().getPath());
+        AtomicInteger changes = new AtomicInteger();
+        config.addChangeCallback(configured -> changes.incrementAndGet());
+        config.update(Collections.singletonMap("SN1", connection("SN1", "first")));
+        assertEquals(1, changes.get());
+        // served from memory
+        assertEquals("first", config.list().get("SN1").name);
+        assertEquals(1, changes.get());
+
+        editByHand("\"first\"", "\"edited by hand\"");
+        Map<String, SerialConnectionInfo> listed = config.list();
+        assertEquals("edited by hand", listed.get("SN1").name);
+        assertEquals(2, changes.get());
+        // not changed since
+        config.list();
+        assertEquals(2, changes.get());
+    }
+
+    @Test
+    public void listingVersionGoesUpOnHandEdit() throws Exception {
+        SerialConnectionsConfig config = new SerialConnectionsConfig(dir.getRoot().getPath());
+        config.update(Collections.singletonMap("SN1", connection("SN1", "first")));
+        SerialPorts ports = new SerialPorts(config, dir.getRoot().getPath(), TextFormatWriter.FORMAT,
+                new LiveRecords(), ArrayList::new);
+        SerialConnectionsListing listing = ports.getListing();
+        assertEquals("first", first(listing).name);
+        // nothing changes
+        assertEquals(listing.version, ports.awaitListingChange(listing.version, 100).version);
+
+        config.setName("SN1", "renamed");
+        SerialConnectionsListing renamed = ports.awaitListingChange(listing.version, 5000);
+        assertTrue(renamed.version > listing.version);
+        assertEquals("renamed", first(renamed).name);
+
+        editByHand("\"renamed\"", "\"edited by hand\"");
+        // noticed by the periodic sync reading the config
+        SerialConnectionsListing edited = ports.awaitListingChange(renamed.version, 10_000);
+        assertTrue(edited.version > renamed.version);
+        assertEquals("edited by hand", first(edited).name);
+    }
+
+    @Test
+    public void failingPortIsRestartedWithGrowingDelays() throws Exception {
+        SerialConnectionsConfig config = new SerialConnectionsConfig(dir.getRoot().getPath());
+        SerialConnectionInfo connection = connection("SN1", "failing");
+        connection.dataCaptureOn = true;
+        config.update(Collections.singletonMap("SN1", connection));
+        List<Long> opens = Collections.synchronizedList(new ArrayList<>());
+        new SerialPorts(config, dir.getRoot().getPath(), TextFormatWriter.FORMAT, new LiveRecords(),
+                () -> Collections.singletonList(new FailingPort("SN1", opens)));
+        // at about 0, 1s and 3s
+        Thread.sleep(3500);
+        assertEquals(3, opens.size());
+        long firstDelayMs = opens.get(1) - opens.get(0);
+        long secondDelayMs = opens.get(2) - opens.get(1);
+        assertTrue(firstDelayMs + "", firstDelayMs >= 1000 && firstDelayMs < 1500);
+        // when due, not on the next periodic sync
+        assertTrue(secondDelayMs + "", secondDelayMs >= 2000 && secondDelayMs < 2500);
+
+        // not restarted once capture is off
+        connection.dataCaptureOn = false;
+        config.update(Collections.singletonMap("SN1", connection));
+        Thread.sleep(4500);
+        assertEquals(3, opens.size());
+    }
+
+    private static class FailingPort extends PortDiscovery.Port {
+        final List<Long> opens;
+
+        FailingPort(String serialNumber, List<Long> opens) {
+            super(serialNumber);
+            this.opens = opens;
+        }
+
+        @Override
+        CapturePort newCapturePort() {
+            return new CapturePort() {
+                @Override
+                public boolean open(int baudRate, boolean blockingReads, int readTimeoutMs) {
+                    opens.add(System.currentTimeMillis());
+                    return false;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return false;
+                }
+
+                @Override
+                public int read(byte[] buffer, int length) {
+                    return -1;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        void describe(SerialConnectionInfo info) {
+        }
+
+        @Override
+        String getLocation() {
+            return "nowhere";
+        }
+    }
+
+    private static SerialConnectionInfo connection(String serialNumber, String name) {
+        SerialConnectionInfo info = new SerialConnectionInfo();
+        info.serialNumber = serialNumber;
+        info.name = name;
+        info.baudRate = 9600;
+        return info;
+    }
+
+    private static SerialConnectionInfo first(SerialConnectionsListing listing) {
+        List<SerialConnectionInfo> connections = new ArrayList<>();
+        listing.connections.forEach(connections::add);
+        assertEquals(1, connections.size());
+        return connections.get(0);
+    }
+
+    // changes length of the file, so that it's noticed even if modification time stays the same
+    private void editByHand(String from, String to) throws Exception {
+        File file = new File(dir.getRoot(), "serialConnections.json");
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.contains(from));
+        Files.write(file.toPath(), json.replace(from, to).getBytes(StandardCharsets.UTF_8));
+    }
+}
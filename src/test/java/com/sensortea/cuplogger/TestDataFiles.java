@@ -0,0 +1,98 @@
+package com.sensortea.cuplogger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes data files with lines of {@link SimulatedDevice}, and reads them back the simplest way, with
+ * {@link TextFormatReader#parseEvent(String)}, for comparing with what readers return.
+ */
+final class TestDataFiles {
+    // start of a file interval
+    static final long T0 = 1699999800000L;
+    private static final Gson GSON = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+    private TestDataFiles() {
+    }
+
+    /**
+     * @return number of lines written
+     */
+    static int write(String baseDir, String serialNumber, long startEpochMs, long endEpochMs, int linesPerSecond,
+                     long seed) throws IOException {
+        try (TextFormatWriter writer = new TextFormatWriter(baseDir, serialNumber, null,
+                new WriteFlushPolicy(1000, 64 * 1024))) {
+            return write(writer, startEpochMs, endEpochMs, linesPerSecond, seed);
+        }
+    }
+
+    /**
+     * Writes lines as if received at the given rate, one line per write. Same seed gives same lines.
+     *
+     * @return number of lines written
+     */
+    static int write(DataWriter writer, long startEpochMs, long endEpochMs, int linesPerSecond, long seed)
+            throws IOException {
+        SimulatedDevice device = new SimulatedDevice(seed, 3, 0.1, 0.01);
+        int count = 0;
+        long intervalNanos = 1_000_000_000L / linesPerSecond;
+        for (long nanos = 0; startEpochMs + nanos / 1_000_000 < endEpochMs; nanos += intervalNanos) {
+            byte[] line = device.nextLineBytes();
+            writer.write(line, line.length, startEpochMs + nanos / 1_000_000);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return records of all data files of the serial number within the range, as parsed by parseEvent
+     */
+    static List<DataRecord> readAll(String baseDir, String serialNumber, long startEpochMs, long endEpochMs)
+            throws IOException {
+        List<DataRecord> records = new ArrayList<>();
+        for (File file : DataFilesStore.findDataFiles(baseDir, serialNumber, TextFormatWriter.FORMAT,
+                startEpochMs, endEpochMs)) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    DataRecord r = TextFormatReader.parseEvent(line);
+                    if (r != null && r.epochMs >= startEpochMs && r.epochMs < endEpochMs) {
+                        records.add(r);
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
+    static List<DataRecord> scan(DataReader reader, String serialNumber, long startEpochMs, long endEpochMs) {
+        List<DataRecord> records = new ArrayList<>();
+        reader.scan(serialNumber, startEpochMs, endEpochMs, records::add);
+        return records;
+    }
+
+    static String toJson(Object o) {
+        return GSON.toJson(o);
+    }
+
+    static void assertSameRecords(List<DataRecord> expected, List<DataRecord> actual) {
+        assertSameRecords("", expected, actual);
+    }
+
+    static void assertSameRecords(String message, List<DataRecord> expected, List<DataRecord> actual) {
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message + " record " + i, toJson(expected.get(i)), toJson(actual.get(i)));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.sensortea.cuplogger.TestDataFiles.T0;
+import static org.junit.Assert.*;
+
+/**
+ * Reading part of a text data file via its {@link TextFormatIndex} must give the same records as scanning all of it.
+ */
+public class TextFormatIndexTest {
+    private static final String SN = "SN1";
+    private static final long END = T0 + 2 * DataFilesStore.FILE_INTERVAL_MS;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+    private String baseDir;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = dir.getRoot().getPath();
+        TestDataFiles.write(baseDir, SN, T0, END, 30, 1);
+    }
+
+    @Test
+    public void seekReadsSameAsFullScan() throws Exception {
+        List<long[]> ranges = randomRanges();
+        List<List<DataRecord>> viaIndex = new ArrayList<>();
+        for (long[] range : ranges) {
+            viaIndex.add(scanFiles(range[0], range[1]));
+        }
+        for (File file : dataFiles()) {
+            assertNotNull(TextFormatIndex.load(file, file.length()));
+            assertTrue(TextFormatIndex.indexFile(file).delete());
+        }
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            List<DataRecord> expected = TestDataFiles.readAll(baseDir, SN, range[0], range[1]);
+            TestDataFiles.assertSameRecords(expected, scanFiles(range[0], range[1]));
+            TestDataFiles.assertSameRecords("[" + range[0] + ", " + range[1] + ")", expected, viaIndex.get(i));
+        }
+    }
+
+    @Test
+    public void offsetsAreLineStartsAroundRange() throws Exception {
+        for (File file : dataFiles()) {
+            List<Long> lineStarts = new ArrayList<>();
+            List<Long> lineEpochs = new ArrayList<>();
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            for (int start = 0, end; start < bytes.length; start = end + 1) {
+                end = start;
+                while (bytes[end] != '\n') {
+                    end++;
+                }
+                String line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+                lineStarts.add((long) start);
+                lineEpochs.add(Long.parseLong(line.substring(0, line.indexOf(','))));
+            }
+            TextFormatIndex index = TextFormatIndex.load(file, file.length());
+            for (long[] range : randomRanges()) {
+                long startOffset = index.startOffset(range[0]);
+                long endOffset = index.endOffset(range[1]);
+                assertTrue(startOffset <= endOffset);
+                for (int i = 0; i < lineStarts.size(); i++) {
+                    if (lineStarts.get(i) < startOffset) {
+                        assertTrue(lineEpochs.get(i) < range[0]);
+                    }
+                    if (lineStarts.get(i) >= endOffset) {
+                        assertTrue(lineEpochs.get(i) >= range[1]);
+                    }
+                }
+                assertTrue(startOffset == file.length() || lineStarts.contains(startOffset));
+                assertTrue(endOffset == file.length() || lineStarts.contains(endOffset));
+            }
+        }
+    }
+
+    @Test
+    public void partlyWrittenEntryIsIgnored() throws Exception {
+        File file = dataFiles().get(0);
+        File indexFile = TextFormatIndex.indexFile(file);
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        assertNotNull(TextFormatIndex.load(file, file.length()));
+        for (long[] range : randomRanges()) {
+            TestDataFiles.assertSameRecords(TestDataFiles.readAll(baseDir, SN, range[0], range[1]),
+                    scanFiles(range[0], range[1]));
+        }
+    }
+
+    @Test
+    public void fileWithClockGoingBackIsScannedFully() throws Exception {
+        String otherDir = dir.newFolder("other").getPath();
+        try (TextFormatWriter writer = new TextFormatWriter(otherDir, SN, null, new WriteFlushPolicy(1000, 1024))) {
+            TestDataFiles.write(writer, T0, T0 + 60_000, 10, 1);
+            // e.g. clock adjusted
+            TestDataFiles.write(writer, T0 + 30_000, T0 + 90_000, 10, 2);
+        }
+        File file = new TextFormatReader(otherDir).findDataFiles(SN, T0, T0 + 1).iterator().next();
+        assertTrue(TextFormatIndex.indexFile(file).exists());
+        assertNull(TextFormatIndex.load(file, file.length()));
+        List<DataRecord> read = new ArrayList<>();
+        new TextFormatReader(otherDir).scanFile(file, T0 + 40_000, T0 + 50_000, read::add);
+        List<DataRecord> expected = TestDataFiles.readAll(otherDir, SN, T0 + 40_000, T0 + 50_000);
+        assertEquals(2 * 10 * 10, expected.size());
+        TestDataFiles.assertSameRecords(expected, read);
+    }
+
+    private List<File> dataFiles() {
+        List<File> files = new ArrayList<>();
+        new TextFormatReader(baseDir).findDataFiles(SN, T0, END).forEach(files::add);
+        assertEquals(2, files.size());
+        return files;
+    }
+
+    private List<DataRecord> scanFiles(long startEpochMs, long endEpochMs) {
+        List<DataRecord> records = new ArrayList<>();
+        TextFormatReader reader = new TextFormatReader(baseDir);
+        for (File file : dataFiles()) {
+            assertTrue(reader.scanFile(file, startEpochMs, endEpochMs, records::add));
+        }
+        return records;
+    }
+
+    private static List<long[]> randomRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        ranges.add(new long[]{T0, END});
+        ranges.add(new long[]{T0 - 1000, T0 + 1});
+        ranges.add(new long[]{END - 1, END + 1000});
+        // exactly on index entries
+        ranges.add(new long[]{T0 + 5000, T0 + 6000});
+        Random random = new Random(5);
+        for (int i = 0; i < 40; i++) {
+            long start = T0 - 1000 + (long) (random.nextDouble() * (END - T0 + 2000));
+            ranges.add(new long[]{start, start + random.nextInt(i % 2 == 0 ? 5000 : 300_000)});
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,126 @@
+package com.sensortea.cuplogger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link TextLineParser} must give exactly what {@link TextFormatReader#parseEvent(String)} gives for the same line.
+ */
+public class TextLineParserTest {
+    private final Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+    // same as in __main__ of src/main/python/cuplogger.py
+    @Test
+    public void parsesAsPythonLib() {
+        assertRaw("1704573206646,Temp+Humi,1.1,DHT11,39,Inside loop #43,39"); // wrong length
+        assertRaw("1704573206646,Temp+Humi,1.1,DHT11_39,Inside loop #43,38"); // bad comma
+        assertRaw("1704573208216,Temp+Humi,1.1,DHT11,18,,tan,0.31,32"); // bad reading (should be 'tan:')
+        assertParsed("1704573209370,Temp+Humi,1.1,DHT11,39,Inside loop #2,37"); // log line
+        assertParsed("1704573208216,Temp+Humi,1.1,DHT11,18,,tan:0.31,32"); // single reading
+        assertParsed("1704573210329,Temp+Humi,1.1,DHT11,1043,,temp:13.00,humi:41.00,47"); // multiple readings
+    }
+
+    @Test
+    public void parsesEdgeCasesAsParseEvent() {
+        String[] lines = {
+                // empty fields
+                "1704573210329,,,,,,5",
+                "1704573210329,,,,,,4",
+                "1704573210329,a,b,c,,,8",
+                "1704573210329,a,b,c,,log,11",
+                "1704573210329,,,,,",
+                "1704573210329,",
+                "1704573210329",
+                "",
+                ",a,b,c,1,log,11",
+                // readings without id or value, and with more than one ':'
+                "1704573210329,a,b,c,1,,x:,11",
+                "1704573210329,a,b,c,1,,:1,11",
+                "1704573210329,a,b,c,1,,x:1:2,14",
+                "1704573210329,a,b,c,1,,x,10",
+                "1704573210329,a,b,c,1,,x:1,,13",
+                // signs and exponents
+                "1704573210329,a,b,c,-5,,x:-1.5,15",
+                "1704573210329,a,b,c,+5,,x:+1.5,15",
+                "1704573210329,a,b,c,1,,x:1e3,12",
+                "1704573210329,a,b,c,1,,x:-1.5E-3,16",
+                "1704573210329,a,b,c,1,,x:1e400,14",
+                "1704573210329,a,b,c,1,,x:.5,11",
+                "1704573210329,a,b,c,1,,x:5.,11",
+                "1704573210329,a,b,c,1,,x:0x10,13",
+                "1704573210329,a,b,c,1,,x:NaN,12",
+                "1704573210329,a,b,c,1,,x:Infinity,17",
+                "1704573210329,a,b,c,1,,x:1.2345678901234567890123,33",
+                "1704573210329,a,b,c,1,,x:12345678901234567890,29",
+                "1704573210329,a,b,c,1.5,,x:1,11",
+                "-1704573210329,a,b,c,1,,x:1,11",
+                "+1704573210329,a,b,c,1,,x:1,11",
+                "1704573210329x,a,b,c,1,,x:1,11",
+                // bad length
+                "1704573210329,a,b,c,1,,x:1,-11",
+                "1704573210329,a,b,c,1,,x:1,+11",
+                "1704573210329,a,b,c,1,,x:1, 11",
+                "1704573210329,a,b,c,1,,x:1,",
+                // non-ASCII
+                "1704573210329,été,b,c,1,température,x:1,26",
+                "1704573210329,été,b,c,1,température,x:1,24",
+                "1704573210329,a,b,c,1,,°C:21.5,15",
+        };
+        TextLineParser parser = new TextLineParser();
+        DataRecord target = new DataRecord();
+        for (String line : lines) {
+            assertSameAsParseEvent(parser, target, line);
+        }
+    }
+
+    // incl. re-use of the parser and the record, and interned strings, over many lines
+    @Test
+    public void parsesGeneratedLinesAsParseEvent() {
+        SimulatedDevice device = new SimulatedDevice(1, 5, 0.1, 0.05);
+        TextLineParser parser = new TextLineParser();
+        DataRecord target = new DataRecord();
+        for (int i = 0; i < 100_000; i++) {
+            String line = device.nextLine();
+            assertSameAsParseEvent(parser, target, (1704573210329L + i) + "," + line.substring(0, line.length() - 2));
+        }
+    }
+
+    private void assertSameAsParseEvent(TextLineParser parser, DataRecord target, String line) {
+        DataRecord expected = TextFormatReader.parseEvent(line);
+        byte[] bytes = ("  " + line + "  ").getBytes(StandardCharsets.UTF_8);
+        boolean parsed = parser.parse(bytes, 2, bytes.length - 2, target);
+        if (expected == null) {
+            assertFalse(line, parsed);
+        } else {
+            assertTrue(line, parsed);
+            assertEquals(line, gson.toJson(expected), gson.toJson(target));
+            assertEquals(line, expected.epochMs, parser.parseEpochMs(bytes, 2, bytes.length - 2));
+        }
+    }
+
+    private void assertRaw(String line) {
+        DataRecord r = parse(line);
+        assertNotNull(line, r.rawText);
+        assertNull(line, r.parsedEvent);
+    }
+
+    private void assertParsed(String line) {
+        DataRecord r = parse(line);
+        assertNull(line, r.rawText);
+        assertNotNull(line, r.parsedEvent);
+    }
+
+    private DataRecord parse(String line) {
+        DataRecord expected = TextFormatReader.parseEvent(line);
+        DataRecord r = new DataRecord();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        assertTrue(line, new TextLineParser().parse(bytes, 0, bytes.length, r));
+        assertEquals(line, gson.toJson(expected), gson.toJson(r));
+        return r;
+    }
+}
@@ -0,0 +1,100 @@
+package com.sensortea.cuplogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Written data must become visible to readers within the flush interval, and the interval can't be configured
+ * longer than the margin after which readers consider data files closed.
+ */
+public class WriteFlushPolicyTest {
+    private static final String SN = "SN1";
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    @Test
+    public void flushIntervalIsWithinClosedFileMargin() {
+        assertTrue(WriteFlushPolicy.MAX_FLUSH_INTERVAL_MS < DataFilesStore.CLOSED_FILE_MARGIN_MS);
+
+        WriteFlushPolicy defaults = WriteFlushPolicy.configured(Collections.emptyMap());
+        assertTrue(defaults.flushEachWrite());
+        assertEquals(64 * 1024, defaults.flushBytes);
+
+        assertEquals(WriteFlushPolicy.MAX_FLUSH_INTERVAL_MS,
+                configured(WriteFlushPolicy.MAX_FLUSH_INTERVAL_MS, 1).flushIntervalMs);
+        // bad values fall back to defaults
+        WriteFlushPolicy tooLong = configured(WriteFlushPolicy.MAX_FLUSH_INTERVAL_MS + 1, 0);
+        assertTrue(tooLong.flushEachWrite());
+        assertEquals(64 * 1024, tooLong.flushBytes);
+        assertTrue(configured(-1, 1).flushEachWrite());
+    }
+
+    @Test
+    public void dataIsVisibleAfterFlushInterval() throws Exception {
+        String baseDir = dir.getRoot().getPath();
+        long startMs = nowWithinFileInterval();
+        try (TextFormatWriter writer = new TextFormatWriter(baseDir, SN, null, new WriteFlushPolicy(300, 64 * 1024))) {
+            TestDataFiles.write(writer, startMs, startMs + 100, 100, 1);
+            writer.flushIfDue();
+            // unless it took that long
+            if (System.currentTimeMillis() - startMs < 300) {
+                assertEquals(0, readAll(baseDir, startMs).size());
+            }
+            Thread.sleep(300);
+            writer.flushIfDue();
+            assertEquals(10, readAll(baseDir, startMs).size());
+        }
+    }
+
+    @Test
+    public void dataIsVisibleWhenBufferIsFull() throws Exception {
+        String baseDir = dir.getRoot().getPath();
+        long startMs = TestDataFiles.T0;
+        try (TextFormatWriter writer = new TextFormatWriter(baseDir, SN, null,
+                new WriteFlushPolicy(WriteFlushPolicy.MAX_FLUSH_INTERVAL_MS, 1024))) {
+            TestDataFiles.write(writer, startMs, startMs + 1000, 1000, 1);
+            // all but what's left in the buffer
+            int visible = readAll(baseDir, startMs).size();
+            assertTrue(visible > 900 && visible < 1000);
+        }
+        assertEquals(1000, readAll(baseDir, startMs).size());
+    }
+
+    @Test
+    public void flushEachWriteMakesDataVisibleRightAway() throws Exception {
+        String baseDir = dir.getRoot().getPath();
+        long startMs = TestDataFiles.T0;
+        try (TextFormatWriter writer = new TextFormatWriter(baseDir, SN, null, new WriteFlushPolicy(0, 64 * 1024))) {
+            TestDataFiles.write(writer, startMs, startMs + 10, 1000, 1);
+            assertEquals(10, readAll(baseDir, startMs).size());
+        }
+    }
+
+    private static WriteFlushPolicy configured(long flushMs, long flushBytes) {
+        Map<String, String> env = new HashMap<>();
+        env.put(WriteFlushPolicy.WRITE_FLUSH_MS_ENV_VARIABLE, Long.toString(flushMs));
+        env.put(WriteFlushPolicy.WRITE_FLUSH_BYTES_ENV_VARIABLE, Long.toString(flushBytes));
+        return WriteFlushPolicy.configured(env);
+    }
+
+    // so that the writer doesn't flush when moving on to the next file
+    private static long nowWithinFileInterval() throws InterruptedException {
+        if (System.currentTimeMillis() % DataFilesStore.FILE_INTERVAL_MS > DataFilesStore.FILE_INTERVAL_MS - 1000) {
+            Thread.sleep(1000);
+        }
+        return System.currentTimeMillis();
+    }
+
+    private static List<DataRecord> readAll(String baseDir, long startMs) throws Exception {
+        return TestDataFiles.readAll(baseDir, SN, startMs, startMs + DataFilesStore.FILE_INTERVAL_MS);
+    }
+}